@@ -0,0 +1,212 @@
+/*
+Action table for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps Cordova action names to handlers. Every dispatch is timed and
+ * counted, so call rates and latencies can be inspected per action.
+ *
+ * Latency is the time spent inside the handler on the calling thread,
+ * not the time until an asynchronous result reaches JavaScript.
+ * Failures are handlers that threw and error results sent to the
+ * callback of the call, also after the handler has returned.
+ */
+class ActionRegistry
+{
+	/**
+	 * Handler for one Cordova action.
+	 */
+	interface Handler
+	{
+		void handle(CordovaArgs args, CallbackContext callbackContext)
+				throws JSONException;
+	}
+
+	/**
+	 * Call counters for one action.
+	 */
+	private static class Stats
+	{
+		long calls;
+		long failures;
+		long totalNanos;
+		long maxNanos;
+	}
+
+	private final HashMap<String, Handler> mHandlers =
+			new HashMap<String, Handler>();
+	private final HashMap<String, Stats> mStats =
+			new HashMap<String, Stats>();
+	private long mStatsSince = SystemClock.elapsedRealtime();
+	private final CordovaWebView mWebView;
+
+	/**
+	 * @param webView web view that results of dispatched calls are sent to.
+	 */
+	ActionRegistry(CordovaWebView webView)
+	{
+		mWebView = webView;
+	}
+
+	/**
+	 * Register a handler for an action, replacing any handler already
+	 * registered for it.
+	 */
+	synchronized void register(String action, Handler handler)
+	{
+		mHandlers.put(action, handler);
+		if (!mStats.containsKey(action)) {
+			mStats.put(action, new Stats());
+		}
+	}
+
+	/**
+	 * True if a handler is registered for the action.
+	 */
+	synchronized boolean has(String action)
+	{
+		return mHandlers.containsKey(action);
+	}
+
+	/**
+	 * Dispatch an action to its handler.
+	 * Returns false if no handler is registered for the action.
+	 */
+	boolean dispatch(String action, CordovaArgs args, CallbackContext callbackContext)
+			throws JSONException
+	{
+		Handler handler;
+		Stats stats;
+		synchronized (this) {
+			handler = mHandlers.get(action);
+			stats = mStats.get(action);
+		}
+		if (null == handler) {
+			return false;
+		}
+
+		boolean failed = true;
+		long start = System.nanoTime();
+		try {
+			handler.handle(
+				args,
+				new CountingCallbackContext(callbackContext, stats));
+			failed = false;
+		}
+		finally {
+			record(stats, System.nanoTime() - start, failed);
+		}
+		return true;
+	}
+
+	private synchronized void record(Stats stats, long nanos, boolean failed)
+	{
+		stats.calls++;
+		stats.totalNanos += nanos;
+		if (nanos > stats.maxNanos) {
+			stats.maxNanos = nanos;
+		}
+		if (failed) {
+			stats.failures++;
+		}
+	}
+
+	private synchronized void recordError(Stats stats)
+	{
+		stats.failures++;
+	}
+
+	/**
+	 * Callback context of one call that counts the error results sent
+	 * to it. Results are sent to JavaScript under the callback id of
+	 * the wrapped context.
+	 */
+	private class CountingCallbackContext extends CallbackContext
+	{
+		private final Stats mStats;
+
+		CountingCallbackContext(CallbackContext callbackContext, Stats stats)
+		{
+			super(callbackContext.getCallbackId(), mWebView);
+			mStats = stats;
+		}
+
+		@Override
+		public void sendPluginResult(PluginResult pluginResult)
+		{
+			int status = pluginResult.getStatus();
+			if (!isFinished()
+					&& status != PluginResult.Status.OK.ordinal()
+					&& status != PluginResult.Status.NO_RESULT.ordinal()) {
+				recordError(mStats);
+			}
+			super.sendPluginResult(pluginResult);
+		}
+	}
+
+	/**
+	 * Clear all counters.
+	 */
+	synchronized void resetStats()
+	{
+		for (Stats stats : mStats.values()) {
+			stats.calls = 0;
+			stats.failures = 0;
+			stats.totalNanos = 0;
+			stats.maxNanos = 0;
+		}
+		mStatsSince = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Create JSON object with counters for all actions that have been
+	 * called since the last reset.
+	 *
+	 * format:
+	 * {
+	 *	 periodMillis: time since counters were reset,
+	 *	 actions: {
+	 *	   <action>: { calls, failures, callsPerMinute, meanMicros, maxMicros }
+	 *	 }
+	 * }
+	 */
+	synchronized JSONObject statsToJSON() throws JSONException
+	{
+		long periodMillis = SystemClock.elapsedRealtime() - mStatsSince;
+
+		JSONObject actions = new JSONObject();
+		for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+			Stats stats = entry.getValue();
+			if (stats.calls == 0) {
+				continue;
+			}
+			JSONObject json = new JSONObject();
+			json.put("calls", stats.calls);
+			json.put("failures", stats.failures);
+			json.put("callsPerMinute",
+					periodMillis > 0 ? stats.calls * 60000.0 / periodMillis : 0);
+			json.put("meanMicros", stats.totalNanos / stats.calls / 1000);
+			json.put("maxMicros", stats.maxNanos / 1000);
+			actions.put(entry.getKey(), json);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("periodMillis", periodMillis);
+		json.put("actions", actions);
+		return json;
+	}
+}
@@ -0,0 +1,584 @@
+/*
+Beacon connection pooling for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.estimote.coresdk.cloud.model.BeaconInfo;
+import com.estimote.coresdk.recognition.packets.Beacon;
+import com.estimote.mgmtsdk.common.exceptions.EstimoteDeviceException;
+import com.estimote.mgmtsdk.connection.api.BeaconConnection;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps authenticated beacon connections alive for reuse, so that
+ * repeated maintenance actions on a beacon do not pay the GATT connect
+ * and authentication cost every time.
+ *
+ * A session is kept open until it has been idle for the idle timeout.
+ * At most maxConnections sessions are open at a time; when a new beacon
+ * needs a slot, the idlest authorized session is closed. Failed
+ * connection attempts are retried with exponential backoff. An attempt
+ * that has not authenticated within the connect timeout fails, and a
+ * session whose link dropped without a disconnect callback is removed
+ * when found, so neither holds a slot. The BeaconInfo from onAuthorized
+ * is cached with the session.
+ *
+ * Methods are synchronized, callbacks are called outside the lock.
+ * Timers run on the given handler.
+ */
+class BeaconConnectionManager
+{
+	private static final String LOGTAG = "EstimoteBeacons";
+
+	static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+	static final int DEFAULT_MAX_CONNECTIONS = 2;
+	static final int DEFAULT_MAX_RETRIES = 3;
+	static final long DEFAULT_RETRY_BASE_MILLIS = 500;
+	private static final long MAX_RETRY_DELAY_MILLIS = 8000;
+	private static final long CONNECT_TIMEOUT_MILLIS = 20000;
+
+	/**
+	 * Result of a connect request.
+	 */
+	interface Callback
+	{
+		void onReady(Session session, boolean reused);
+		void onError(String message);
+	}
+
+	/**
+	 * Listener for sessions closed by the beacon or on timeout.
+	 */
+	interface DisconnectListener
+	{
+		void onDisconnected(Session session);
+	}
+
+	/**
+	 * One pooled connection.
+	 */
+	static class Session
+	{
+		final String key;
+		final Beacon beacon;
+		EstimoteBeacons.BeaconConnected connection;
+		BeaconInfo info;
+		boolean authorized;
+		int attempts;
+		long attemptStart;
+		long authMillis = -1;
+		long connectMillis = -1;
+		long lastUsed;
+		final List<Callback> waiters = new ArrayList<Callback>();
+
+		Session(String key, Beacon beacon)
+		{
+			this.key = key;
+			this.beacon = beacon;
+		}
+
+		boolean isOpen()
+		{
+			return authorized && null != connection && connection.isConnected();
+		}
+	}
+
+	private final Context mContext;
+	private final Handler mHandler;
+	private final DisconnectListener mDisconnectListener;
+	private final HashMap<String, Session> mSessions = new HashMap<String, Session>();
+
+	private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int mMaxRetries = DEFAULT_MAX_RETRIES;
+	private long mRetryBaseMillis = DEFAULT_RETRY_BASE_MILLIS;
+
+	// Statistics.
+	private long mConnects = 0;
+	private long mReuses = 0;
+	private long mRetries = 0;
+	private long mFailures = 0;
+	private long mAuthMillisTotal = 0;
+	private long mConnectMillisTotal = 0;
+	private long mAuthCount = 0;
+	private long mConnectCount = 0;
+
+	private final Runnable mIdleTask = new Runnable() {
+		@Override
+		public void run() {
+			closeIdle();
+		}
+	};
+
+	BeaconConnectionManager(Context context, Handler handler, DisconnectListener listener)
+	{
+		mContext = context;
+		mHandler = handler;
+		mDisconnectListener = listener;
+	}
+
+	/**
+	 * Set pool limits. Values of zero or less keep the current setting.
+	 */
+	synchronized void configure(
+			long idleTimeoutMillis,
+			int maxConnections,
+			int maxRetries,
+			long retryBaseMillis)
+	{
+		if (idleTimeoutMillis > 0) {
+			mIdleTimeoutMillis = idleTimeoutMillis;
+		}
+		if (maxConnections > 0) {
+			mMaxConnections = maxConnections;
+		}
+		if (maxRetries >= 0) {
+			mMaxRetries = maxRetries;
+		}
+		if (retryBaseMillis > 0) {
+			mRetryBaseMillis = retryBaseMillis;
+		}
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * Get an authenticated session for a beacon, reusing an open one.
+	 * Stale sessions are removed first, so they neither take a slot
+	 * nor keep new callers waiting.
+	 */
+	void connect(Beacon beacon, Callback callback)
+	{
+		String key = beacon.getMacAddress().toStandardString();
+		Session reused = null;
+		Session closed = null;
+		boolean full = false;
+		List<Session> stale = new ArrayList<Session>();
+		synchronized (this) {
+			removeStale(System.currentTimeMillis(), stale);
+			Session session = mSessions.get(key);
+			if (null != session && session.isOpen()) {
+				session.lastUsed = System.currentTimeMillis();
+				++mReuses;
+				reused = session;
+			}
+			else if (null != session) {
+				// Connecting or retrying, answer when done.
+				session.waiters.add(callback);
+			}
+			else {
+				if (mSessions.size() >= mMaxConnections) {
+					closed = idlestOpenSession();
+					if (null != closed) {
+						remove(closed);
+					}
+					else {
+						full = true;
+					}
+				}
+				if (!full) {
+					session = new Session(key, beacon);
+					session.waiters.add(callback);
+					mSessions.put(key, session);
+					open(session);
+				}
+			}
+		}
+		closeStale(stale);
+		if (full) {
+			callback.onError("too many beacon connections");
+		}
+		if (null != closed) {
+			Log.i(LOGTAG, "closing idlest beacon connection " + closed.key);
+			closed.connection.close();
+		}
+		if (null != reused) {
+			callback.onReady(reused, true);
+		}
+	}
+
+	/**
+	 * Open session for a beacon, or null.
+	 */
+	synchronized Session get(String key)
+	{
+		Session session = mSessions.get(key);
+		return (null != session && session.isOpen()) ? session : null;
+	}
+
+	/**
+	 * Mark a session as used now, postponing its idle timeout.
+	 */
+	synchronized void touch(Session session)
+	{
+		session.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Close a session now.
+	 */
+	void close(Session session)
+	{
+		synchronized (this) {
+			if (mSessions.get(session.key) != session) {
+				return;
+			}
+			remove(session);
+		}
+		fail(session, "connection closed");
+		if (null != session.connection) {
+			session.connection.close();
+		}
+	}
+
+	/**
+	 * Close all sessions.
+	 */
+	void closeAll()
+	{
+		List<Session> sessions;
+		synchronized (this) {
+			sessions = new ArrayList<Session>(mSessions.values());
+		}
+		for (Session session : sessions) {
+			close(session);
+		}
+		mHandler.removeCallbacks(mIdleTask);
+	}
+
+	/**
+	 * Pool statistics.
+	 *
+	 * format:
+	 * { idleTimeoutMillis, maxConnections, connects, reuses, retries,
+	 *   failures, meanAuthMillis, meanConnectMillis,
+	 *   sessions: [ { macAddress, authorized, attempts, authMillis,
+	 *     connectMillis, idleMillis } ] }
+	 */
+	synchronized JSONObject statsToJSON() throws JSONException
+	{
+		long now = System.currentTimeMillis();
+		JSONArray sessions = new JSONArray();
+		for (Session session : mSessions.values()) {
+			JSONObject json = new JSONObject();
+			json.put("macAddress", session.key);
+			json.put("authorized", session.isOpen());
+			json.put("attempts", session.attempts);
+			json.put("authMillis", session.authMillis);
+			json.put("connectMillis", session.connectMillis);
+			if (session.lastUsed > 0) {
+				json.put("idleMillis", now - session.lastUsed);
+			}
+			sessions.put(json);
+		}
+		JSONObject json = new JSONObject();
+		json.put("idleTimeoutMillis", mIdleTimeoutMillis);
+		json.put("maxConnections", mMaxConnections);
+		json.put("connects", mConnects);
+		json.put("reuses", mReuses);
+		json.put("retries", mRetries);
+		json.put("failures", mFailures);
+		json.put("meanAuthMillis", mAuthCount > 0 ? mAuthMillisTotal / mAuthCount : -1);
+		json.put("meanConnectMillis", mConnectCount > 0 ? mConnectMillisTotal / mConnectCount : -1);
+		json.put("sessions", sessions);
+		return json;
+	}
+
+	/**
+	 * Start a connection attempt. Called with the lock held.
+	 */
+	private void open(final Session session)
+	{
+		++session.attempts;
+		++mConnects;
+		session.attemptStart = System.currentTimeMillis();
+		SessionCallback callback = new SessionCallback(session);
+		session.connection = new EstimoteBeacons.BeaconConnected(
+				mContext, session.beacon, callback);
+		callback.mConnection = session.connection;
+		session.connection.authenticate();
+
+		final EstimoteBeacons.BeaconConnected connection = session.connection;
+		mHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				onConnectTimeout(session, connection);
+			}
+		}, CONNECT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Fail an attempt that has not authenticated in time, without
+	 * retrying, since the beacon is most likely out of range.
+	 */
+	private void onConnectTimeout(Session session, EstimoteBeacons.BeaconConnected connection)
+	{
+		synchronized (this) {
+			if (!isCurrent(session, connection) || session.authorized) {
+				return;
+			}
+			++mFailures;
+			remove(session);
+		}
+		Log.i(LOGTAG, "beacon connection timed out " + session.key);
+		connection.close();
+		fail(session, "beacon connection timed out");
+	}
+
+	private void onAuthorized(Session session, EstimoteBeacons.BeaconConnected connection, BeaconInfo info)
+	{
+		List<Callback> waiters;
+		synchronized (this) {
+			if (!isCurrent(session, connection)) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			session.info = info;
+			session.authorized = true;
+			session.authMillis = now - session.attemptStart;
+			session.lastUsed = now;
+			mAuthMillisTotal += session.authMillis;
+			++mAuthCount;
+			waiters = new ArrayList<Callback>(session.waiters);
+			session.waiters.clear();
+			scheduleIdleCheck();
+		}
+		for (Callback waiter : waiters) {
+			waiter.onReady(session, false);
+		}
+	}
+
+	private synchronized void onConnected(Session session, EstimoteBeacons.BeaconConnected connection)
+	{
+		if (!isCurrent(session, connection) || session.connectMillis >= 0) {
+			return;
+		}
+		session.connectMillis = System.currentTimeMillis() - session.attemptStart;
+		mConnectMillisTotal += session.connectMillis;
+		++mConnectCount;
+	}
+
+	private void onAuthenticationError(
+			final Session session,
+			EstimoteBeacons.BeaconConnected connection,
+			EstimoteDeviceException e)
+	{
+		boolean retry;
+		long delay = 0;
+		synchronized (this) {
+			if (!isCurrent(session, connection)) {
+				return;
+			}
+			retry = session.attempts <= mMaxRetries;
+			if (retry) {
+				++mRetries;
+				delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+						mRetryBaseMillis << Math.min(16, session.attempts - 1));
+				// Ignore callbacks of the failed connection.
+				session.connection = null;
+			}
+			else {
+				++mFailures;
+				remove(session);
+			}
+		}
+		connection.close();
+		if (retry) {
+			Log.i(LOGTAG, "retrying beacon connection " + session.key + " in " + delay + " ms");
+			mHandler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (BeaconConnectionManager.this) {
+						if (mSessions.get(session.key) == session) {
+							open(session);
+						}
+					}
+				}
+			}, delay);
+		}
+		else {
+			fail(session, e.getMessage());
+		}
+	}
+
+	private void onDisconnected(Session session, EstimoteBeacons.BeaconConnected connection)
+	{
+		synchronized (this) {
+			if (!isCurrent(session, connection)) {
+				return;
+			}
+			remove(session);
+		}
+		fail(session, "beacon disconnected");
+		mDisconnectListener.onDisconnected(session);
+	}
+
+	private boolean isCurrent(Session session, EstimoteBeacons.BeaconConnected connection)
+	{
+		return mSessions.get(session.key) == session && session.connection == connection;
+	}
+
+	/**
+	 * Fail callbacks still waiting for a session.
+	 */
+	private void fail(Session session, String message)
+	{
+		List<Callback> waiters;
+		synchronized (this) {
+			waiters = new ArrayList<Callback>(session.waiters);
+			session.waiters.clear();
+		}
+		for (Callback waiter : waiters) {
+			waiter.onError(message);
+		}
+	}
+
+	private void remove(Session session)
+	{
+		mSessions.remove(session.key);
+		session.authorized = false;
+	}
+
+	/**
+	 * True if a session holds a slot it cannot use: its link dropped
+	 * without a disconnect callback, or its attempt has been running
+	 * for longer than the connect timeout.
+	 */
+	private static boolean isStale(Session session, long now)
+	{
+		if (session.authorized) {
+			return !session.isOpen();
+		}
+		return null != session.connection
+				&& now - session.attemptStart >= CONNECT_TIMEOUT_MILLIS;
+	}
+
+	/**
+	 * Remove stale sessions, adding them to stale to be closed with
+	 * closeStale. Called with the lock held.
+	 */
+	private void removeStale(long now, List<Session> stale)
+	{
+		for (Session session : mSessions.values()) {
+			if (isStale(session, now)) {
+				stale.add(session);
+			}
+		}
+		for (Session session : stale) {
+			if (!session.authorized) {
+				++mFailures;
+			}
+			remove(session);
+		}
+	}
+
+	/**
+	 * Close sessions removed by removeStale. Called without the lock.
+	 */
+	private void closeStale(List<Session> stale)
+	{
+		for (Session session : stale) {
+			Log.i(LOGTAG, "removing stale beacon connection " + session.key);
+			fail(session, "beacon disconnected");
+			if (null != session.connection) {
+				session.connection.close();
+			}
+			mDisconnectListener.onDisconnected(session);
+		}
+	}
+
+	private Session idlestOpenSession()
+	{
+		Session idlest = null;
+		for (Session session : mSessions.values()) {
+			if (session.isOpen()
+					&& (null == idlest || session.lastUsed < idlest.lastUsed)) {
+				idlest = session;
+			}
+		}
+		return idlest;
+	}
+
+	private void closeIdle()
+	{
+		long now = System.currentTimeMillis();
+		List<Session> idle = new ArrayList<Session>();
+		List<Session> stale = new ArrayList<Session>();
+		synchronized (this) {
+			removeStale(now, stale);
+			for (Session session : mSessions.values()) {
+				if (session.isOpen() && now - session.lastUsed >= mIdleTimeoutMillis) {
+					idle.add(session);
+				}
+			}
+		}
+		for (Session session : idle) {
+			Log.i(LOGTAG, "closing idle beacon connection " + session.key);
+			close(session);
+		}
+		closeStale(stale);
+		synchronized (this) {
+			scheduleIdleCheck();
+		}
+	}
+
+	/**
+	 * Schedule the next idle check, if there are sessions.
+	 * Called with the lock held.
+	 */
+	private void scheduleIdleCheck()
+	{
+		mHandler.removeCallbacks(mIdleTask);
+		if (!mSessions.isEmpty()) {
+			mHandler.postDelayed(mIdleTask, Math.max(1000, mIdleTimeoutMillis / 2));
+		}
+	}
+
+	/**
+	 * SDK callback bound to one connection of a session, so that late
+	 * callbacks of replaced connections are ignored.
+	 */
+	private class SessionCallback implements BeaconConnection.ConnectionCallback
+	{
+		private final Session mSession;
+
+		// Set right after construction, before authenticate().
+		EstimoteBeacons.BeaconConnected mConnection;
+
+		SessionCallback(Session session)
+		{
+			mSession = session;
+		}
+
+		@Override
+		public void onAuthorized(BeaconInfo beaconInfo) {
+			BeaconConnectionManager.this.onAuthorized(mSession, mConnection, beaconInfo);
+		}
+
+		@Override
+		public void onConnected(BeaconInfo beaconInfo) {
+			BeaconConnectionManager.this.onConnected(mSession, mConnection);
+		}
+
+		@Override
+		public void onAuthenticationError(EstimoteDeviceException e) {
+			BeaconConnectionManager.this.onAuthenticationError(mSession, mConnection, e);
+		}
+
+		@Override
+		public void onDisconnected() {
+			BeaconConnectionManager.this.onDisconnected(mSession, mConnection);
+		}
+	}
+}
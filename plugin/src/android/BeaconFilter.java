@@ -0,0 +1,204 @@
+/*
+Ranging result filter for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Filter applied to ranged beacons before they are serialized:
+ * RSSI floor, distance ceiling, set of accepted proximities, and
+ * allow and deny lists of (major, minor) pairs.
+ *
+ * The allow and deny lists are kept in open addressing hash sets of
+ * packed pairs, so that lists of thousands of ids are cheap in memory
+ * and in lookup.
+ */
+class BeaconFilter
+{
+	// Largest code returned by BeaconJsonWriter.proximityCode.
+	static final int MAX_PROXIMITY_CODE = 3;
+
+	private final int mMinRssi;
+	private final double mMaxDistance;
+
+	// Bit n set if proximity code n is accepted.
+	private final int mProximityMask;
+
+	private final PairSet mAllow;
+	private final PairSet mDeny;
+
+	private BeaconFilter(
+			int minRssi,
+			double maxDistance,
+			int proximityMask,
+			PairSet allow,
+			PairSet deny)
+	{
+		mMinRssi = minRssi;
+		mMaxDistance = maxDistance;
+		mProximityMask = proximityMask;
+		mAllow = allow;
+		mDeny = deny;
+	}
+
+	/**
+	 * Create a filter from ranging options. Returns null if the
+	 * options contain no filter, so that unfiltered ranging costs nothing.
+	 *
+	 * options format:
+	 * {
+	 *	 minRssi: number,
+	 *	 maxDistance: number (meters),
+	 *	 proximities: [ proximity codes ],
+	 *	 allow: [ [major, minor], ... ] or [ { major, minor }, ... ],
+	 *	 deny: same as allow
+	 * }
+	 */
+	static BeaconFilter fromJSON(JSONObject options) throws JSONException
+	{
+		if (options == null) {
+			return null;
+		}
+
+		int minRssi = options.optInt("minRssi", Integer.MIN_VALUE);
+		double maxDistance = options.optDouble("maxDistance", Double.MAX_VALUE);
+
+		int proximityMask = ~0;
+		JSONArray proximities = options.optJSONArray("proximities");
+		if (proximities != null) {
+			proximityMask = proximityMask(proximities);
+		}
+
+		PairSet allow = PairSet.fromJSON(options.optJSONArray("allow"));
+		PairSet deny = PairSet.fromJSON(options.optJSONArray("deny"));
+
+		if (minRssi == Integer.MIN_VALUE
+				&& maxDistance == Double.MAX_VALUE
+				&& proximityMask == ~0
+				&& allow == null
+				&& deny == null) {
+			return null;
+		}
+
+		return new BeaconFilter(minRssi, maxDistance, proximityMask, allow, deny);
+	}
+
+	/**
+	 * Bit mask of proximity codes, as made by
+	 * BeaconJsonWriter.proximityCode. Codes outside that range are
+	 * rejected rather than shifted into other bits.
+	 */
+	static int proximityMask(JSONArray proximities) throws JSONException
+	{
+		int mask = 0;
+		for (int i = 0; i < proximities.length(); ++i) {
+			int code = proximities.getInt(i);
+			if (code < 0 || code > MAX_PROXIMITY_CODE) {
+				throw new JSONException("Invalid proximity code: " + code);
+			}
+			mask |= 1 << code;
+		}
+		return mask;
+	}
+
+	/**
+	 * True if a beacon passes the filter. Cheapest checks go first.
+	 */
+	boolean accept(int major, int minor, int rssi, double distance, int proximity)
+	{
+		if (rssi < mMinRssi
+				|| distance > mMaxDistance
+				|| (mProximityMask & (1 << proximity)) == 0) {
+			return false;
+		}
+		long pair = PairSet.pack(major, minor);
+		if (mDeny != null && mDeny.contains(pair)) {
+			return false;
+		}
+		return mAllow == null || mAllow.contains(pair);
+	}
+
+	/**
+	 * Set of (major, minor) pairs packed into longs, open addressing with
+	 * linear probing. Major and minor are 16 bit values packed into the
+	 * low 32 bits, so a packed pair is never negative and -1 marks free
+	 * slots.
+	 */
+	static class PairSet
+	{
+		private static final long FREE = -1;
+
+		private final long[] mSlots;
+		private final int mMask;
+
+		private PairSet(int expected)
+		{
+			// Power of two with load factor at most one half.
+			int capacity = Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) << 1;
+			mSlots = new long[capacity];
+			mMask = capacity - 1;
+			Arrays.fill(mSlots, FREE);
+		}
+
+		static long pack(int major, int minor)
+		{
+			return ((long) (major & 0xFFFF) << 16) | (minor & 0xFFFF);
+		}
+
+		static PairSet fromJSON(JSONArray pairs) throws JSONException
+		{
+			if (pairs == null) {
+				return null;
+			}
+			PairSet set = new PairSet(pairs.length());
+			for (int i = 0; i < pairs.length(); ++i) {
+				JSONArray pair = pairs.optJSONArray(i);
+				if (pair != null) {
+					set.add(pack(pair.getInt(0), pair.getInt(1)));
+				}
+				else {
+					JSONObject json = pairs.getJSONObject(i);
+					set.add(pack(json.getInt("major"), json.getInt("minor")));
+				}
+			}
+			return set;
+		}
+
+		private static int slot(long value, int mask)
+		{
+			// Spread the bits, majors tend to repeat.
+			int h = (int) value * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void add(long value)
+		{
+			int i = slot(value, mMask);
+			while (mSlots[i] != FREE) {
+				if (mSlots[i] == value) {
+					return;
+				}
+				i = (i + 1) & mMask;
+			}
+			mSlots[i] = value;
+		}
+
+		boolean contains(long value)
+		{
+			int i = slot(value, mMask);
+			while (mSlots[i] != FREE) {
+				if (mSlots[i] == value) {
+					return true;
+				}
+				i = (i + 1) & mMask;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+Result serialization for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.observation.region.beacon.BeaconRegion;
+import com.estimote.coresdk.recognition.packets.Beacon;
+import com.estimote.coresdk.recognition.packets.Nearable;
+import com.estimote.coresdk.observation.utils.Proximity;
+
+import org.apache.cordova.PluginResult;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes ranging, monitoring and nearable results as JSON text directly
+ * into a reused per-thread buffer, instead of building org.json object
+ * trees that Cordova serializes again. Serialized UUIDs and regions are
+ * cached, since they repeat every scan cycle.
+ *
+ * The JSON has the same shape as the org.json based results it replaces.
+ */
+class BeaconJsonWriter
+{
+	// Caches are cleared when they grow past this, they should hold a
+	// handful of entries in practice.
+	private static final int MAX_CACHE_SIZE = 256;
+
+	private static final ThreadLocal<StringBuilder> sBuffer =
+			new ThreadLocal<StringBuilder>() {
+				@Override
+				protected StringBuilder initialValue() {
+					return new StringBuilder(4096);
+				}
+			};
+
+	// Quoted UUID strings.
+	private static final ConcurrentHashMap<UUID, String> sUUIDCache =
+			new ConcurrentHashMap<UUID, String>();
+
+	// Serialized region objects without state, by region key.
+	private static final ConcurrentHashMap<String, CachedRegion> sRegionCache =
+			new ConcurrentHashMap<String, CachedRegion>();
+
+	private static class CachedRegion
+	{
+		final String identifier;
+		final String json;
+
+		CachedRegion(String identifier, String json)
+		{
+			this.identifier = identifier;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * Plugin result carrying JSON text that is passed to JavaScript as is.
+	 */
+	static class Result extends PluginResult
+	{
+		private final String mJson;
+
+		Result(PluginResult.Status status, String json)
+		{
+			super(status);
+			mJson = json;
+		}
+
+		@Override
+		public int getMessageType()
+		{
+			return PluginResult.MESSAGE_TYPE_JSON;
+		}
+
+		@Override
+		public String getMessage()
+		{
+			return mJson;
+		}
+	}
+
+	private static StringBuilder buffer()
+	{
+		StringBuilder sb = sBuffer.get();
+		sb.setLength(0);
+		return sb;
+	}
+
+	/**
+	 * Beacon info for a ranging cycle. Beacons rejected by filter,
+	 * if not null, are left out.
+	 *
+	 * format:
+	 * { region: region, beacons: [ { major, minor, rssi, proximityUUID,
+	 *	 proximity, distance } ] }
+	 */
+	static String beaconInfo(
+			String regionKey,
+			BeaconRegion region,
+			ScanCycle cycle,
+			BeaconFilter filter)
+	{
+		StringBuilder sb = buffer();
+		sb.append("{\"region\":").append(region(regionKey, region));
+		sb.append(",\"beacons\":[");
+		boolean first = true;
+		for (int i = 0; i < cycle.count; ++i) {
+			if (!cycle.hasDistance(i)) {
+				// Not representable in JSON, org.json dropped these too.
+				continue;
+			}
+			if (filter != null && !filter.accept(
+					cycle.major[i], cycle.minor[i], cycle.rssi[i],
+					cycle.distance[i], cycle.proximity[i])) {
+				continue;
+			}
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			beacon(sb, cycle.major[i], cycle.minor[i], cycle.rssi[i],
+					cycle.uuid(i), cycle.proximity[i], cycle.distance[i]);
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Beacon info from a stored snapshot, flagged as cached.
+	 * Beacons rejected by filter, if not null, are left out.
+	 *
+	 * format:
+	 * { region: region, beacons: [ beacon ], cached: true, ageMillis }
+	 */
+	static String snapshotInfo(
+			String regionKey,
+			BeaconRegion region,
+			BeaconSnapshotStore.Snapshot snapshot,
+			BeaconFilter filter,
+			long ageMillis)
+	{
+		StringBuilder sb = buffer();
+		sb.append("{\"region\":").append(region(regionKey, region));
+		sb.append(",\"beacons\":[");
+		boolean first = true;
+		for (int i = 0; i < snapshot.count; ++i) {
+			if (filter != null && !filter.accept(
+					snapshot.major[i], snapshot.minor[i], snapshot.rssi[i],
+					snapshot.distance[i], snapshot.proximity[i])) {
+				continue;
+			}
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			beacon(sb, snapshot.major[i], snapshot.minor[i], snapshot.rssi[i],
+					snapshot.uuid(i), snapshot.proximity[i], snapshot.distance[i]);
+		}
+		sb.append("],\"cached\":true,\"ageMillis\":").append(ageMillis);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void beacon(
+			StringBuilder sb,
+			int major,
+			int minor,
+			int rssi,
+			UUID proximityUUID,
+			int proximity,
+			double distance)
+	{
+		sb.append("{\"major\":").append(major);
+		sb.append(",\"minor\":").append(minor);
+		sb.append(",\"rssi\":").append(rssi);
+		sb.append(",\"proximityUUID\":").append(uuid(proximityUUID));
+		sb.append(",\"proximity\":").append(proximity);
+		sb.append(",\"distance\":").append(distance);
+		sb.append('}');
+	}
+
+	/**
+	 * Region state for monitoring.
+	 *
+	 * format:
+	 * { identifier, uuid, major, minor, state }
+	 */
+	static String regionState(String regionKey, BeaconRegion region, String state)
+	{
+		StringBuilder sb = buffer();
+		regionState(sb, regionKey, region, state);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	/**
+	 * Region state with the beacons that triggered it, in compact form.
+	 *
+	 * format:
+	 * { identifier, uuid, major, minor, state,
+	 *	 beacons: [ { major, minor, rssi, proximityUUID } ] }
+	 *
+	 * proximityUUID is left out if the region has a UUID, since all
+	 * beacons then share it.
+	 */
+	static String regionState(
+			String regionKey,
+			BeaconRegion region,
+			String state,
+			List<Beacon> beacons)
+	{
+		StringBuilder sb = buffer();
+		regionState(sb, regionKey, region, state);
+		sb.append(",\"beacons\":[");
+		boolean withUUID = null == region.getProximityUUID();
+		for (int i = 0; i < beacons.size(); ++i) {
+			Beacon b = beacons.get(i);
+			if (i > 0) {
+				sb.append(',');
+			}
+			compactBeacon(sb, b.getMajor(), b.getMinor(), b.getRssi(),
+					withUUID ? b.getProximityUUID() : null);
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Region state with the beacons of a ranging burst cycle, in the
+	 * same compact form, flagged with burst: true.
+	 */
+	static String regionState(
+			String regionKey,
+			BeaconRegion region,
+			String state,
+			ScanCycle cycle)
+	{
+		StringBuilder sb = buffer();
+		regionState(sb, regionKey, region, state);
+		sb.append(",\"beacons\":[");
+		boolean withUUID = null == region.getProximityUUID();
+		for (int i = 0; i < cycle.count; ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			compactBeacon(sb, cycle.major[i], cycle.minor[i], cycle.rssi[i],
+					withUUID ? cycle.uuid(i) : null);
+		}
+		sb.append("],\"burst\":true}");
+		return sb.toString();
+	}
+
+	/**
+	 * Region object with state, without the closing brace.
+	 */
+	private static void regionState(
+			StringBuilder sb,
+			String regionKey,
+			BeaconRegion region,
+			String state)
+	{
+		String json = region(regionKey, region);
+		sb.append(json, 0, json.length() - 1);
+		sb.append(",\"state\":");
+		quote(sb, state);
+	}
+
+	private static void compactBeacon(
+			StringBuilder sb,
+			int major,
+			int minor,
+			int rssi,
+			UUID proximityUUID)
+	{
+		sb.append("{\"major\":").append(major);
+		sb.append(",\"minor\":").append(minor);
+		sb.append(",\"rssi\":").append(rssi);
+		if (null != proximityUUID) {
+			sb.append(",\"proximityUUID\":").append(uuid(proximityUUID));
+		}
+		sb.append('}');
+	}
+
+	/**
+	 * Nearable list.
+	 *
+	 * format:
+	 * [ { color, identifier, type, firmware } ]
+	 */
+	static String nearables(List<Nearable> nearables)
+	{
+		StringBuilder sb = buffer();
+		sb.append('[');
+		boolean first = true;
+		for (Nearable nearable : nearables) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append('{');
+			boolean firstField = true;
+			firstField = field(sb, firstField, "color", nearable.color.text);
+			firstField = field(sb, firstField, "identifier", nearable.identifier);
+			firstField = field(sb, firstField, "type", nearable.type.text);
+			field(sb, firstField, "firmware", nearable.firmwareVersion);
+			sb.append('}');
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	/**
+	 * Proximity as passed to JavaScript, one of the
+	 * estimote.beacons.Proximity* values.
+	 */
+	static int proximityCode(Proximity proximity)
+	{
+		if (Proximity.IMMEDIATE == proximity) { return 1; }
+		else if (Proximity.NEAR == proximity) { return 2; }
+		else if (Proximity.FAR == proximity) { return 3; }
+		return 0; // Unknown.
+	}
+
+	/**
+	 * Serialized region object, from the cache when possible.
+	 * Null major and minor are left out.
+	 */
+	static String region(String regionKey, BeaconRegion region)
+	{
+		CachedRegion cached = sRegionCache.get(regionKey);
+		if (cached != null && cached.identifier.equals(region.getIdentifier())) {
+			return cached.json;
+		}
+
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("{\"identifier\":");
+		quote(sb, region.getIdentifier());
+		sb.append(",\"uuid\":").append(uuid(region.getProximityUUID()));
+		if (region.getMajor() != null) {
+			sb.append(",\"major\":").append(region.getMajor());
+		}
+		if (region.getMinor() != null) {
+			sb.append(",\"minor\":").append(region.getMinor());
+		}
+		sb.append('}');
+
+		String json = sb.toString();
+		if (sRegionCache.size() > MAX_CACHE_SIZE) {
+			sRegionCache.clear();
+		}
+		sRegionCache.put(regionKey, new CachedRegion(region.getIdentifier(), json));
+		return json;
+	}
+
+	private static String uuid(UUID uuid)
+	{
+		String quoted = sUUIDCache.get(uuid);
+		if (quoted == null) {
+			quoted = "\"" + uuid.toString() + "\"";
+			if (sUUIDCache.size() > MAX_CACHE_SIZE) {
+				sUUIDCache.clear();
+			}
+			sUUIDCache.put(uuid, quoted);
+		}
+		return quoted;
+	}
+
+	/**
+	 * Append a string field, left out if value is null.
+	 * Returns true while no field has been written.
+	 */
+	private static boolean field(StringBuilder sb, boolean first, String name, String value)
+	{
+		if (value == null) {
+			return first;
+		}
+		if (!first) {
+			sb.append(',');
+		}
+		quote(sb, name);
+		sb.append(':');
+		quote(sb, value);
+		return false;
+	}
+
+	/**
+	 * Append a quoted, escaped JSON string.
+	 */
+	static void quote(StringBuilder sb, String s)
+	{
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+						sb.append(String.format("\\u%04x", (int) c));
+					}
+					else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+}
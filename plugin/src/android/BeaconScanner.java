@@ -0,0 +1,48 @@
+/*
+Beacon scanner interface for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+/**
+ * The scanning calls the plugin makes on the Estimote BeaconManager,
+ * implemented over it by SdkBeaconScanner. Kept free of Android so
+ * RegionRanging can be tested on a plain JVM with a fake scanner.
+ *
+ * Start and stop calls may throw a RuntimeException when the scanning
+ * service fails, they are only valid while connected.
+ *
+ * @param <R> region type.
+ */
+interface BeaconScanner<R>
+{
+	/**
+	 * Run onReady once connected to the scanning service, connecting
+	 * if needed. Runs it right away, on the calling thread, if already
+	 * connected, else on the thread the service reports ready on.
+	 * Requests made while connecting share one connect.
+	 */
+	void connect(Runnable onReady);
+
+	boolean isConnected();
+
+	/**
+	 * Disconnect, which ends all scanning. Pending onReady callbacks
+	 * are dropped.
+	 */
+	void disconnect();
+
+	void startRanging(R region);
+
+	void stopRanging(R region);
+
+	void startMonitoring(R region);
+
+	void stopMonitoring(R region);
+
+	void startNearableDiscovery();
+
+	void startTelemetryDiscovery();
+
+	void stopTelemetryDiscovery();
+}
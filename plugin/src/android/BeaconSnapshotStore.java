@@ -0,0 +1,310 @@
+/*
+Beacon snapshot persistence for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the last ranged beacons per region and persists them in a small
+ * binary file, so that ranging can start with a cached result while the
+ * first scan is still running.
+ *
+ * Recording a snapshot only copies a few numbers per beacon; the file is
+ * read and written on an executor, at most once per save interval, and
+ * on flush.
+ */
+class BeaconSnapshotStore
+{
+	private static final String LOGTAG = "EstimoteBeacons";
+
+	private static final int FILE_MAGIC = 0x45425331; // "EBS1"
+	private static final int MAX_REGIONS = 32;
+	private static final int MAX_BEACONS = 128;
+
+	// A region is snapshotted at most this often.
+	private static final long RECORD_INTERVAL_MILLIS = 1000;
+
+	// The file is written at most this often, except on flush.
+	private static final long SAVE_INTERVAL_MILLIS = 10000;
+
+	/**
+	 * Beacons of one ranging cycle, as parallel arrays.
+	 */
+	static class Snapshot
+	{
+		final long savedAt;
+		final int count;
+		final long[] uuidMsb;
+		final long[] uuidLsb;
+		final int[] major;
+		final int[] minor;
+		final int[] rssi;
+		final int[] proximity;
+		final double[] distance;
+
+		Snapshot(long savedAt, int count)
+		{
+			this.savedAt = savedAt;
+			this.count = count;
+			uuidMsb = new long[count];
+			uuidLsb = new long[count];
+			major = new int[count];
+			minor = new int[count];
+			rssi = new int[count];
+			proximity = new int[count];
+			distance = new double[count];
+		}
+
+		UUID uuid(int i)
+		{
+			return new UUID(uuidMsb[i], uuidLsb[i]);
+		}
+	}
+
+	private final File mFile;
+	private final Executor mExecutor;
+
+	// Guarded by this.
+	private final HashMap<String, Snapshot> mSnapshots = new HashMap<String, Snapshot>();
+	private boolean mLoaded = false;
+	private boolean mDirty = false;
+	private boolean mSavePending = false;
+	private long mLastSave = 0;
+
+	BeaconSnapshotStore(File file, Executor executor)
+	{
+		mFile = file;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Record the beacons of a ranging cycle. Called on the hot path,
+	 * so it is throttled per region and never touches the file itself.
+	 */
+	void record(String regionKey, ScanCycle cycle, long now)
+	{
+		synchronized (this) {
+			Snapshot previous = mSnapshots.get(regionKey);
+			if (null != previous && now - previous.savedAt < RECORD_INTERVAL_MILLIS) {
+				return;
+			}
+		}
+
+		// Build outside the lock.
+		int count = 0;
+		Snapshot snapshot = new Snapshot(now, Math.min(cycle.count, MAX_BEACONS));
+		for (int i = 0; i < cycle.count; ++i) {
+			if (count == snapshot.count) {
+				break;
+			}
+			if (!cycle.hasDistance(i)) {
+				continue;
+			}
+			UUID uuid = cycle.uuid(i);
+			snapshot.uuidMsb[count] = uuid.getMostSignificantBits();
+			snapshot.uuidLsb[count] = uuid.getLeastSignificantBits();
+			snapshot.major[count] = cycle.major[i];
+			snapshot.minor[count] = cycle.minor[i];
+			snapshot.rssi[count] = cycle.rssi[i];
+			snapshot.proximity[count] = cycle.proximity[i];
+			snapshot.distance[count] = cycle.distance[i];
+			++count;
+		}
+		if (count < snapshot.count) {
+			snapshot = trim(snapshot, count);
+		}
+
+		synchronized (this) {
+			if (!mSnapshots.containsKey(regionKey) && mSnapshots.size() >= MAX_REGIONS) {
+				evictOldest();
+			}
+			mSnapshots.put(regionKey, snapshot);
+			mDirty = true;
+			if (!mSavePending && now - mLastSave >= SAVE_INTERVAL_MILLIS) {
+				scheduleSave();
+			}
+		}
+	}
+
+	/**
+	 * Last snapshot of a region, or null. Loads the file on first use,
+	 * so call it off the main thread.
+	 */
+	synchronized Snapshot get(String regionKey)
+	{
+		ensureLoaded();
+		return mSnapshots.get(regionKey);
+	}
+
+	/**
+	 * Write unsaved snapshots now, on the executor.
+	 */
+	synchronized void flush()
+	{
+		if (mDirty && !mSavePending) {
+			scheduleSave();
+		}
+	}
+
+	private void scheduleSave()
+	{
+		mSavePending = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	private void save()
+	{
+		HashMap<String, Snapshot> snapshots;
+		synchronized (this) {
+			// Keep snapshots of regions not ranged in this run.
+			ensureLoaded();
+			snapshots = new HashMap<String, Snapshot>(mSnapshots);
+			mDirty = false;
+			mSavePending = false;
+			mLastSave = System.currentTimeMillis();
+		}
+
+		// Write to a temporary file and rename, so a crash never
+		// leaves a truncated file behind.
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(snapshots.size());
+			for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+				Snapshot s = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(s.savedAt);
+				out.writeShort(s.count);
+				for (int i = 0; i < s.count; ++i) {
+					out.writeLong(s.uuidMsb[i]);
+					out.writeLong(s.uuidLsb[i]);
+					out.writeShort(s.major[i]);
+					out.writeShort(s.minor[i]);
+					out.writeByte(s.rssi[i]);
+					out.writeByte(s.proximity[i]);
+					out.writeFloat((float) s.distance[i]);
+				}
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(mFile)) {
+				Log.e(LOGTAG, "BeaconSnapshotStore could not replace " + mFile);
+			}
+		}
+		catch (IOException e) {
+			Log.e(LOGTAG, "BeaconSnapshotStore save error:", e);
+		}
+		finally {
+			closeQuietly(out);
+		}
+	}
+
+	private void ensureLoaded()
+	{
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if (!mFile.exists()) {
+			return;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if (in.readInt() != FILE_MAGIC) {
+				return;
+			}
+			int regions = in.readInt();
+			for (int r = 0; r < regions && r < MAX_REGIONS; ++r) {
+				String key = in.readUTF();
+				long savedAt = in.readLong();
+				int count = in.readUnsignedShort();
+				Snapshot s = new Snapshot(savedAt, count);
+				for (int i = 0; i < count; ++i) {
+					s.uuidMsb[i] = in.readLong();
+					s.uuidLsb[i] = in.readLong();
+					s.major[i] = in.readUnsignedShort();
+					s.minor[i] = in.readUnsignedShort();
+					s.rssi[i] = in.readByte();
+					s.proximity[i] = in.readByte();
+					s.distance[i] = in.readFloat();
+				}
+				// Snapshots recorded since startup are newer.
+				if (!mSnapshots.containsKey(key) && mSnapshots.size() < MAX_REGIONS) {
+					mSnapshots.put(key, s);
+				}
+			}
+		}
+		catch (IOException e) {
+			// Corrupt or old file, start over.
+			Log.e(LOGTAG, "BeaconSnapshotStore load error:", e);
+		}
+		finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void evictOldest()
+	{
+		String oldest = null;
+		long oldestTime = Long.MAX_VALUE;
+		for (Map.Entry<String, Snapshot> entry : mSnapshots.entrySet()) {
+			if (entry.getValue().savedAt < oldestTime) {
+				oldestTime = entry.getValue().savedAt;
+				oldest = entry.getKey();
+			}
+		}
+		if (null != oldest) {
+			mSnapshots.remove(oldest);
+		}
+	}
+
+	private static Snapshot trim(Snapshot s, int count)
+	{
+		Snapshot trimmed = new Snapshot(s.savedAt, count);
+		System.arraycopy(s.uuidMsb, 0, trimmed.uuidMsb, 0, count);
+		System.arraycopy(s.uuidLsb, 0, trimmed.uuidLsb, 0, count);
+		System.arraycopy(s.major, 0, trimmed.major, 0, count);
+		System.arraycopy(s.minor, 0, trimmed.minor, 0, count);
+		System.arraycopy(s.rssi, 0, trimmed.rssi, 0, count);
+		System.arraycopy(s.proximity, 0, trimmed.proximity, 0, count);
+		System.arraycopy(s.distance, 0, trimmed.distance, 0, count);
+		return trimmed;
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (null != closeable) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+}
@@ -0,0 +1,643 @@
+/*
+Local WebSocket streaming for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal WebSocket server on the loopback interface that streams
+ * ranging, monitoring and nearable events to the page without going
+ * through the Cordova bridge.
+ *
+ * Clients connect to ws://127.0.0.1:port/?token=token, the token is
+ * random per server so other apps on the device cannot listen in.
+ * Each event is one text frame:
+ *
+ *	 { type: "ranging" | "monitoring" | "nearables", data: event }
+ *
+ * where data has the same format as the corresponding plugin callback.
+ * A client can restrict what it receives by sending a text frame:
+ *
+ *	 { types: [ event types ], regions: [ region identifiers ] }
+ *
+ * Missing lists mean everything. Each connection has a bounded send
+ * queue; when a slow client falls behind, the oldest events are dropped.
+ * Each connection also takes two threads, so the number of connections
+ * is capped and clients that stall in the handshake are dropped.
+ */
+class BeaconStreamServer
+{
+	private static final String LOGTAG = "EstimoteBeacons";
+
+	static final String TYPE_RANGING = "ranging";
+	static final String TYPE_MONITORING = "monitoring";
+	static final String TYPE_NEARABLES = "nearables";
+
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Limits for what clients send, which is only handshakes and filters.
+	private static final int MAX_HEADER_BYTES = 8192;
+	private static final int MAX_CLIENT_FRAME_BYTES = 65536;
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+	// Sockets accepted and not closed yet, including handshakes.
+	private static final int MAX_CONNECTIONS = 8;
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private final ServerSocket mServerSocket;
+	private final String mToken;
+	private final int mQueueSize;
+	private final CopyOnWriteArrayList<Connection> mConnections =
+			new CopyOnWriteArrayList<Connection>();
+	private final AtomicInteger mSockets = new AtomicInteger();
+	private volatile long mRejected = 0;
+	private volatile boolean mRunning = false;
+
+	/**
+	 * Bind the server socket.
+	 * @param port port on 127.0.0.1, 0 for any free port.
+	 * @param queueSize maximum number of queued events per connection.
+	 */
+	BeaconStreamServer(int port, int queueSize) throws IOException
+	{
+		mServerSocket = new ServerSocket(port, 8, InetAddress.getByName("127.0.0.1"));
+		mQueueSize = Math.max(1, queueSize);
+
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder(32);
+		for (byte b : random) {
+			token.append(String.format(Locale.US, "%02x", b & 0xFF));
+		}
+		mToken = token.toString();
+	}
+
+	int port()
+	{
+		return mServerSocket.getLocalPort();
+	}
+
+	String token()
+	{
+		return mToken;
+	}
+
+	String url()
+	{
+		return "ws://127.0.0.1:" + port() + "/?token=" + mToken;
+	}
+
+	/**
+	 * Start accepting connections on a background thread.
+	 */
+	synchronized void start()
+	{
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "EstimoteStreamServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Close the server socket and all connections.
+	 */
+	synchronized void stop()
+	{
+		mRunning = false;
+		try {
+			mServerSocket.close();
+		}
+		catch (IOException e) {
+			Log.e(LOGTAG, "BeaconStreamServer close error:", e);
+		}
+		for (Connection connection : mConnections) {
+			connection.close();
+		}
+		mConnections.clear();
+	}
+
+	/**
+	 * True if some connected client wants events of type, so callers
+	 * can skip serializing events nobody receives.
+	 */
+	boolean wants(String type)
+	{
+		for (Connection connection : mConnections) {
+			if (connection.accepts(type, null)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queue an event to all clients whose filters accept it.
+	 * @param regionIdentifier region of the event, null for nearables.
+	 * @param json event data as JSON text.
+	 */
+	void publish(String type, String regionIdentifier, String json)
+	{
+		byte[] frame = null;
+		for (Connection connection : mConnections) {
+			if (!connection.accepts(type, regionIdentifier)) {
+				continue;
+			}
+			if (null == frame) {
+				// Encode once for all connections.
+				StringBuilder sb = new StringBuilder(json.length() + 32);
+				sb.append("{\"type\":\"").append(type).append("\",\"data\":");
+				sb.append(json).append('}');
+				frame = encodeFrame(OPCODE_TEXT, sb.toString().getBytes(UTF8));
+			}
+			connection.enqueue(frame);
+		}
+	}
+
+	/**
+	 * Connection statistics.
+	 *
+	 * format:
+	 * { port, rejected, connections: [ { queued, sent, dropped } ] }
+	 *
+	 * rejected counts connections refused because too many were open.
+	 */
+	JSONObject statsToJSON() throws JSONException
+	{
+		JSONArray connections = new JSONArray();
+		for (Connection connection : mConnections) {
+			connections.put(connection.statsToJSON());
+		}
+		JSONObject json = new JSONObject();
+		json.put("port", port());
+		json.put("rejected", mRejected);
+		json.put("connections", connections);
+		return json;
+	}
+
+	private void acceptLoop()
+	{
+		while (mRunning) {
+			try {
+				final Socket socket = mServerSocket.accept();
+				if (mSockets.incrementAndGet() > MAX_CONNECTIONS) {
+					mSockets.decrementAndGet();
+					++mRejected;
+					closeQuietly(socket);
+					continue;
+				}
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "EstimoteStreamReader");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch (IOException e) {
+				if (mRunning) {
+					Log.e(LOGTAG, "BeaconStreamServer accept error:", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Do the handshake, then read client frames until the connection
+	 * closes. Runs on the connection's reader thread.
+	 */
+	private void serve(Socket socket)
+	{
+		Connection connection = null;
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			// A client that never finishes the handshake must not hold
+			// a thread and a connection slot forever.
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			if (!handshake(in, out)) {
+				socket.close();
+				return;
+			}
+			socket.setSoTimeout(0);
+
+			connection = new Connection(socket, out, mQueueSize);
+			mConnections.add(connection);
+			if (!mRunning) {
+				// Raced with stop().
+				connection.close();
+				return;
+			}
+			connection.startWriter();
+
+			readFrames(in, connection);
+		}
+		catch (IOException e) {
+			// Client went away.
+		}
+		finally {
+			if (null != connection) {
+				mConnections.remove(connection);
+				connection.close();
+			}
+			else {
+				closeQuietly(socket);
+			}
+			mSockets.decrementAndGet();
+		}
+	}
+
+	private static void closeQuietly(Socket socket)
+	{
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// Ignore.
+		}
+	}
+
+	/**
+	 * Read the HTTP upgrade request and answer it.
+	 * Returns false if the request was rejected.
+	 */
+	private boolean handshake(InputStream in, OutputStream out) throws IOException
+	{
+		String requestLine = null;
+		String key = null;
+		int total = 0;
+		while (true) {
+			String line = readLine(in);
+			if (null == line) {
+				return false;
+			}
+			total += line.length() + 2;
+			if (total > MAX_HEADER_BYTES) {
+				return false;
+			}
+			if (line.isEmpty()) {
+				break;
+			}
+			if (null == requestLine) {
+				requestLine = line;
+				continue;
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim()
+					.equalsIgnoreCase("Sec-WebSocket-Key")) {
+				key = line.substring(colon + 1).trim();
+			}
+		}
+
+		if (null == requestLine
+				|| !requestLine.startsWith("GET ")
+				|| !requestLine.contains("token=" + mToken)
+				|| null == key) {
+			out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes(UTF8));
+			out.flush();
+			return false;
+		}
+
+		String response = "HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+		out.write(response.getBytes(UTF8));
+		out.flush();
+		return true;
+	}
+
+	private static String acceptKey(String key)
+	{
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(UTF8));
+			return Base64.encodeToString(digest, Base64.NO_WRAP);
+		}
+		catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available on Android.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException
+	{
+		StringBuilder sb = new StringBuilder(64);
+		while (true) {
+			int c = in.read();
+			if (c < 0) {
+				return null;
+			}
+			if (c == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() >= MAX_HEADER_BYTES) {
+				return null;
+			}
+			sb.append((char) c);
+		}
+	}
+
+	private void readFrames(InputStream in, Connection connection) throws IOException
+	{
+		while (mRunning) {
+			int b0 = in.read();
+			int b1 = in.read();
+			if (b0 < 0 || b1 < 0) {
+				return;
+			}
+			int opcode = b0 & 0x0F;
+			boolean masked = (b1 & 0x80) != 0;
+			long length = b1 & 0x7F;
+			if (length == 126) {
+				length = (readByte(in) << 8) | readByte(in);
+			}
+			else if (length == 127) {
+				length = 0;
+				for (int i = 0; i < 8; ++i) {
+					length = (length << 8) | readByte(in);
+				}
+			}
+			if (!masked || length > MAX_CLIENT_FRAME_BYTES) {
+				// Clients must mask, and only send small frames.
+				return;
+			}
+
+			byte[] mask = new byte[4];
+			readFully(in, mask);
+			byte[] payload = new byte[(int) length];
+			readFully(in, payload);
+			for (int i = 0; i < payload.length; ++i) {
+				payload[i] ^= mask[i & 3];
+			}
+
+			switch (opcode) {
+				case OPCODE_TEXT:
+					connection.setFilter(new String(payload, UTF8));
+					break;
+				case OPCODE_PING:
+					connection.write(encodeFrame(OPCODE_PONG, payload));
+					break;
+				case OPCODE_CLOSE:
+					connection.write(encodeFrame(OPCODE_CLOSE, new byte[0]));
+					return;
+				case OPCODE_CONTINUATION:
+				default:
+					// Filters fit in one frame, ignore anything else.
+					break;
+			}
+		}
+	}
+
+	private static int readByte(InputStream in) throws IOException
+	{
+		int b = in.read();
+		if (b < 0) {
+			throw new IOException("Unexpected end of stream");
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer) throws IOException
+	{
+		int offset = 0;
+		while (offset < buffer.length) {
+			int n = in.read(buffer, offset, buffer.length - offset);
+			if (n < 0) {
+				throw new IOException("Unexpected end of stream");
+			}
+			offset += n;
+		}
+	}
+
+	/**
+	 * Unmasked server frame, final fragment.
+	 */
+	private static byte[] encodeFrame(int opcode, byte[] payload)
+	{
+		int length = payload.length;
+		int headerLength = (length < 126) ? 2 : (length <= 0xFFFF ? 4 : 10);
+		byte[] frame = new byte[headerLength + length];
+		frame[0] = (byte) (0x80 | opcode);
+		if (length < 126) {
+			frame[1] = (byte) length;
+		}
+		else if (length <= 0xFFFF) {
+			frame[1] = 126;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		}
+		else {
+			frame[1] = 127;
+			for (int i = 0; i < 8; ++i) {
+				frame[9 - i] = (byte) (((long) length) >>> (8 * i));
+			}
+		}
+		System.arraycopy(payload, 0, frame, headerLength, length);
+		return frame;
+	}
+
+	/**
+	 * One client connection with its filter and bounded send queue,
+	 * drained by a writer thread.
+	 */
+	private static class Connection
+	{
+		private final Socket mSocket;
+		private final OutputStream mOut;
+		private final int mQueueSize;
+
+		// Guarded by mQueue.
+		private final ArrayDeque<byte[]> mQueue;
+		private boolean mClosed = false;
+		private long mSent = 0;
+		private long mDropped = 0;
+
+		// Null means everything.
+		private volatile Set<String> mTypes;
+		private volatile Set<String> mRegions;
+
+		Connection(Socket socket, OutputStream out, int queueSize)
+		{
+			mSocket = socket;
+			mOut = out;
+			mQueueSize = queueSize;
+			mQueue = new ArrayDeque<byte[]>(queueSize);
+		}
+
+		boolean accepts(String type, String regionIdentifier)
+		{
+			Set<String> types = mTypes;
+			Set<String> regions = mRegions;
+			return (null == types || types.contains(type))
+					&& (null == regionIdentifier
+						|| null == regions
+						|| regions.contains(regionIdentifier));
+		}
+
+		void setFilter(String text)
+		{
+			try {
+				JSONObject json = new JSONObject(text);
+				mTypes = toSet(json.optJSONArray("types"));
+				mRegions = toSet(json.optJSONArray("regions"));
+			}
+			catch (JSONException e) {
+				Log.e(LOGTAG, "BeaconStreamServer invalid filter: " + text);
+			}
+		}
+
+		private static Set<String> toSet(JSONArray array) throws JSONException
+		{
+			if (null == array) {
+				return null;
+			}
+			Set<String> set = new HashSet<String>();
+			for (int i = 0; i < array.length(); ++i) {
+				set.add(array.getString(i));
+			}
+			return set;
+		}
+
+		/**
+		 * Queue a frame, dropping the oldest one if the queue is full.
+		 */
+		void enqueue(byte[] frame)
+		{
+			synchronized (mQueue) {
+				if (mClosed) {
+					return;
+				}
+				if (mQueue.size() >= mQueueSize) {
+					mQueue.pollFirst();
+					++mDropped;
+				}
+				mQueue.addLast(frame);
+				mQueue.notify();
+			}
+		}
+
+		void startWriter()
+		{
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			}, "EstimoteStreamWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void writeLoop()
+		{
+			try {
+				while (true) {
+					byte[] frame;
+					synchronized (mQueue) {
+						while (mQueue.isEmpty() && !mClosed) {
+							mQueue.wait();
+						}
+						if (mClosed) {
+							return;
+						}
+						frame = mQueue.pollFirst();
+					}
+					write(frame);
+					synchronized (mQueue) {
+						++mSent;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// Closing.
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Write a frame directly, shared by the writer thread and
+		 * control replies from the reader thread.
+		 */
+		void write(byte[] frame) throws IOException
+		{
+			synchronized (mOut) {
+				mOut.write(frame);
+				mOut.flush();
+			}
+		}
+
+		void close()
+		{
+			synchronized (mQueue) {
+				mClosed = true;
+				mQueue.clear();
+				mQueue.notify();
+			}
+			try {
+				mSocket.close();
+			}
+			catch (IOException e) {
+				// Ignore.
+			}
+		}
+
+		JSONObject statsToJSON() throws JSONException
+		{
+			JSONObject json = new JSONObject();
+			synchronized (mQueue) {
+				json.put("queued", mQueue.size());
+				json.put("sent", mSent);
+				json.put("dropped", mDropped);
+			}
+			return json;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+Bluetooth adapter state tracking for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Follows Bluetooth adapter state changes through a broadcast receiver
+ * and reports them to a listener.
+ */
+class BluetoothStateMonitor extends BroadcastReceiver
+{
+	/**
+	 * Receives adapter state changes, on the main thread.
+	 */
+	interface Listener
+	{
+		void onBluetoothStateChanged(int state);
+	}
+
+	private final Context mContext;
+	private final Listener mListener;
+	private boolean mRegistered = false;
+
+	BluetoothStateMonitor(Context context, Listener listener)
+	{
+		mContext = context.getApplicationContext();
+		mListener = listener;
+	}
+
+	/**
+	 * Start receiving state changes.
+	 */
+	synchronized void start()
+	{
+		if (!mRegistered) {
+			mContext.registerReceiver(
+					this,
+					new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+			mRegistered = true;
+		}
+	}
+
+	/**
+	 * Stop receiving state changes.
+	 */
+	synchronized void stop()
+	{
+		if (mRegistered) {
+			mContext.unregisterReceiver(this);
+			mRegistered = false;
+		}
+	}
+
+	/**
+	 * Current adapter state, one of the BluetoothAdapter.STATE_* values.
+	 * STATE_OFF if the device has no Bluetooth adapter.
+	 */
+	static int currentState()
+	{
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		return (adapter == null) ? BluetoothAdapter.STATE_OFF : adapter.getState();
+	}
+
+	/**
+	 * Name of an adapter state as passed to JavaScript.
+	 */
+	static String stateName(int state)
+	{
+		switch (state) {
+			case BluetoothAdapter.STATE_ON: return "on";
+			case BluetoothAdapter.STATE_OFF: return "off";
+			case BluetoothAdapter.STATE_TURNING_ON: return "turningOn";
+			case BluetoothAdapter.STATE_TURNING_OFF: return "turningOff";
+			default: return "unknown";
+		}
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
+			mListener.onBluetoothStateChanged(intent.getIntExtra(
+					BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR));
+		}
+	}
+}
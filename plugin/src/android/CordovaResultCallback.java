@@ -0,0 +1,43 @@
+/*
+Cordova result callback for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+/**
+ * ResultCallback that sends to a Cordova CallbackContext.
+ */
+class CordovaResultCallback implements ResultCallback
+{
+	final CallbackContext callbackContext;
+
+	CordovaResultCallback(CallbackContext callbackContext)
+	{
+		this.callbackContext = callbackContext;
+	}
+
+	@Override
+	public void sendJson(String json)
+	{
+		PluginResult result = new BeaconJsonWriter.Result(PluginResult.Status.OK, json);
+		result.setKeepCallback(true);
+		callbackContext.sendPluginResult(result);
+	}
+
+	@Override
+	public void error(String message)
+	{
+		callbackContext.error(message);
+	}
+
+	@Override
+	public void clear()
+	{
+		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+		result.setKeepCallback(false);
+		callbackContext.sendPluginResult(result);
+	}
+}
@@ -8,6 +8,8 @@ package com.evothings;
 
 import android.app.Application;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import android.bluetooth.BluetoothAdapter;
@@ -22,6 +24,7 @@ import com.estimote.coresdk.observation.region.Region;
 import com.estimote.coresdk.cloud.model.*;
 import com.estimote.coresdk.observation.region.beacon.BeaconRegion;
 import com.estimote.coresdk.recognition.packets.Beacon;
+import com.estimote.coresdk.recognition.packets.EstimoteTelemetry;
 import com.estimote.coresdk.recognition.packets.Nearable;
 import com.estimote.coresdk.service.BeaconManager;
 import com.estimote.mgmtsdk.common.exceptions.EstimoteDeviceException;
@@ -33,21 +36,27 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.estimote.coresdk.common.config.EstimoteSDK.getAppId;
 import static com.estimote.coresdk.common.config.EstimoteSDK.getAppToken;
 import static com.estimote.coresdk.common.config.EstimoteSDK.getApplicationContext;
-import static com.estimote.coresdk.observation.region.RegionUtils.computeAccuracy;
-import static com.estimote.coresdk.observation.region.RegionUtils.computeProximity;
 
 /**
  * Plugin class for the Estimote Beacon plugin.
@@ -58,53 +67,348 @@ public class EstimoteBeacons extends CordovaPlugin
 	private static final String ESTIMOTE_PROXIMITY_UUID = "B9407F30-F5F8-466E-AFF9-25556B57FE6D";
 	private static final String ESTIMOTE_SAMPLE_REGION_ID = "EstimoteSampleRegion";
 	private static final int REQUEST_ENABLE_BLUETOOTH = 1;
-
-	private BeaconManager mBeaconManager;
+	private static final long DEFAULT_WARM_START_MAX_AGE_MILLIS = 3600000;
+
+	// Longest time an action waits for the main thread to create the
+	// beacon manager before it fails.
+	private static final long MAIN_THREAD_TIMEOUT_MILLIS = 5000;
+
+	// Created on the first action that needs it, see ensureBeaconManager.
+	// Scanning goes through mScanner and ranging through mRanging, the
+	// manager itself is only used to set listeners.
+	private volatile BeaconManager mBeaconManager;
+	private volatile BeaconScanner<BeaconRegion> mScanner;
+	private volatile RegionRanging<BeaconRegion> mRanging;
+
+	// True once the beacon manager and the state that goes with
+	// scanning are set up.
+	private volatile boolean mScanningReady = false;
 	private EstimoteSDK mEstimoteSDK;
+
+	// Credentials the SDK was last initialized with, guarded by mSdkLock.
+	private final Object mSdkLock = new Object();
+	private String mSdkCredentials;
+
+	// Startup cost, reported by plugin_startupStats. -1 until measured.
+	private volatile long mPluginInitNanos = -1;
+	private volatile long mBeaconManagerInitNanos = -1;
+	private volatile long mSdkInitNanos = -1;
 	private CordovaInterface  mCordovaInterface;
 
-	private ArrayList<Beacon> mRangedBeacons;
-	private BeaconConnected   mConnectedBeacon;
-	private boolean           mIsConnected = false;
+	// Beacons of the last ranging cycle, reused between cycles.
+	private final ScanCycle mScanCycle = new ScanCycle();
+	private volatile BeaconConnected mConnectedBeacon;
+
+	// Pooled beacon connections, created on first connect.
+	private BeaconConnectionManager mConnections;
+	private volatile BeaconConnectionManager.Session mConnectedSession;
 
 
 	// Maps and variables that keep track of Cordova callbacks.
-	private HashMap<String, CallbackContext> mRangingCallbackContexts =
-			new HashMap<String, CallbackContext>();
-	private HashMap<String, CallbackContext> mMonitoringCallbackContexts =
-			new HashMap<String, CallbackContext>();
+	// Actions change them on the JavaScript bridge thread while SDK
+	// listeners read them on the main thread, so maps shared with the
+	// listeners are concurrent and cleared in place, never replaced.
+	// Ranging and monitoring subscriptions, several per region.
+	private final RegionSubscriptions mRangingSubscriptions = new RegionSubscriptions();
+	private final RegionSubscriptions mMonitoringSubscriptions = new RegionSubscriptions();
+
+	// Ids for subscriptions made without an id from JavaScript,
+	// negative so they never clash with JavaScript ids.
+	private final AtomicInteger mNextNativeSubscriptionId = new AtomicInteger(-1);
+	private final ConcurrentHashMap<String, CallbackContext> mPositioningCallbackContexts =
+			new ConcurrentHashMap<String, CallbackContext>();
+
+	// Native indoor positioning, fed from ranging results.
+	private PositioningEngine mPositioningEngine = new PositioningEngine();
+	private final ConcurrentHashMap<String, PositioningEngine.Tracker> mPositioningTrackers =
+			new ConcurrentHashMap<String, PositioningEngine.Tracker>();
+
+	// RSSI fingerprint matching, fed from ranging results.
+	private volatile FingerprintIndex mFingerprintIndex;
+	private final ConcurrentHashMap<String, CallbackContext> mFingerprintCallbackContexts =
+			new ConcurrentHashMap<String, CallbackContext>();
+	private final ConcurrentHashMap<String, FingerprintSession> mFingerprintSessions =
+			new ConcurrentHashMap<String, FingerprintSession>();
+
+	// Presence aggregation, fed from ranging and monitoring results.
+	private volatile PresenceAggregator mPresenceAggregator;
+	private volatile CallbackContext mPresenceCallbackContext;
+	private volatile long mPresenceIntervalMillis;
+	private final ConcurrentHashMap<String, BeaconRegion> mPresenceRegions =
+			new ConcurrentHashMap<String, BeaconRegion>();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	// Trigger rules, fed from ranging and nearable results.
+	private volatile TriggerEngine mTriggerEngine;
+	private volatile CallbackContext mTriggerCallbackContext;
+	private final ConcurrentHashMap<String, BeaconRegion> mTriggerRegions =
+			new ConcurrentHashMap<String, BeaconRegion>();
+
+	// Regions ranged natively for a while after an enter, and the
+	// tasks that end the bursts. Changed on the main thread.
+	private final ConcurrentHashMap<String, BeaconRegion> mBurstRegions =
+			new ConcurrentHashMap<String, BeaconRegion>();
+	private final ConcurrentHashMap<String, Runnable> mBurstEnds =
+			new ConcurrentHashMap<String, Runnable>();
+
+	// Native uses that keep a region ranged besides its subscriptions.
+	private final RegionRanging.Uses mNativeRangingUses = new RegionRanging.Uses() {
+		@Override
+		public boolean inUse(String key) {
+			return mPositioningCallbackContexts.containsKey(key)
+					|| mFingerprintCallbackContexts.containsKey(key)
+					|| mPresenceRegions.containsKey(key)
+					|| mTriggerRegions.containsKey(key)
+					|| mBurstRegions.containsKey(key);
+		}
+
+		@Override
+		public void clear() {
+			mPositioningCallbackContexts.clear();
+			mFingerprintCallbackContexts.clear();
+			mPresenceRegions.clear();
+			mTriggerRegions.clear();
+			mBurstRegions.clear();
+		}
+	};
+
+	// Longest ranging burst after an enter.
+	private static final long MAX_BURST_MILLIS = 60000;
+
+	// Nearable discovery, shared by nearable ranging and trigger rules.
+	private volatile CallbackContext mNearablesCallbackContext;
+	private volatile boolean mNearableDiscoveryStarted = false;
+
+	// Fleet health from telemetry, reported in periodic summaries.
+	private volatile FleetHealth mFleetHealth;
+	private volatile CallbackContext mHealthCallbackContext;
+	private volatile long mHealthIntervalMillis;
+
+	// Bluetooth adapter state, followed to pause and resume scanning.
+	private BluetoothStateMonitor mBluetoothStateMonitor;
+	private volatile boolean mBluetoothPaused = false;
+	private final CopyOnWriteArrayList<CallbackContext> mBluetoothStateCallbackContexts =
+			new CopyOnWriteArrayList<CallbackContext>();
+
+	// Regions monitored on the SDK, for resuming after Bluetooth comes
+	// back. Ranged regions are kept by mRanging.
+	private final ConcurrentHashMap<String, BeaconRegion> mMonitoredRegions =
+			new ConcurrentHashMap<String, BeaconRegion>();
+
+	private volatile CallbackContext mBluetoothStateCallbackContext;
+
+	// Optional RSSI history of ranged beacons.
+	private volatile RssiHistory mRssiHistory;
+
+	// Optional export of ranged beacons into segment files.
+	private volatile SightingLog mSightingLog;
+
+	// Optional rotation of monitored regions through a bounded
+	// working set on the SDK, null when all regions are monitored.
+	private volatile RegionScheduler mRegionScheduler;
+	private volatile long mScheduleSliceMillis;
+	private final Runnable mScheduleTick = new Runnable() {
+		@Override
+		public void run() {
+			rotateRegions();
+		}
+	};
+
+	// Watchdog restarting ranged regions whose callbacks stop
+	// arriving, checked every scan period while regions are ranged.
+	private static final long WATCHDOG_SCAN_PERIOD_MILLIS = 1000;
+	private final RangingWatchdog mWatchdog = new RangingWatchdog(
+			WATCHDOG_SCAN_PERIOD_MILLIS, 10, 5000, 300000);
+	private final Runnable mWatchdogTick = new Runnable() {
+		@Override
+		public void run() {
+			checkRanging();
+		}
+	};
+
+	// Last ranged beacons of warm start regions, persisted so that
+	// ranging can start with a cached result.
+	private BeaconSnapshotStore mSnapshotStore;
+	private final Set<String> mSnapshotRegions =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-	private CallbackContext   mBluetoothStateCallbackContext;
-	private CallbackContext   mBeaconConnectionCallback;
-	private CallbackContext   mBeaconDisconnectionCallback;
+	// Optional local WebSocket server streaming results to the page.
+	private volatile BeaconStreamServer mStreamServer;
+
+	// Table of JavaScript actions, with per-action call statistics.
+	private ActionRegistry mActions;
 
-	// todo: consider using pluginInitialize instead, per Cordova recommendation
-	//   https://github.com/apache/cordova-android/blob/master/framework/src/org/apache/cordova/CordovaPlugin.java#L60-L61
 	/**
-	 * Plugin initialiser.
+	 * Plugin initialiser. Kept cheap since it runs at app startup;
+	 * the beacon manager and scanning state are set up on the first
+	 * action that needs them, see ensureBeaconManager.
 	 */
 	@Override
-	public void initialize(final CordovaInterface cordova, CordovaWebView webView)
+	protected void pluginInitialize()
 	{
-		Log.i(LOGTAG, "initialize");
+		Log.i(LOGTAG, "pluginInitialize");
 
-		super.initialize(cordova, webView);
+		long start = System.nanoTime();
 
 		mCordovaInterface = cordova;
 		mCordovaInterface.setActivityResultCallback(this);
 
-		if (mBeaconManager == null) {
-			mBeaconManager = new BeaconManager(cordova.getActivity());
+		mActions = new ActionRegistry(webView);
+		registerActions();
+
+		mPluginInitNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * True if an action needs the beacon manager. Unknown actions,
+	 * Bluetooth state, diagnostics and stream actions do not.
+	 */
+	private boolean needsBeaconManager(String action)
+	{
+		return mActions.has(action)
+				&& !(action.startsWith("bluetooth_")
+					|| action.startsWith("plugin_")
+					|| action.startsWith("stream_"));
+	}
+
+	/**
+	 * Create the beacon manager and the state that goes with scanning,
+	 * if not done yet. The manager is created on the main thread, where
+	 * the SDK delivers its callbacks. Returns false if the main thread
+	 * did not get to it in time, the next action tries again.
+	 */
+	private boolean ensureBeaconManager()
+	{
+		if (mScanningReady) {
+			return true;
+		}
+
+		Log.i(LOGTAG, "ensureBeaconManager");
+
+		long start = System.nanoTime();
+
+		boolean created = runOnMainThreadAndWait(new Runnable() {
+			@Override
+			public void run() {
+				if (mBeaconManager != null) {
+					return;
+				}
+				BeaconManager manager = new BeaconManager(cordova.getActivity());
+				manager.setErrorListener(new BeaconManager.ErrorListener() {
+					@Override
+					public void onError(Integer errorId) {
+						Log.e(LOGTAG, "BeaconManager error: " + errorId);
+						mWatchdog.onError(null == errorId ? 0 : errorId);
+					}
+				});
+
+				// One listener each for all ranged and monitored regions,
+				// results are dispatched by region key.
+				manager.setRangingListener(new PluginRangingListener());
+				manager.setMonitoringListener(new PluginMonitoringListener());
+				mBeaconManager = manager;
+
+				BeaconScanner<BeaconRegion> scanner = new SdkBeaconScanner(manager);
+				mRanging = new RegionRanging<BeaconRegion>(
+						scanner, mRangingSubscriptions, mNativeRangingUses);
+				mScanner = scanner;
+			}
+		}, MAIN_THREAD_TIMEOUT_MILLIS);
+		if (!created) {
+			Log.e(LOGTAG, "ensureBeaconManager timed out waiting for the main thread");
+			return false;
+		}
+
+		mSnapshotStore = new BeaconSnapshotStore(
+				new File(cordova.getActivity().getFilesDir(), "beacon-snapshots.bin"),
+				cordova.getThreadPool());
+
+		ensureBluetoothStateMonitor();
+		if (mBluetoothPaused) {
+			mRanging.pause();
+		}
+
+		mBeaconManagerInitNanos = System.nanoTime() - start;
+		mScanningReady = true;
+		return true;
+	}
+
+	/**
+	 * Start following Bluetooth adapter state, if not done yet.
+	 */
+	private void ensureBluetoothStateMonitor()
+	{
+		if (mBluetoothStateMonitor != null) {
+			return;
 		}
+		mBluetoothStateMonitor = new BluetoothStateMonitor(
+				cordova.getActivity(),
+				new BluetoothStateMonitor.Listener() {
+					@Override
+					public void onBluetoothStateChanged(int state) {
+						handleBluetoothStateChange(state);
+					}
+				});
+		mBluetoothStateMonitor.start();
+		mBluetoothPaused = (BluetoothAdapter.STATE_ON != BluetoothStateMonitor.currentState());
+	}
 
-		mBeaconManager.setErrorListener(new BeaconManager.ErrorListener() {
+	/**
+	 * Run on the main thread and wait for it to finish, at most
+	 * timeoutMillis. Returns false if it did not finish in time or the
+	 * wait was interrupted, the runnable may then still run later.
+	 */
+	private boolean runOnMainThreadAndWait(final Runnable runnable, long timeoutMillis)
+	{
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			runnable.run();
+			return true;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		mHandler.post(new Runnable() {
 			@Override
-			public void onError(Integer errorId) {
-				Log.e(LOGTAG, "BeaconManager error: " + errorId);
+			public void run() {
+				try {
+					runnable.run();
+				}
+				finally {
+					done.countDown();
+				}
 			}
 		});
+		try {
+			return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 
-		mRangedBeacons = new ArrayList<Beacon>();
+	/**
+	 * Initialize the Estimote SDK on the thread pool, unless it already
+	 * is initialized with the same credentials, then run next, if not
+	 * null, on the pool thread.
+	 */
+	private void initializeSdk(final String appId, final String appToken, final Runnable next)
+	{
+		cordova.getThreadPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mSdkLock) {
+					String credentials = appId + ":" + appToken;
+					if (!credentials.equals(mSdkCredentials)) {
+						long start = System.nanoTime();
+						EstimoteSDK.initialize(cordova.getActivity(), appId, appToken);
+						mSdkInitNanos = System.nanoTime() - start;
+						mSdkCredentials = credentials;
+					}
+				}
+				if (null != next) {
+					next.run();
+				}
+			}
+		});
 	}
 
 	/**
@@ -117,8 +421,58 @@ public class EstimoteBeacons extends CordovaPlugin
 
 		disconnectBeaconManager();
 
-		mRangingCallbackContexts = new HashMap<String, CallbackContext>();
-		mMonitoringCallbackContexts = new HashMap<String, CallbackContext>();
+		mMonitoringSubscriptions.clear();
+		mPositioningCallbackContexts.clear();
+		mPositioningTrackers.clear();
+		mFingerprintCallbackContexts.clear();
+		mFingerprintSessions.clear();
+		stopPresence();
+		stopTriggers();
+		stopHealthScan();
+		mNearablesCallbackContext = null;
+		mBluetoothStateCallbackContexts.clear();
+		mMonitoredRegions.clear();
+		mSnapshotRegions.clear();
+		mHandler.removeCallbacks(mScheduleTick);
+		mRegionScheduler = null;
+		mHandler.removeCallbacks(mWatchdogTick);
+		mWatchdog.clear();
+		for (Runnable end : mBurstEnds.values()) {
+			mHandler.removeCallbacks(end);
+		}
+		mBurstEnds.clear();
+		mBurstRegions.clear();
+		if (mSnapshotStore != null) {
+			mSnapshotStore.flush();
+		}
+		stopStreamServer();
+		stopExport();
+	}
+
+	/**
+	 * Called when the app goes to the background.
+	 */
+	@Override
+	public void onPause(boolean multitasking) {
+		// The process may be killed while in the background.
+		if (mSnapshotStore != null) {
+			mSnapshotStore.flush();
+		}
+		SightingLog sightings = mSightingLog;
+		if (sightings != null) {
+			sightings.flush();
+		}
+
+		// The scan period changes in the background.
+		mWatchdog.rearm(System.currentTimeMillis());
+	}
+
+	/**
+	 * Called when the app comes back to the foreground.
+	 */
+	@Override
+	public void onResume(boolean multitasking) {
+		mWatchdog.rearm(System.currentTimeMillis());
 	}
 
 	/**
@@ -126,6 +480,14 @@ public class EstimoteBeacons extends CordovaPlugin
 	  */
 	public void onDestroy() {
 		Log.i(LOGTAG, "onDestroy");
+		if (mBluetoothStateMonitor != null) {
+			mBluetoothStateMonitor.stop();
+		}
+		stopStreamServer();
+		if (mSnapshotStore != null) {
+			mSnapshotStore.flush();
+		}
+		stopExport();
 		disconnectConnectedBeacon();
 		disconnectBeaconManager();
 	}
@@ -134,10 +496,15 @@ public class EstimoteBeacons extends CordovaPlugin
 	 * Disconnect from the beacon manager.
 	  */
 	private void disconnectBeaconManager() {
-		if (mBeaconManager != null && mIsConnected) {
-			mBeaconManager.disconnect();
-			mIsConnected = false;
+		// Ranging removes its subscriptions and native uses,
+		// and disconnects the scanner.
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (ranging != null) {
+			ranging.reset();
 		}
+
+		// Nearable discovery ends with the connection.
+		mNearableDiscoveryStarted = false;
 	}
 
 	/**
@@ -150,44 +517,386 @@ public class EstimoteBeacons extends CordovaPlugin
 			final CallbackContext callbackContext)
 			throws JSONException
 	{
-		if ("beacons_startRangingBeaconsInRegion".equals(action)) {
-			startRangingBeaconsInRegion(args, callbackContext);
-		}
-		else if ("beacons_stopRangingBeaconsInRegion".equals(action)) {
-			stopRangingBeaconsInRegion(args, callbackContext);
+		if (needsBeaconManager(action) && !ensureBeaconManager()) {
+			callbackContext.error("Beacon manager could not be created");
+			return true;
 		}
-		else if ("beacons_startMonitoringForRegion".equals(action)) {
-			startMonitoringForRegion(args, callbackContext);
-		}
-		else if ("beacons_stopMonitoringForRegion".equals(action)) {
-			stopMonitoringForRegion(args, callbackContext);
-		}
-		else if ("beacons_setupAppIDAndAppToken".equals(action)) {
-			setupAppIDAndAppToken(args, callbackContext);
-		}
-		else if ("beacons_connectToBeacon".equals(action)) {
-			connectToBeacon(args, callbackContext);
-		}
-		else if ("beacons_disconnectConnectedBeacon".equals(action)) {
-			disconnectConnectedBeacon(args, callbackContext);
-		}
-		else if ("beacons_writeConnectedProximityUUID".equals(action)) {
-			writeConnectedProximityUUID(args, callbackContext);
-		}
-		else if ("beacons_writeConnectedMajor".equals(action)) {
-			writeConnectedMajor(args, callbackContext);
-		}
-		else if ("beacons_writeConnectedMinor".equals(action)) {
-			writeConnectedMinor(args, callbackContext);
+		return mActions.dispatch(action, args, callbackContext);
+	}
+
+	/**
+	 * Add the plugin actions to the action table.
+	 * New actions only need a handler registered here.
+	 */
+	private void registerActions()
+	{
+		mActions.register("beacons_startRangingBeaconsInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startRangingBeaconsInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_stopRangingBeaconsInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopRangingBeaconsInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_startMonitoringForRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startMonitoringForRegion(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_stopMonitoringForRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopMonitoringForRegion(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_startRangingRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startRangingRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_stopRangingRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopRangingRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_replaceRangedRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				replaceRangedRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_startMonitoringRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startMonitoringRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_stopMonitoringRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopMonitoringRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_replaceMonitoredRegions", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				replaceMonitoredRegions(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_watchdogStats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getWatchdogStats(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_setupAppIDAndAppToken", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				setupAppIDAndAppToken(args, callbackContext);
+			}
+		});
+		mActions.register("stream_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startStreamServer(args, callbackContext);
+			}
+		});
+		mActions.register("stream_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopStreamServer();
+				callbackContext.success();
+			}
+		});
+		mActions.register("stream_stats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				BeaconStreamServer server = mStreamServer;
+				if (null == server) {
+					callbackContext.error("Stream server not running");
+					return;
+				}
+				callbackContext.success(server.statsToJSON());
+			}
+		});
+		mActions.register("beacons_setMonitoringSchedule", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				setMonitoringSchedule(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_monitoringScheduleStats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getMonitoringScheduleStats(args, callbackContext);
+			}
+		});
+		mActions.register("history_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startRssiHistory(args, callbackContext);
+			}
+		});
+		mActions.register("history_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				mRssiHistory = null;
+				callbackContext.success();
+			}
+		});
+		mActions.register("history_query", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				queryRssiHistory(args, callbackContext);
+			}
+		});
+		mActions.register("history_stats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				RssiHistory history = mRssiHistory;
+				if (null == history) {
+					callbackContext.error("RSSI history not started");
+					return;
+				}
+				callbackContext.success(history.statsToJSON());
+			}
+		});
+		mActions.register("export_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startExport(args, callbackContext);
+			}
+		});
+		mActions.register("export_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopExport();
+				callbackContext.success();
+			}
+		});
+		mActions.register("export_drain", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				drainExport(args, callbackContext);
+			}
+		});
+		mActions.register("triggers_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startTriggers(args, callbackContext);
+			}
+		});
+		mActions.register("triggers_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopTriggers(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_grantCredits", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				grantCredits(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_connectToBeacon", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				connectToBeacon(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_disconnectConnectedBeacon", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				disconnectConnectedBeacon(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_configureConnections", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				configureConnections(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_connectionStats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getConnectionStats(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_writeConnectedProximityUUID", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				writeConnectedProximityUUID(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_writeConnectedMajor", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				writeConnectedMajor(args, callbackContext);
+			}
+		});
+		mActions.register("beacons_writeConnectedMinor", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				writeConnectedMinor(args, callbackContext);
+			}
+		});
+		mActions.register("bluetooth_bluetoothState", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				checkBluetoothState(args, callbackContext);
+			}
+		});
+		mActions.register("bluetooth_startStateUpdates", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startBluetoothStateUpdates(args, callbackContext);
+			}
+		});
+		mActions.register("bluetooth_stopStateUpdates", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopBluetoothStateUpdates(args, callbackContext);
+			}
+		});
+		mActions.register("nearables_startRangingForType", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startRangingNearables(args, callbackContext);
+			}
+		});
+		mActions.register("positioning_setFloorMap", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				setFloorMap(args, callbackContext);
+			}
+		});
+		mActions.register("positioning_startPositioningInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startPositioningInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("positioning_stopPositioningInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopPositioningInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("fingerprint_loadDatabase", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				loadFingerprintDatabase(args, callbackContext);
+			}
+		});
+		mActions.register("fingerprint_startMatchingInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startFingerprintMatchingInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("fingerprint_stopMatchingInRegion", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopFingerprintMatchingInRegion(args, callbackContext);
+			}
+		});
+		mActions.register("health_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startHealthScan(args, callbackContext);
+			}
+		});
+		mActions.register("health_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopHealthScan(args, callbackContext);
+			}
+		});
+		mActions.register("health_table", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getHealthTable(args, callbackContext);
+			}
+		});
+		mActions.register("presence_start", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				startPresence(args, callbackContext);
+			}
+		});
+		mActions.register("presence_stop", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				stopPresence(args, callbackContext);
+			}
+		});
+		mActions.register("presence_summary", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				sendPresenceSummary(args, callbackContext);
+			}
+		});
+		mActions.register("plugin_actionStats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getActionStats(args, callbackContext);
+			}
+		});
+		mActions.register("plugin_startupStats", new ActionRegistry.Handler() {
+			public void handle(CordovaArgs args, CallbackContext callbackContext)
+					throws JSONException {
+				getStartupStats(args, callbackContext);
+			}
+		});
+	}
+
+	/**
+	 * Return per-action call counts and latencies to JavaScript.
+	 * Pass true as first argument to reset the counters afterwards.
+	 */
+	private void getActionStats(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		callbackContext.success(mActions.statsToJSON());
+		if (cordovaArgs.optBoolean(0)) {
+			mActions.resetStats();
 		}
-		else if ("bluetooth_bluetoothState".equals(action)) {
-			checkBluetoothState(args, callbackContext);
-		}else if ("nearables_startRangingForType".equals(action)) {
-			startRangingNearables(args, callbackContext);
-		} else {
-			return false;
+	}
+
+	/**
+	 * Return the time spent initializing the plugin, the beacon manager
+	 * and the Estimote SDK. Parts not initialized yet are left out.
+	 *
+	 * format:
+	 * { pluginInitializeMicros, beaconManagerInitMicros, sdkInitMicros }
+	 */
+	private void getStartupStats(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		JSONObject json = new JSONObject();
+		putMicros(json, "pluginInitializeMicros", mPluginInitNanos);
+		putMicros(json, "beaconManagerInitMicros", mBeaconManagerInitNanos);
+		putMicros(json, "sdkInitMicros", mSdkInitNanos);
+		callbackContext.success(json);
+	}
+
+	private static void putMicros(JSONObject json, String name, long nanos)
+			throws JSONException
+	{
+		if (nanos >= 0) {
+			json.put(name, nanos / 1000);
 		}
-		return true;
 	}
 
 	/**
@@ -250,231 +959,1867 @@ public class EstimoteBeacons extends CordovaPlugin
 	public void onActivityResult(int requestCode, int resultCode, Intent intent)
 	{
 		Log.i(LOGTAG, "onActivityResult");
-		if (REQUEST_ENABLE_BLUETOOTH == requestCode) {
+		if (REQUEST_ENABLE_BLUETOOTH == requestCode
+				&& null != mBluetoothStateCallbackContext) {
 			sendResultForBluetoothEnabled(mBluetoothStateCallbackContext);
 			mBluetoothStateCallbackContext = null;
 		}
 	}
 
 	/**
-	 * Start ranging for beacons.
+	 * Subscribe to Bluetooth adapter state changes. The current state
+	 * is sent immediately, then every change.
 	 */
-	private void startRangingBeaconsInRegion(
+	private void startBluetoothStateUpdates(
 			CordovaArgs cordovaArgs,
 			final CallbackContext callbackContext)
 			throws JSONException
 	{
-		Log.i(LOGTAG, "startRangingBeaconsInRegion");
-
-		JSONObject json = cordovaArgs.getJSONObject(0);
-
-		final BeaconRegion region = createRegion(json);
+		Log.i(LOGTAG, "startBluetoothStateUpdates");
 
-		// TODO: How to handle case when region already ranged?
-		// Stop ranging then start again?
-		// Currently, if ranging callback already exists we
-		// do nothing, just return.
-		String key = regionHashMapKey(region);
-		if (null != mRangingCallbackContexts.get(key)) {
-			return;
-		}
+		ensureBluetoothStateMonitor();
+		mBluetoothStateCallbackContexts.add(callbackContext);
 
-		// Add callback to hash map.
-		mRangingCallbackContexts.put(key, callbackContext);
+		PluginResult r = new PluginResult(
+				PluginResult.Status.OK,
+				makeJSONBluetoothState(BluetoothStateMonitor.currentState()));
+		r.setKeepCallback(true);
+		callbackContext.sendPluginResult(r);
+	}
 
-		// Create ranging listener.
-		mBeaconManager.setRangingListener(new PluginRangingListener());
+	/**
+	 * Unsubscribe all Bluetooth adapter state callbacks.
+	 */
+	private void stopBluetoothStateUpdates(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopBluetoothStateUpdates");
 
-		// If connected start ranging immediately, otherwise first connect.
-		if (mIsConnected) {
-			startRanging(region, callbackContext);
+		for (CallbackContext callback : mBluetoothStateCallbackContexts) {
+			PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+			result.setKeepCallback(false);
+			callback.sendPluginResult(result);
 		}
-		else {
-			Log.i(LOGTAG, "connect");
+		mBluetoothStateCallbackContexts.clear();
 
-			// todo: consider whether this holds up to several startRanging(...)
-			//   calls before onServiceReady() fires
-			mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
-				@Override
-				public void onServiceReady() {
-					Log.i(LOGTAG, "onServiceReady");
-					mIsConnected = true;
-					startRanging(region, callbackContext);
-				}
+		callbackContext.success();
+	}
+
+	/**
+	 * Create JSON object representing a Bluetooth adapter state.
+	 */
+	private static JSONObject makeJSONBluetoothState(int state)
+			throws JSONException
+	{
+		JSONObject json = new JSONObject();
+		json.put("state", BluetoothStateMonitor.stateName(state));
+		json.put("enabled", BluetoothAdapter.STATE_ON == state);
+		return json;
+	}
+
+	/**
+	 * Pause scanning when Bluetooth goes off and resume all registered
+	 * regions when it comes back on, then notify subscribers.
+	 */
+	private void handleBluetoothStateChange(int state)
+	{
+		Log.i(LOGTAG, "Bluetooth state: " + BluetoothStateMonitor.stateName(state));
+
+		if (BluetoothAdapter.STATE_TURNING_OFF == state
+				|| BluetoothAdapter.STATE_OFF == state) {
+			pauseScanning();
+		}
+		else if (BluetoothAdapter.STATE_ON == state) {
+			resumeScanning();
+		}
+
+		try {
+			JSONObject json = makeJSONBluetoothState(state);
+			for (CallbackContext callback : mBluetoothStateCallbackContexts) {
+				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
+				r.setKeepCallback(true);
+				callback.sendPluginResult(r);
+			}
+		}
+		catch (JSONException e) {
+			Log.e(LOGTAG, "Bluetooth state error:", e);
+		}
+	}
+
+	/**
+	 * Stop all ranging and monitoring on the SDK, keeping the
+	 * registered callbacks so that scanning can be resumed.
+	 */
+	private void pauseScanning()
+	{
+		if (mBluetoothPaused) {
+			return;
+		}
+		mBluetoothPaused = true;
+
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (null == ranging) {
+			return;
+		}
+		ranging.pause();
+
+		if (!mScanner.isConnected()) {
+			return;
+		}
+		for (BeaconRegion region : registeredRegions()) {
+			try {
+				mScanner.stopMonitoring(region);
+			}
+			catch (Exception e) {
+				Log.e(LOGTAG, "pause stopMonitoring", e);
+			}
+		}
+	}
+
+	/**
+	 * Restart ranging and monitoring for all registered regions.
+	 */
+	private void resumeScanning()
+	{
+		if (!mBluetoothPaused) {
+			return;
+		}
+		mBluetoothPaused = false;
+
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (null == ranging) {
+			return;
+		}
+		ranging.resume();
+
+		final ArrayList<BeaconRegion> monitored = registeredRegions();
+		if (monitored.isEmpty()) {
+			return;
+		}
+		mScanner.connect(new Runnable() {
+			@Override
+			public void run() {
+				for (BeaconRegion region : monitored) {
+					startMonitoring(region, mMonitoringSubscriptions.firstCallback(regionHashMapKey(region)));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Regions currently registered for monitoring.
+	 */
+	private ArrayList<BeaconRegion> registeredRegions()
+	{
+		ArrayList<BeaconRegion> regions = new ArrayList<BeaconRegion>();
+		for (Map.Entry<String, BeaconRegion> entry : mMonitoredRegions.entrySet()) {
+			if (mMonitoringSubscriptions.containsKey(entry.getKey())) {
+				regions.add(entry.getValue());
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * Start ranging for beacons.
+	 */
+	private void startRangingBeaconsInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startRangingBeaconsInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+
+		BeaconRegion region = createRegion(json);
+
+		HashMap<String, BeaconRegion> regions = new HashMap<String, BeaconRegion>();
+		regions.put(regionHashMapKey(region), region);
+		subscribeRanging(
+				regions,
+				subscriptionId(cordovaArgs, 2),
+				cordovaArgs.optJSONObject(1),
+				new CordovaResultCallback(callbackContext));
+	}
+
+	/**
+	 * Add a ranging subscription with the same id and callback to each
+	 * region, and start ranging the regions not ranged yet.
+	 *
+	 * options format: see BeaconFilter, plus
+	 * { credits, stream, warmStart, warmStartMaxAgeMillis }
+	 */
+	private void subscribeRanging(
+			Map<String, BeaconRegion> regions,
+			int id,
+			JSONObject options,
+			ResultCallback callback)
+			throws JSONException
+	{
+		// Native filters applied before beacons are serialized,
+		// and optional flow control credits.
+		BeaconFilter filter = BeaconFilter.fromJSON(options);
+		int credits = credits(options);
+		boolean stream = null != options && options.optBoolean("stream");
+		boolean warmStart = null != options && options.optBoolean("warmStart");
+
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		boolean added = false;
+		for (Map.Entry<String, BeaconRegion> entry : regions.entrySet()) {
+			// Region may already be ranged, by other subscriptions or for
+			// other purposes, in which case results are fanned out to the
+			// new subscription too.
+			String key = entry.getKey();
+			RegionSubscriptions.Subscription subscription = new RegionSubscriptions.Subscription(
+					id, callback, filter, credits, stream);
+			added |= ranging.subscribe(key, entry.getValue(), subscription);
+
+			// Send the last known beacons right away if asked to.
+			if (warmStart) {
+				mSnapshotRegions.add(key);
+				sendSnapshot(
+						key,
+						entry.getValue(),
+						subscription,
+						options.optLong("warmStartMaxAgeMillis", DEFAULT_WARM_START_MAX_AGE_MILLIS));
+			}
+		}
+		if (added) {
+			startWatchdog();
+		}
+		ranging.start(callback);
+	}
+
+	/**
+	 * Send the stored snapshot of a region to a new subscription,
+	 * flagged as cached, unless it is too old or live results have
+	 * already arrived. The snapshot file is read on the thread pool.
+	 */
+	private void sendSnapshot(
+			final String key,
+			final BeaconRegion region,
+			final RegionSubscriptions.Subscription subscription,
+			final long maxAgeMillis)
+	{
+		cordova.getThreadPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (subscription.streamOnly || subscription.isLive()) {
+					return;
+				}
+				BeaconSnapshotStore.Snapshot snapshot = mSnapshotStore.get(key);
+				if (null == snapshot) {
+					return;
+				}
+				long age = System.currentTimeMillis() - snapshot.savedAt;
+				if (age > maxAgeMillis) {
+					return;
+				}
+				String json = BeaconJsonWriter.snapshotInfo(
+						key, region, snapshot, subscription.filter, age);
+				subscription.sendCached(json);
+			}
+		});
+	}
+
+	/**
+	 * Subscription id passed from JavaScript at index, or a new
+	 * native id if none was passed.
+	 */
+	private int subscriptionId(CordovaArgs cordovaArgs, int index)
+	{
+		int id = cordovaArgs.optInt(index);
+		return (id > 0) ? id : mNextNativeSubscriptionId.getAndDecrement();
+	}
+
+	/**
+	 * Start the local WebSocket stream server, or report the running one.
+	 *
+	 * options format: { port: number (0 for any), queueSize: number }
+	 * result format: { url, port, token }
+	 */
+	private void startStreamServer(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startStreamServer");
+
+		BeaconStreamServer server = mStreamServer;
+		if (null == server) {
+			JSONObject options = cordovaArgs.optJSONObject(0);
+			int port = (null == options) ? 0 : options.optInt("port", 0);
+			int queueSize = (null == options) ? 64 : options.optInt("queueSize", 64);
+			try {
+				server = new BeaconStreamServer(port, queueSize);
+			}
+			catch (IOException e) {
+				Log.e(LOGTAG, "startStreamServer error:", e);
+				callbackContext.error("Could not open stream server port");
+				return;
+			}
+			server.start();
+			mStreamServer = server;
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("url", server.url());
+		json.put("port", server.port());
+		json.put("token", server.token());
+		callbackContext.success(json);
+	}
+
+	private void stopStreamServer()
+	{
+		BeaconStreamServer server = mStreamServer;
+		mStreamServer = null;
+		if (null != server) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Start keeping RSSI history of ranged beacons. Replaces any
+	 * existing history. Beacons are only recorded while ranged.
+	 *
+	 * options format: { windowMillis, maxBeacons }
+	 */
+	private void startRssiHistory(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startRssiHistory");
+
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		long windowMillis = (null == options) ? 300000 : options.optLong("windowMillis", 300000);
+		int maxBeacons = (null == options) ? 256 : options.optInt("maxBeacons", 256);
+		mRssiHistory = new RssiHistory(windowMillis, maxBeacons);
+		callbackContext.success();
+	}
+
+	/**
+	 * Start writing ranged beacons into compressed segment files for
+	 * bulk upload, see SightingLog. Beacons are only recorded while
+	 * ranged. A running export is finished and replaced.
+	 *
+	 * options format: { maxSegmentBytes, maxSegmentMillis, maxSegments }
+	 */
+	private void startExport(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startExport");
+
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		stopExport();
+		mSightingLog = createSightingLog(options);
+		callbackContext.success();
+	}
+
+	private SightingLog createSightingLog(JSONObject options)
+	{
+		return new SightingLog(
+				new File(cordova.getActivity().getFilesDir(), "sightings"),
+				cordova.getThreadPool(),
+				(null == options) ? 1048576 : options.optLong("maxSegmentBytes", 1048576),
+				(null == options) ? 900000 : options.optLong("maxSegmentMillis", 900000),
+				(null == options) ? 64 : options.optInt("maxSegments", 64));
+	}
+
+	/**
+	 * Stop the export, finishing the current segment.
+	 */
+	private void stopExport()
+	{
+		SightingLog log = mSightingLog;
+		mSightingLog = null;
+		if (null != log) {
+			log.close();
+		}
+	}
+
+	/**
+	 * Send the paths of finished export segments, oldest first, after
+	 * deleting those uploaded since the last drain. Also works while the
+	 * export is stopped, for segments of earlier runs.
+	 * Arguments: [options]
+	 *
+	 * options format: { finish: boolean (default true), delete: [ paths ] }
+	 * result format: { segments: [ paths ], sightings, droppedSegments }
+	 */
+	private void drainExport(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		List<String> delete = new ArrayList<String>();
+		JSONArray uploaded = (null == options) ? null : options.optJSONArray("delete");
+		if (null != uploaded) {
+			for (int i = 0; i < uploaded.length(); ++i) {
+				delete.add(uploaded.getString(i));
+			}
+		}
+
+		SightingLog log = mSightingLog;
+		if (null == log) {
+			log = createSightingLog(null);
+		}
+		log.drain(
+				delete,
+				null == options || options.optBoolean("finish", true),
+				new SightingLog.DrainCallback() {
+					@Override
+					public void onDrained(List<String> segments, long sightings, long dropped) {
+						try {
+							JSONArray paths = new JSONArray();
+							for (String segment : segments) {
+								paths.put(segment);
+							}
+							JSONObject json = new JSONObject();
+							json.put("segments", paths);
+							json.put("sightings", sightings);
+							json.put("droppedSegments", dropped);
+							callbackContext.success(json);
+						}
+						catch (JSONException e) {
+							callbackContext.error("Could not list segments");
+						}
+					}
+				});
+	}
+
+	/**
+	 * Query RSSI history of beacons matching a region, down-sampled
+	 * to at most maxPoints buckets, on the thread pool.
+	 * Arguments: [region, from, to, maxPoints], zero for defaults.
+	 */
+	private void queryRssiHistory(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		final RssiHistory history = mRssiHistory;
+		if (null == history) {
+			callbackContext.error("RSSI history not started");
+			return;
+		}
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+		String uuid = json.optString("uuid", null);
+		final UUID proximityUUID = (null == uuid) ? null : UUID.fromString(uuid);
+		final Integer major = optUInt16Null(json, "major");
+		final Integer minor = optUInt16Null(json, "minor");
+
+		// Defaults: the last minute, in 60 points.
+		long end = cordovaArgs.optLong(2);
+		final long to = (end > 0) ? end : System.currentTimeMillis();
+		long start = cordovaArgs.optLong(1);
+		final long from = (start > 0) ? start : to - 60000;
+		int points = cordovaArgs.optInt(3);
+		final int maxPoints = (points > 0) ? points : 60;
+
+		cordova.getThreadPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					callbackContext.success(history.query(
+							proximityUUID, major, minor, from, to, maxPoints));
+				}
+				catch (JSONException e) {
+					Log.e(LOGTAG, "queryRssiHistory error:", e);
+					callbackContext.error("RSSI history query error");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Initial flow control credits from subscription options,
+	 * unlimited if flow control is not requested.
+	 */
+	private static int credits(JSONObject options)
+	{
+		if (null == options || !options.has("credits")) {
+			return RegionSubscriptions.Subscription.UNLIMITED;
+		}
+		return Math.max(0, options.optInt("credits"));
+	}
+
+	/**
+	 * Grant flow control credits to a ranging or monitoring subscription.
+	 * A result held back while out of credits is sent right away.
+	 * Subscriptions of the bulk actions have credits per region, each
+	 * region gets the credits; the result reports the lowest balance
+	 * and the total coalesced.
+	 */
+	private void grantCredits(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		int id = cordovaArgs.getInt(0);
+		int credits = cordovaArgs.getInt(1);
+
+		List<RegionSubscriptions.Subscription> subscriptions = mRangingSubscriptions.findAll(id);
+		if (subscriptions.isEmpty()) {
+			subscriptions = mMonitoringSubscriptions.findAll(id);
+		}
+		if (subscriptions.isEmpty()) {
+			callbackContext.error("No such subscription");
+			return;
+		}
+		if (RegionSubscriptions.Subscription.UNLIMITED == subscriptions.get(0).credits()) {
+			callbackContext.error("Subscription does not use flow control");
+			return;
+		}
+
+		int balance = Integer.MAX_VALUE;
+		long coalesced = 0;
+		for (RegionSubscriptions.Subscription subscription : subscriptions) {
+			subscription.grant(Math.max(0, credits));
+			balance = Math.min(balance, subscription.credits());
+			coalesced += subscription.coalesced();
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("credits", balance);
+		json.put("coalesced", coalesced);
+		callbackContext.success(json);
+	}
+
+	/**
+	 * Remove the subscription with the id passed from JavaScript at
+	 * index, or all subscriptions of the region if no id was passed,
+	 * and clear their callbacks on the JavaScript side.
+	 * Returns false if there was nothing to remove.
+	 */
+	private boolean unsubscribe(
+			RegionSubscriptions subscriptions,
+			String key,
+			CordovaArgs cordovaArgs,
+			int index)
+	{
+		List<RegionSubscriptions.Subscription> removed =
+				removeSubscriptions(subscriptions, key, cordovaArgs.optInt(index));
+		clearCallbacks(subscriptions, removed);
+		return !removed.isEmpty();
+	}
+
+	/**
+	 * Remove the subscription with id from a region, or all of the
+	 * region's subscriptions if id is not positive.
+	 * Returns the removed subscriptions.
+	 */
+	private static List<RegionSubscriptions.Subscription> removeSubscriptions(
+			RegionSubscriptions subscriptions,
+			String key,
+			int id)
+	{
+		if (id <= 0) {
+			return subscriptions.removeAll(key);
+		}
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		RegionSubscriptions.Subscription subscription = subscriptions.remove(key, id);
+		if (null != subscription) {
+			removed.add(subscription);
+		}
+		return removed;
+	}
+
+	/**
+	 * Clear the callbacks of removed subscriptions. Subscriptions of the
+	 * bulk actions share one callback across regions, so it is cleared
+	 * once, when no region has a subscription with that id left.
+	 */
+	private static void clearCallbacks(
+			RegionSubscriptions subscriptions,
+			List<RegionSubscriptions.Subscription> removed)
+	{
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (RegionSubscriptions.Subscription subscription : removed) {
+			if (ids.add(subscription.id) && null == subscriptions.find(subscription.id)) {
+				subscription.callback.clear();
+			}
+		}
+	}
+
+	/**
+	 * Clear a kept callback on the JavaScript side.
+	 */
+	private static void clearCallback(CallbackContext callbackContext)
+	{
+		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+		result.setKeepCallback(false);
+		callbackContext.sendPluginResult(result);
+	}
+
+	/**
+	 * Start ranging region on the SDK for a native use, added before
+	 * calling this, connecting to the beacon manager first if needed.
+	 */
+	private void rangeRegion(
+			BeaconRegion region,
+			CallbackContext callbackContext)
+	{
+		rangeRegion(region, new CordovaResultCallback(callbackContext));
+	}
+
+	private void rangeRegion(BeaconRegion region, ResultCallback errors)
+	{
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (ranging.range(regionHashMapKey(region), region)) {
+			startWatchdog();
+		}
+		ranging.start(errors);
+	}
+
+	/**
+	 * Stop ranging region on the SDK unless it is still used,
+	 * and report success to callbackContext.
+	 */
+	private void unrangeRegion(BeaconRegion region, CallbackContext callbackContext)
+	{
+		mRanging.release(regionHashMapKey(region));
+		callbackContext.success();
+	}
+
+	String scanId = "";
+
+	/**
+	 * Start ranging for nearables.
+	 */
+	private void startRangingNearables(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startRangingNearables");
+
+		mNearablesCallbackContext = callbackContext;
+		startNearableDiscovery(callbackContext);
+	}
+
+	/**
+	 * Start nearable discovery on the SDK, if not started yet.
+	 */
+	private void startNearableDiscovery(CallbackContext callbackContext)
+	{
+		if (mNearableDiscoveryStarted) {
+			return;
+		}
+		mNearableDiscoveryStarted = true;
+
+		try{
+			mBeaconManager.setNearableListener(new PluginNearableListener());
+
+			// Connect once the SDK is initialized, off the calling thread.
+			initializeSdk(getAppId(), getAppToken(), new Runnable() {
+				@Override
+				public void run() {
+					mScanner.connect(new Runnable() {
+						@Override
+						public void run() {
+							mScanner.startNearableDiscovery();
+						}
+					});
+				}
+			});
+		}
+		catch (Exception e){
+			Log.e(LOGTAG, "startRangingNearables error:", e);
+			mNearableDiscoveryStarted = false;
+			callbackContext.error("Start rangingNearables RemoteException");
+		}
+	}
+
+	/**
+	 * Start the ranging watchdog, if not running. It stops by itself
+	 * when no regions are ranged.
+	 */
+	private void startWatchdog()
+	{
+		mHandler.removeCallbacks(mWatchdogTick);
+		mHandler.postDelayed(mWatchdogTick, WATCHDOG_SCAN_PERIOD_MILLIS);
+	}
+
+	/**
+	 * Check for stalled ranging and restart the regions due for it.
+	 * If the whole scanner has stalled, monitored regions are restarted
+	 * too, since monitoring runs on the same scanner and its silence
+	 * cannot be told from no beacons. Runs on the main thread.
+	 */
+	private void checkRanging()
+	{
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (null == ranging) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		HashSet<String> keys = ranging.keys();
+		mWatchdog.track(keys, now);
+		if (keys.isEmpty()) {
+			return;
+		}
+		mHandler.postDelayed(mWatchdogTick, WATCHDOG_SCAN_PERIOD_MILLIS);
+
+		// No callbacks are expected while scanning is paused on purpose.
+		if (mBluetoothPaused || !mScanner.isConnected()) {
+			mWatchdog.rearm(now);
+			return;
+		}
+
+		RangingWatchdog.Check check = mWatchdog.check(now);
+		for (String key : check.restart) {
+			Log.i(LOGTAG, "watchdog restarting ranging of " + key);
+			ranging.restart(key);
+
+			BeaconRegion monitored = mMonitoredRegions.get(key);
+			if (null != monitored && !check.scannerStalled) {
+				restartMonitoring(monitored);
+			}
+		}
+		if (check.scannerStalled && !check.restart.isEmpty()) {
+			for (BeaconRegion region : registeredRegions()) {
+				restartMonitoring(region);
+			}
+		}
+	}
+
+	private void restartMonitoring(BeaconRegion region)
+	{
+		Log.i(LOGTAG, "watchdog restarting monitoring of " + region.getIdentifier());
+		try {
+			mScanner.stopMonitoring(region);
+		}
+		catch (Exception e) {
+			Log.e(LOGTAG, "watchdog stopMonitoring", e);
+		}
+		startMonitoring(region, null);
+	}
+
+	/**
+	 * Send ranging watchdog statistics, see RangingWatchdog.
+	 */
+	private void getWatchdogStats(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		callbackContext.success(mWatchdog.statsToJSON(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stop ranging for beacons.
+	 */
+	private void stopRangingBeaconsInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopRangingBeaconsInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+
+		BeaconRegion region = createRegion(json);
+
+		// Remove the subscription, or all of the region's if no id
+		// is given. If there is none call error callback.
+		// Ranging stops on the SDK when the last subscription leaves.
+		String key = regionHashMapKey(region);
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		mRanging.unsubscribe(key, cordovaArgs.optInt(1), removed);
+		if (removed.isEmpty()) {
+			callbackContext.error("Region not ranged");
+			return;
+		}
+		clearCallbacks(mRangingSubscriptions, removed);
+		forgetSnapshot(key);
+		callbackContext.success();
+	}
+
+	/**
+	 * Start ranging for several regions at once, with one subscription
+	 * id and callback for all of them. The regions are all parsed before
+	 * anything changes, and those not ranged yet are started on the SDK
+	 * after a single connect.
+	 * Arguments: [regions, options, subscriptionId]
+	 */
+	private void startRangingRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startRangingRegions");
+
+		Map<String, BeaconRegion> regions = createRegions(cordovaArgs.getJSONArray(0));
+		if (null == regions) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+
+		subscribeRanging(
+				regions,
+				subscriptionId(cordovaArgs, 2),
+				cordovaArgs.optJSONObject(1),
+				new CordovaResultCallback(callbackContext));
+	}
+
+	/**
+	 * Stop ranging for several regions at once.
+	 * Arguments: [regions, subscriptionId]
+	 * Without regions all regions of the subscription are stopped,
+	 * without a subscription id all subscriptions of the regions.
+	 * Regions left without any use are stopped on the SDK.
+	 *
+	 * result format: { stopped, sdkStopped }
+	 */
+	private void stopRangingRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopRangingRegions");
+
+		int id = cordovaArgs.optInt(1);
+		List<String> keys = regionKeys(mRangingSubscriptions, cordovaArgs.optJSONArray(0), id);
+		if (null == keys) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		int stopped = 0;
+		int sdkStopped = 0;
+		for (String key : keys) {
+			int count = removed.size();
+			if (mRanging.unsubscribe(key, id, removed)) {
+				++sdkStopped;
+			}
+			if (removed.size() == count) {
+				continue;
+			}
+			++stopped;
+			forgetSnapshot(key);
+		}
+		clearCallbacks(mRangingSubscriptions, removed);
+
+		JSONObject json = new JSONObject();
+		json.put("stopped", stopped);
+		json.put("sdkStopped", sdkStopped);
+		callbackContext.success(json);
+	}
+
+	/**
+	 * Replace the regions of a ranging subscription as one diff.
+	 * Regions no longer wanted are removed, and stopped on the SDK unless
+	 * still used, before new regions are added with options and started.
+	 * Regions in both sets keep their subscription as it is. Results keep
+	 * going to the callback the subscription was started with.
+	 * Arguments: [regions, options, subscriptionId]
+	 *
+	 * result format: { added, removed, kept }
+	 */
+	private void replaceRangedRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "replaceRangedRegions");
+
+		Map<String, BeaconRegion> regions = createRegions(cordovaArgs.getJSONArray(0));
+		if (null == regions) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+		int id = cordovaArgs.optInt(2);
+		RegionSubscriptions.Subscription existing = mRangingSubscriptions.find(id);
+		if (null == existing) {
+			callbackContext.error("No such subscription");
+			return;
+		}
+
+		// What is left of regions after the diff is the regions to add.
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		int kept = 0;
+		for (String key : mRangingSubscriptions.keysOf(id)) {
+			if (null != regions.remove(key)) {
+				++kept;
+				continue;
+			}
+			mRanging.unsubscribe(key, id, removed);
+			forgetSnapshot(key);
+		}
+
+		int added = regions.size();
+		subscribeRanging(
+				regions,
+				id,
+				cordovaArgs.optJSONObject(1),
+				existing.callback);
+		clearCallbacks(mRangingSubscriptions, removed);
+
+		JSONObject json = new JSONObject();
+		json.put("added", added);
+		json.put("removed", removed.size());
+		json.put("kept", kept);
+		callbackContext.success(json);
+	}
+
+	/**
+	 * Stop keeping snapshots of a region that lost its last
+	 * ranging subscription.
+	 */
+	private void forgetSnapshot(String key)
+	{
+		if (!mRangingSubscriptions.containsKey(key)) {
+			mSnapshotRegions.remove(key);
+		}
+	}
+
+	/**
+	 * Keys of the regions a bulk stop applies to: the regions passed,
+	 * or all regions of the subscription if none are passed.
+	 * Null if a region is invalid, or if there are neither.
+	 */
+	private List<String> regionKeys(
+			RegionSubscriptions subscriptions,
+			JSONArray regions,
+			int id)
+			throws JSONException
+	{
+		if (null == regions) {
+			return (id > 0) ? subscriptions.keysOf(id) : null;
+		}
+		Map<String, BeaconRegion> parsed = createRegions(regions);
+		return (null == parsed) ? null : new ArrayList<String>(parsed.keySet());
+	}
+
+	/**
+	 * Upload the beacon floor map used for positioning.
+	 * Replaces any previously uploaded map.
+	 */
+	private void setFloorMap(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "setFloorMap");
+
+		try {
+			mPositioningEngine.setFloorMap(cordovaArgs.getJSONArray(0));
+		}
+		catch (IllegalArgumentException e) {
+			callbackContext.error("Invalid UUID in floor map: " + e.getMessage());
+			return;
+		}
+
+		callbackContext.success(mPositioningEngine.floorMapSize());
+	}
+
+	/**
+	 * Start positioning from beacons ranged in region.
+	 * The callback receives only position estimates, not beacons.
+	 */
+	private void startPositioningInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startPositioningInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+		JSONObject options = cordovaArgs.optJSONObject(1);
+
+		final BeaconRegion region = createRegion(json);
+
+		String key = regionHashMapKey(region);
+		if (null != mPositioningCallbackContexts.get(key)) {
+			callbackContext.error("Region already used for positioning");
+			return;
+		}
+
+		double smoothing = (options == null) ? 0.7 : options.optDouble("smoothing", 0.7);
+		mPositioningTrackers.put(key, new PositioningEngine.Tracker(smoothing));
+		mPositioningCallbackContexts.put(key, callbackContext);
+		rangeRegion(region, callbackContext);
+	}
+
+	/**
+	 * Stop positioning in region.
+	 */
+	private void stopPositioningInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopPositioningInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+
+		BeaconRegion region = createRegion(json);
+
+		String key = regionHashMapKey(region);
+		CallbackContext positioningCallback = mPositioningCallbackContexts.remove(key);
+		mPositioningTrackers.remove(key);
+		if (null == positioningCallback) {
+			callbackContext.error("Region not used for positioning");
+			return;
+		}
+
+		// Clear positioning callback on JavaScript side.
+		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+		result.setKeepCallback(false);
+		positioningCallback.sendPluginResult(result);
+
+		unrangeRegion(region, callbackContext);
+	}
+
+	/**
+	 * Load an RSSI fingerprint database. The JSON database is converted
+	 * to a compact binary index in the cache directory on first load,
+	 * and the index is memory mapped.
+	 */
+	private void loadFingerprintDatabase(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "loadFingerprintDatabase");
+
+		String path = cordovaArgs.getString(0);
+		if (path.startsWith("file://")) {
+			path = path.substring("file://".length());
+		}
+		final File database = new File(path);
+		final File cacheDir = cordova.getActivity().getCacheDir();
+
+		// Building the index can take a while for large databases.
+		cordova.getThreadPool().execute(new Runnable() {
+			public void run() {
+				try {
+					FingerprintIndex index = FingerprintIndex.open(database, cacheDir);
+					mFingerprintIndex = index;
+
+					JSONObject json = new JSONObject();
+					json.put("beacons", index.beaconCount());
+					json.put("fingerprints", index.fingerprintCount());
+					json.put("zones", index.zoneCount());
+					callbackContext.success(json);
+				}
+				catch (IOException e) {
+					Log.e(LOGTAG, "loadFingerprintDatabase error:", e);
+					callbackContext.error("Could not load fingerprint database: "
+							+ e.getMessage());
+				}
+				catch (JSONException e) {
+					Log.e(LOGTAG, "loadFingerprintDatabase error:", e);
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start matching beacons ranged in region against the fingerprint
+	 * database. The callback receives only the best matching zones.
+	 */
+	private void startFingerprintMatchingInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startFingerprintMatchingInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+		JSONObject options = cordovaArgs.optJSONObject(1);
+		if (options == null) {
+			options = new JSONObject();
+		}
+
+		final BeaconRegion region = createRegion(json);
+
+		String key = regionHashMapKey(region);
+		if (null != mFingerprintCallbackContexts.get(key)) {
+			callbackContext.error("Region already used for fingerprint matching");
+			return;
+		}
+
+		FingerprintSession session = new FingerprintSession();
+		session.k = options.optInt("k", 5);
+		session.maxZones = options.optInt("maxZones", 3);
+		session.minBeacons = options.optInt("minBeacons", 1);
+
+		mFingerprintSessions.put(key, session);
+		mFingerprintCallbackContexts.put(key, callbackContext);
+		rangeRegion(region, callbackContext);
+	}
+
+	/**
+	 * Stop fingerprint matching in region.
+	 */
+	private void stopFingerprintMatchingInRegion(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopFingerprintMatchingInRegion");
+
+		JSONObject json = cordovaArgs.getJSONObject(0);
+
+		BeaconRegion region = createRegion(json);
+
+		String key = regionHashMapKey(region);
+		CallbackContext fingerprintCallback = mFingerprintCallbackContexts.remove(key);
+		mFingerprintSessions.remove(key);
+		if (null == fingerprintCallback) {
+			callbackContext.error("Region not used for fingerprint matching");
+			return;
+		}
+
+		// Clear matching callback on JavaScript side.
+		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+		result.setKeepCallback(false);
+		fingerprintCallback.sendPluginResult(result);
+
+		unrangeRegion(region, callbackContext);
+	}
+
+	/**
+	 * Start presence aggregation. Visits are aggregated from all ranged
+	 * and monitored regions, plus the regions passed as second argument,
+	 * which are ranged natively without sending beacons to JavaScript.
+	 * The callback receives a summary every interval.
+	 */
+	private void startPresence(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startPresence");
+
+		if (null != mPresenceAggregator) {
+			callbackContext.error("Presence aggregation already started");
+			return;
+		}
+
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		if (options == null) {
+			options = new JSONObject();
+		}
+		JSONArray regions = cordovaArgs.optJSONArray(1);
+
+		mPresenceIntervalMillis =
+				Math.max(1000, options.optLong("intervalMillis", 60000));
+		mPresenceCallbackContext = callbackContext;
+		mPresenceAggregator = new PresenceAggregator(
+				options.optInt("maxEntries", 256),
+				options.optLong("exitTimeoutMillis", 10000),
+				System.currentTimeMillis());
+
+		if (regions != null) {
+			for (int i = 0; i < regions.length(); ++i) {
+				BeaconRegion region = createRegion(regions.getJSONObject(i));
+				String key = regionHashMapKey(region);
+				mPresenceRegions.put(key, region);
+				rangeRegion(region, callbackContext);
+			}
+		}
+
+		mHandler.postDelayed(mPresenceSummaryTask, mPresenceIntervalMillis);
+	}
+
+	/**
+	 * Periodic presence summary.
+	 */
+	private final Runnable mPresenceSummaryTask = new Runnable() {
+		public void run() {
+			PresenceAggregator aggregator = mPresenceAggregator;
+			CallbackContext callback = mPresenceCallbackContext;
+			if (null == aggregator || null == callback) {
+				return;
+			}
+			try {
+				PluginResult r = new PluginResult(
+						PluginResult.Status.OK,
+						aggregator.summarize(System.currentTimeMillis()));
+				r.setKeepCallback(true);
+				callback.sendPluginResult(r);
+			}
+			catch (JSONException e) {
+				Log.e(LOGTAG, "presence summary error:", e);
+			}
+			mHandler.postDelayed(this, mPresenceIntervalMillis);
+		}
+	};
+
+	/**
+	 * Send a summary of the current period now, and start a new period.
+	 */
+	private void sendPresenceSummary(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		PresenceAggregator aggregator = mPresenceAggregator;
+		if (null == aggregator) {
+			callbackContext.error("Presence aggregation not started");
+			return;
+		}
+		callbackContext.success(aggregator.summarize(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stop presence aggregation, c/o Cordova.
+	 */
+	private void stopPresence(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopPresence");
+
+		if (null == mPresenceAggregator) {
+			callbackContext.error("Presence aggregation not started");
+			return;
+		}
+		stopPresence();
+		callbackContext.success();
+	}
+
+	/**
+	 * Start evaluating trigger rules. Only events of rules that fire are
+	 * sent to the callback. Regions passed are ranged natively for the
+	 * rules, nearable rules start nearable discovery.
+	 * Arguments: [rules, regions]
+	 */
+	private void startTriggers(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startTriggers");
+
+		if (null != mTriggerEngine) {
+			callbackContext.error("Triggers already started");
+			return;
+		}
+
+		TriggerEngine engine;
+		try {
+			engine = new TriggerEngine(cordovaArgs.getJSONArray(0));
+		}
+		catch (IllegalArgumentException e) {
+			callbackContext.error("Invalid UUID in trigger rule: " + e.getMessage());
+			return;
+		}
+		mTriggerCallbackContext = callbackContext;
+		mTriggerEngine = engine;
+
+		JSONArray regions = cordovaArgs.optJSONArray(1);
+		if (regions != null) {
+			for (int i = 0; i < regions.length(); ++i) {
+				BeaconRegion region = createRegion(regions.getJSONObject(i));
+				String key = regionHashMapKey(region);
+				mTriggerRegions.put(key, region);
+				rangeRegion(region, callbackContext);
+			}
+		}
+
+		if (engine.hasNearableRules()) {
+			startNearableDiscovery(callbackContext);
+		}
+	}
+
+	/**
+	 * Stop evaluating trigger rules.
+	 */
+	private void stopTriggers(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopTriggers");
+
+		if (null == mTriggerEngine) {
+			callbackContext.error("Triggers not started");
+			return;
+		}
+		stopTriggers();
+		callbackContext.success();
+	}
+
+	/**
+	 * Stop trigger rules and release their natively ranged regions.
+	 */
+	private void stopTriggers()
+	{
+		mTriggerEngine = null;
+
+		CallbackContext callback = mTriggerCallbackContext;
+		mTriggerCallbackContext = null;
+		if (null != callback) {
+			clearCallback(callback);
+		}
+
+		HashMap<String, BeaconRegion> regions = new HashMap<String, BeaconRegion>(mTriggerRegions);
+		mTriggerRegions.clear();
+		releaseRegions(regions);
+	}
+
+	/**
+	 * Send events of fired trigger rules to JavaScript.
+	 */
+	private void sendTriggerEvents(List<JSONObject> events)
+	{
+		CallbackContext callback = mTriggerCallbackContext;
+		if (null == callback) {
+			return;
+		}
+		for (JSONObject event : events) {
+			PluginResult r = new PluginResult(PluginResult.Status.OK, event);
+			r.setKeepCallback(true);
+			callback.sendPluginResult(r);
+		}
+	}
+
+	/**
+	 * Stop ranging regions that were ranged natively, unless they
+	 * are still used for something else.
+	 */
+	private void releaseRegions(HashMap<String, BeaconRegion> regions)
+	{
+		RegionRanging<BeaconRegion> ranging = mRanging;
+		if (null == ranging) {
+			return;
+		}
+		for (String key : regions.keySet()) {
+			ranging.release(key);
+		}
+	}
+
+	/**
+	 * Start passive fleet health scanning from the telemetry packets
+	 * beacons broadcast, without connecting to them. Summaries of beacons
+	 * that need attention are sent to the callback every interval.
+	 * Arguments: [options]
+	 */
+	private void startHealthScan(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startHealthScan");
+
+		if (null != mFleetHealth) {
+			callbackContext.error("Health scan already started");
+			return;
+		}
+
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		if (options == null) {
+			options = new JSONObject();
+		}
+
+		mHealthIntervalMillis =
+				Math.max(1000, options.optLong("intervalMillis", 60000));
+		mHealthCallbackContext = callbackContext;
+		mFleetHealth = new FleetHealth(
+				options.optInt("lowBatteryPercent", 20),
+				options.optLong("silentMillis", 300000),
+				options.optInt("maxDevices", 1024));
+
+		try {
+			mBeaconManager.setTelemetryListener(new BeaconManager.TelemetryListener() {
+				@Override
+				public void onTelemetriesFound(List<EstimoteTelemetry> telemetries) {
+					FleetHealth health = mFleetHealth;
+					if (null != health) {
+						health.record(telemetries, System.currentTimeMillis());
+					}
+				}
+			});
+
+			// Connect once the SDK is initialized, off the calling thread.
+			initializeSdk(getAppId(), getAppToken(), new Runnable() {
+				@Override
+				public void run() {
+					mScanner.connect(new Runnable() {
+						@Override
+						public void run() {
+							if (null != mFleetHealth) {
+								mScanner.startTelemetryDiscovery();
+							}
+						}
+					});
+				}
 			});
 		}
+		catch (Exception e) {
+			Log.e(LOGTAG, "startHealthScan error:", e);
+			mFleetHealth = null;
+			mHealthCallbackContext = null;
+			callbackContext.error("Start health scan error");
+			return;
+		}
+
+		mHandler.postDelayed(mHealthSummaryTask, mHealthIntervalMillis);
+	}
+
+	/**
+	 * Periodic fleet health summary.
+	 */
+	private final Runnable mHealthSummaryTask = new Runnable() {
+		public void run() {
+			FleetHealth health = mFleetHealth;
+			CallbackContext callback = mHealthCallbackContext;
+			if (null == health || null == callback) {
+				return;
+			}
+			try {
+				PluginResult r = new PluginResult(
+						PluginResult.Status.OK,
+						health.summarize(System.currentTimeMillis()));
+				r.setKeepCallback(true);
+				callback.sendPluginResult(r);
+			}
+			catch (JSONException e) {
+				Log.e(LOGTAG, "health summary error:", e);
+			}
+			mHandler.postDelayed(this, mHealthIntervalMillis);
+		}
+	};
+
+	/**
+	 * Stop fleet health scanning.
+	 */
+	private void stopHealthScan(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopHealthScan");
+
+		if (null == mFleetHealth) {
+			callbackContext.error("Health scan not started");
+			return;
+		}
+		stopHealthScan();
+		callbackContext.success();
 	}
 
-	String scanId = "";
+	/**
+	 * Stop telemetry discovery and clear the summary callback.
+	 */
+	private void stopHealthScan()
+	{
+		mHandler.removeCallbacks(mHealthSummaryTask);
+		if (null == mFleetHealth) {
+			return;
+		}
+		mFleetHealth = null;
+
+		CallbackContext callback = mHealthCallbackContext;
+		mHealthCallbackContext = null;
+		if (null != callback) {
+			clearCallback(callback);
+		}
+
+		BeaconScanner<BeaconRegion> scanner = mScanner;
+		if (null != scanner && scanner.isConnected()) {
+			try {
+				scanner.stopTelemetryDiscovery();
+			}
+			catch (Exception e) {
+				Log.e(LOGTAG, "stopTelemetryDiscovery", e);
+			}
+		}
+	}
 
 	/**
-	 * Start ranging for nearables.
+	 * Send the whole fleet health table.
 	 */
-	private void startRangingNearables(
+	private void getHealthTable(
 			CordovaArgs cordovaArgs,
 			final CallbackContext callbackContext)
 			throws JSONException
 	{
-		Log.i(LOGTAG, "startRangingNearables");
-//		callbackContext.success("Successful");
-		//mBeaconManager.
-		EstimoteSDK.initialize(cordova.getActivity(), getAppId(), getAppToken());
-		try{
-			mBeaconManager.setNearableListener(new BeaconManager.NearableListener() {
-				@Override
-				public void onNearablesDiscovered(List<Nearable> list) {
-					Log.i(LOGTAG, "nearablesDiscovered");
-					if (list.size() > 0){
-						Log.i(LOGTAG, list.get(0).identifier);
-						try {
-							callbackContext.success(makeJSONNearableArray(list));
-						}catch (JSONException e){
-							Log.e("JSONException", e.getMessage());
-						}
-					}
-				}
-			});
+		FleetHealth health = mFleetHealth;
+		if (null == health) {
+			callbackContext.error("Health scan not started");
+			return;
+		}
+		callbackContext.success(health.tableToJSON());
+	}
 
-			mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
+	/**
+	 * Range a monitored region natively for a while after an enter.
+	 * A burst already running is extended. Called on the main thread.
+	 */
+	private void startBurst(
+			final String key,
+			BeaconRegion region,
+			long millis,
+			ResultCallback callback)
+	{
+		Runnable end = mBurstEnds.get(key);
+		if (null != end) {
+			mHandler.removeCallbacks(end);
+		}
+		else {
+			Log.i(LOGTAG, "startBurst " + region.getIdentifier());
+			mBurstRegions.put(key, region);
+			rangeRegion(region, callback);
+			end = new Runnable() {
 				@Override
-				public void onServiceReady() {
-					mBeaconManager.startNearableDiscovery();
+				public void run() {
+					endBurst(key);
 				}
-			});
+			};
+			mBurstEnds.put(key, end);
 		}
-		catch (Exception e){
-			Log.e(LOGTAG, "startRangingNearables error:", e);
-			callbackContext.error("Start rangingNearables RemoteException");
+		mHandler.postDelayed(end, millis);
+	}
+
+	/**
+	 * End a ranging burst from any thread.
+	 */
+	private void endBurstLater(final String key)
+	{
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				endBurst(key);
+			}
+		});
+	}
+
+	/**
+	 * End a ranging burst, releasing its region. Called on the main thread.
+	 */
+	private void endBurst(String key)
+	{
+		Runnable end = mBurstEnds.remove(key);
+		if (null != end) {
+			mHandler.removeCallbacks(end);
 		}
+		BeaconRegion region = mBurstRegions.remove(key);
+		if (null == region) {
+			return;
+		}
+		Log.i(LOGTAG, "endBurst " + region.getIdentifier());
+		HashMap<String, BeaconRegion> regions = new HashMap<String, BeaconRegion>();
+		regions.put(key, region);
+		releaseRegions(regions);
 	}
 
 	/**
-	 * Helper method.
+	 * Send a ranging burst cycle to the monitoring subscriptions of the
+	 * region that asked for bursts.
 	 */
-	private void startRanging(BeaconRegion region, CallbackContext callbackContext)
+	private void sendBurstInfo(String key, BeaconRegion region, ScanCycle cycle)
 	{
-		//TODO: Implement ranging exception block
-		try {
-			Log.i(LOGTAG, "startRanging");
-			mBeaconManager.startRanging(region);
+		String json = null;
+		for (RegionSubscriptions.Subscription subscription : mMonitoringSubscriptions.get(key)) {
+			if (subscription.streamOnly || subscription.burstMillis <= 0) {
+				continue;
+			}
+			if (null == json) {
+				json = BeaconJsonWriter.regionState(key, region, "inside", cycle);
+			}
+			subscription.send(json);
 		}
-		catch(Exception e) {
-			Log.e(LOGTAG, "startRanging error:", e);
-			callbackContext.error("Start ranging RemoteException");
+	}
+
+	/**
+	 * Stop presence aggregation and release its natively ranged regions.
+	 */
+	private void stopPresence()
+	{
+		mHandler.removeCallbacks(mPresenceSummaryTask);
+		mPresenceAggregator = null;
+
+		CallbackContext callback = mPresenceCallbackContext;
+		mPresenceCallbackContext = null;
+		if (null != callback) {
+			// Clear presence callback on JavaScript side.
+			PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+			result.setKeepCallback(false);
+			callback.sendPluginResult(result);
 		}
+
+		HashMap<String, BeaconRegion> regions = new HashMap<String, BeaconRegion>(mPresenceRegions);
+		mPresenceRegions.clear();
+		releaseRegions(regions);
 	}
 
 	/**
-	 * Stop ranging for beacons.
+	 * Start monitoring for region.
 	 */
-	private void stopRangingBeaconsInRegion(
+	private void startMonitoringForRegion(
 			CordovaArgs cordovaArgs,
 			final CallbackContext callbackContext)
 			throws JSONException
 	{
-		Log.i(LOGTAG, "stopRangingBeaconsInRegion");
+		Log.i(LOGTAG, "startMonitoringForRegion");
 
 		JSONObject json = cordovaArgs.getJSONObject(0);
 
 		BeaconRegion region = createRegion(json);
 
-		// If ranging callback does not exist call error callback
-		String key = regionHashMapKey(region);
-		CallbackContext rangingCallback = mRangingCallbackContexts.get(key);
-		if (null == rangingCallback) {
-			callbackContext.error("Region not ranged");
-			return;
-		}
-
-		// Remove ranging callback from hash map.
-		mRangingCallbackContexts.remove(key);
-
-		// Clear ranging callback on JavaScript side.
-		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-		result.setKeepCallback(false);
-		rangingCallback.sendPluginResult(result);
-
-		// Stop ranging if connected.
-		if (mIsConnected) {
-			try {
-				Log.i(LOGTAG, "stopRanging");
-
-				// Stop ranging.
-				mBeaconManager.stopRanging(region);
+		// Flow control credits and streaming.
+		JSONObject options = cordovaArgs.optJSONObject(3);
+
+		HashMap<String, BeaconRegion> regions = new HashMap<String, BeaconRegion>();
+		regions.put(regionHashMapKey(region), region);
+		ResultCallback callback = new CordovaResultCallback(callbackContext);
+		monitorRegions(
+				subscribeMonitoring(
+						regions,
+						subscriptionId(cordovaArgs, 2),
+						options,
+						callback),
+				callback);
+	}
 
-				// Send back success.
-				callbackContext.success();
+	/**
+	 * Add a monitoring subscription with the same id and callback to
+	 * each region. The region is monitored on the SDK once, for its first
+	 * subscription. With a monitoring schedule new regions join the
+	 * rotation, and free slots are filled once for all of them.
+	 * Otherwise the new regions are returned to be started on the SDK.
+	 *
+	 * options format:
+	 * { credits, stream, enterBeacons, burstMillis, priority }
+	 */
+	private List<BeaconRegion> subscribeMonitoring(
+			Map<String, BeaconRegion> regions,
+			int id,
+			JSONObject options,
+			ResultCallback callback)
+	{
+		int credits = credits(options);
+		boolean stream = null != options && options.optBoolean("stream");
+		boolean enterBeacons = null != options && options.optBoolean("enterBeacons");
+		long burstMillis = null == options ? 0 : Math.min(MAX_BURST_MILLIS,
+				Math.max(0, options.optLong("burstMillis", 0)));
+		int priority = null == options ? 0 : options.optInt("priority");
+
+		RegionScheduler scheduler = mRegionScheduler;
+		List<BeaconRegion> unmonitored = new ArrayList<BeaconRegion>();
+		for (Map.Entry<String, BeaconRegion> entry : regions.entrySet()) {
+			boolean first = mMonitoringSubscriptions.add(
+					entry.getKey(),
+					new RegionSubscriptions.Subscription(
+							id,
+							callback,
+							null,
+							credits,
+							stream,
+							enterBeacons,
+							burstMillis));
+			if (!first) {
+				continue;
 			}
-			catch(Exception e) {
-				Log.e(LOGTAG, "stopRanging", e);
-				callbackContext.error("stopRanging RemoteException");
+			if (null != scheduler) {
+				scheduler.add(entry.getKey(), entry.getValue(), priority, false);
+			}
+			else {
+				unmonitored.add(entry.getValue());
 			}
 		}
-		else {
-			callbackContext.error("Not connected");
+
+		// With a monitoring schedule regions are started on the SDK
+		// only if there is a free slot.
+		if (null != scheduler) {
+			applyRotation(scheduler.fill(System.currentTimeMillis()));
 		}
+		return unmonitored;
 	}
 
 	/**
-	 * Start monitoring for region.
+	 * Start monitoring regions on the SDK, connecting to the beacon
+	 * manager first if needed, once for all of them.
 	 */
-	private void startMonitoringForRegion(
+	private void monitorRegions(
+			final List<BeaconRegion> regions,
+			final ResultCallback callback)
+	{
+		if (regions.isEmpty()) {
+			return;
+		}
+		for (BeaconRegion region : regions) {
+			mMonitoredRegions.put(regionHashMapKey(region), region);
+		}
+
+		// Starts right away if connected, otherwise once connected.
+		mScanner.connect(new Runnable() {
+			@Override
+			public void run() {
+				for (BeaconRegion region : regions) {
+					startMonitoring(region, callback);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the monitoring schedule. With maxActiveRegions greater than
+	 * zero, at most that many monitored regions are started on the SDK
+	 * at a time and the rest are rotated in every sliceMillis. Without it
+	 * the schedule is turned off and all regions are monitored.
+	 *
+	 * options format: { maxActiveRegions, sliceMillis, recentMillis }
+	 */
+	private void setMonitoringSchedule(
 			CordovaArgs cordovaArgs,
 			final CallbackContext callbackContext)
 			throws JSONException
 	{
-		Log.i(LOGTAG, "startMonitoringForRegion");
-
-		JSONObject json = cordovaArgs.getJSONObject(0);
+		Log.i(LOGTAG, "setMonitoringSchedule");
+
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		int maxActive = (null == options) ? 0 : options.optInt("maxActiveRegions", 0);
+
+		// Turn off any current schedule, activating all its regions.
+		mHandler.removeCallbacks(mScheduleTick);
+		RegionScheduler previous = mRegionScheduler;
+		mRegionScheduler = null;
+		if (null != previous) {
+			for (RegionScheduler.Entry entry : previous.entries()) {
+				if (!entry.active) {
+					startScheduledMonitoring(entry.key, entry.region);
+				}
+			}
+		}
 
-		final BeaconRegion region = createRegion(json);
+		if (maxActive <= 0) {
+			callbackContext.success();
+			return;
+		}
 
-		// TODO: How to handle case when region already monitored?
-		// Stop monitoring then start again?
-		// Currently, if monitoring callback already exists we
-		// do nothing, just return.
-		String key = regionHashMapKey(region);
-		if (null != mMonitoringCallbackContexts.get(key)) {
-			Log.i(LOGTAG, "Monitor already active for this region. Re-registering");
-			// Remove monitoring callback from hash map.
-			mMonitoringCallbackContexts.remove(key);
+		// Take over the currently monitored regions, then rotate
+		// right away so the working set is bounded from now on.
+		RegionScheduler scheduler = new RegionScheduler(
+				maxActive, options.optLong("recentMillis", 60000));
+		for (String key : mMonitoringSubscriptions.keySet()) {
+			BeaconRegion region = mMonitoredRegions.get(key);
+			if (null != region) {
+				scheduler.add(key, region, 0, true);
+			}
 		}
+		mScheduleSliceMillis = Math.max(1000, options.optLong("sliceMillis", 30000));
+		mRegionScheduler = scheduler;
+		mHandler.post(mScheduleTick);
 
-		// Add callback to hash map.
-		mMonitoringCallbackContexts.put(key, callbackContext);
+		callbackContext.success();
+	}
 
-		// Create monitoring listener.
-		mBeaconManager.setMonitoringListener(new PluginMonitoringListener());
+	/**
+	 * Start the next time slice of the monitoring schedule,
+	 * on the main thread.
+	 */
+	private void rotateRegions()
+	{
+		RegionScheduler scheduler = mRegionScheduler;
+		if (null == scheduler) {
+			return;
+		}
+		applyRotation(scheduler.rotate(System.currentTimeMillis()));
+		mHandler.postDelayed(mScheduleTick, mScheduleSliceMillis);
+	}
 
-		// If connected start monitoring immediately, otherwise first connect.
-		if (mIsConnected) {
-			startMonitoring(region, callbackContext);
+	/**
+	 * Fill free slots of the monitoring schedule.
+	 */
+	private void fillRegions()
+	{
+		RegionScheduler scheduler = mRegionScheduler;
+		if (null != scheduler) {
+			applyRotation(scheduler.fill(System.currentTimeMillis()));
 		}
-		else {
-			Log.i(LOGTAG, "connect");
-			mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
-				@Override
-				public void onServiceReady() {
-					Log.i(LOGTAG, "onServiceReady");
-					mIsConnected = true;
-					startMonitoring(region, callbackContext);
+	}
+
+	private void applyRotation(RegionScheduler.Rotation rotation)
+	{
+		for (RegionScheduler.Entry entry : rotation.deactivate) {
+			mMonitoredRegions.remove(entry.key);
+			if (mScanner.isConnected() && !mBluetoothPaused) {
+				try {
+					mScanner.stopMonitoring(entry.region);
 				}
-			});
+				catch (Exception e) {
+					Log.e(LOGTAG, "rotation stopMonitoring", e);
+				}
+			}
+		}
+		for (RegionScheduler.Entry entry : rotation.activate) {
+			startScheduledMonitoring(entry.key, entry.region);
+		}
+	}
+
+	/**
+	 * Start monitoring a region on the SDK, connecting first if needed.
+	 */
+	private void startScheduledMonitoring(String key, final BeaconRegion region)
+	{
+		mMonitoredRegions.put(key, region);
+		final ResultCallback callback = mMonitoringSubscriptions.firstCallback(key);
+		mScanner.connect(new Runnable() {
+			@Override
+			public void run() {
+				startMonitoring(region, callback);
+			}
+		});
+	}
+
+	/**
+	 * Return monitoring schedule statistics, see RegionScheduler.
+	 */
+	private void getMonitoringScheduleStats(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		RegionScheduler scheduler = mRegionScheduler;
+		if (null == scheduler) {
+			callbackContext.error("No monitoring schedule");
+			return;
 		}
+		JSONObject json = scheduler.statsToJSON();
+		json.put("sliceMillis", mScheduleSliceMillis);
+		callbackContext.success(json);
 	}
 
 	/**
 	 * Helper method.
 	 */
-	private void startMonitoring(BeaconRegion region, CallbackContext callbackContext)
+	private void startMonitoring(BeaconRegion region, ResultCallback callback)
 	{
+		// Started by resumeScanning() when Bluetooth comes back on.
+		if (mBluetoothPaused) {
+			Log.i(LOGTAG, "startMonitoring deferred, Bluetooth is off");
+			return;
+		}
+
 		try {
 			Log.i(LOGTAG, "startMonitoring");
-			mBeaconManager.startMonitoring(region);
+			mScanner.startMonitoring(region);
 		}
 		catch(Exception e) {
 			Log.e(LOGTAG, "startMonitoring error:", e);
-			callbackContext.error("startMonitoring RemoteException");
+			if (null != callback) {
+				callback.error("startMonitoring RemoteException");
+			}
 		}
 	}
 
@@ -492,42 +2837,252 @@ public class EstimoteBeacons extends CordovaPlugin
 
 		BeaconRegion region = createRegion(json);
 
-		// If monitoring callback does not exist call error callback
+		// Remove the subscription, or all of the region's if no id
+		// is given. If there is none call error callback.
 		String key = regionHashMapKey(region);
-		CallbackContext monitoringCallback = mMonitoringCallbackContexts.get(key);
-		if (null == monitoringCallback) {
+		if (!unsubscribe(mMonitoringSubscriptions, key, cordovaArgs, 1)) {
 			callbackContext.error("Region not monitored");
 			return;
 		}
 
-		// Remove monitoring callback from hash map.
-		mMonitoringCallbackContexts.remove(key);
-
-		// Clear monitoring callback on JavaScript side.
-		PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-		result.setKeepCallback(false);
-		monitoringCallback.sendPluginResult(result);
+		// Monitoring stops on the SDK when the last subscription leaves.
+		if (mMonitoringSubscriptions.containsKey(key)) {
+			callbackContext.success();
+			return;
+		}
+		BeaconRegion monitored = unmonitorRegion(key);
+		if (null == monitored) {
+			callbackContext.success();
+			return;
+		}
+
+		// A stopped active region frees a slot for another one.
+		if (null != mRegionScheduler) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					fillRegions();
+				}
+			});
+		}
+
+		// Stop monitoring if connected.
+		if (mScanner.isConnected()) {
+			try {
+				Log.i(LOGTAG, "stopMonitoring");
+
+				// Stop monitoring.
+				mScanner.stopMonitoring(monitored);
+
+				// Send back success.
+				callbackContext.success();
+			}
+			catch(Exception e) {
+				Log.e(LOGTAG, "stopMonitoring", e);
+				callbackContext.error("stopMonitoring RemoteException");
+			}
+		}
+		else {
+			callbackContext.error("Not connected");
+		}
+	}
+
+	/**
+	 * Take a region that lost its last monitoring subscription off the
+	 * monitoring schedule and the monitored regions. Returns the region
+	 * if it is on the SDK and has to be stopped there, otherwise null.
+	 * Scheduled regions may not be on the SDK at the moment.
+	 */
+	private BeaconRegion unmonitorRegion(String key)
+	{
+		endBurstLater(key);
+		RegionScheduler scheduler = mRegionScheduler;
+		if (null != scheduler) {
+			RegionScheduler.Entry entry = scheduler.remove(key);
+			if (null != entry && !entry.active) {
+				return null;
+			}
+		}
+		return mMonitoredRegions.remove(key);
+	}
+
+	/**
+	 * Start monitoring for several regions at once, with one subscription
+	 * id and callback for all of them. The regions are all parsed before
+	 * anything changes. Regions new to the SDK are started after a single
+	 * connect, or with a monitoring schedule added to it and the free
+	 * slots filled once.
+	 * Arguments: [regions, options, subscriptionId]
+	 */
+	private void startMonitoringRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "startMonitoringRegions");
+
+		Map<String, BeaconRegion> regions = createRegions(cordovaArgs.getJSONArray(0));
+		if (null == regions) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+
+		ResultCallback callback = new CordovaResultCallback(callbackContext);
+		monitorRegions(
+				subscribeMonitoring(
+						regions,
+						subscriptionId(cordovaArgs, 2),
+						cordovaArgs.optJSONObject(1),
+						callback),
+				callback);
+	}
+
+	/**
+	 * Stop monitoring for several regions at once.
+	 * Arguments: [regions, subscriptionId]
+	 * Without regions all regions of the subscription are stopped,
+	 * without a subscription id all subscriptions of the regions.
+	 * Regions left without subscriptions are stopped on the SDK.
+	 *
+	 * result format: { stopped, sdkStopped }
+	 */
+	private void stopMonitoringRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "stopMonitoringRegions");
+
+		int id = cordovaArgs.optInt(1);
+		List<String> keys = regionKeys(mMonitoringSubscriptions, cordovaArgs.optJSONArray(0), id);
+		if (null == keys) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		List<BeaconRegion> unmonitored = new ArrayList<BeaconRegion>();
+		int stopped = 0;
+		for (String key : keys) {
+			List<RegionSubscriptions.Subscription> subscriptions =
+					removeSubscriptions(mMonitoringSubscriptions, key, id);
+			if (subscriptions.isEmpty()) {
+				continue;
+			}
+			++stopped;
+			removed.addAll(subscriptions);
+			if (!mMonitoringSubscriptions.containsKey(key)) {
+				BeaconRegion region = unmonitorRegion(key);
+				if (null != region) {
+					unmonitored.add(region);
+				}
+			}
+		}
+		clearCallbacks(mMonitoringSubscriptions, removed);
+		stopMonitoringRegions(unmonitored);
+
+		// Stopped active regions free slots for other ones.
+		if (!unmonitored.isEmpty() && null != mRegionScheduler) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					fillRegions();
+				}
+			});
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("stopped", stopped);
+		json.put("sdkStopped", unmonitored.size());
+		callbackContext.success(json);
+	}
+
+	/**
+	 * Replace the regions of a monitoring subscription as one diff.
+	 * Regions no longer wanted are removed, and stopped on the SDK unless
+	 * other subscriptions monitor them, before new regions are added with
+	 * options and started. Regions in both sets keep their subscription
+	 * as it is. Events keep going to the callback the subscription was
+	 * started with.
+	 * Arguments: [regions, options, subscriptionId]
+	 *
+	 * result format: { added, removed, kept }
+	 */
+	private void replaceMonitoredRegions(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "replaceMonitoredRegions");
+
+		Map<String, BeaconRegion> regions = createRegions(cordovaArgs.getJSONArray(0));
+		if (null == regions) {
+			callbackContext.error("Invalid region");
+			return;
+		}
+		int id = cordovaArgs.optInt(2);
+		RegionSubscriptions.Subscription existing = mMonitoringSubscriptions.find(id);
+		if (null == existing) {
+			callbackContext.error("No such subscription");
+			return;
+		}
+
+		// What is left of regions after the diff is the regions to add.
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		List<BeaconRegion> unmonitored = new ArrayList<BeaconRegion>();
+		int kept = 0;
+		for (String key : mMonitoringSubscriptions.keysOf(id)) {
+			if (null != regions.remove(key)) {
+				++kept;
+				continue;
+			}
+			removed.add(mMonitoringSubscriptions.remove(key, id));
+			if (!mMonitoringSubscriptions.containsKey(key)) {
+				BeaconRegion region = unmonitorRegion(key);
+				if (null != region) {
+					unmonitored.add(region);
+				}
+			}
+		}
+		stopMonitoringRegions(unmonitored);
 
-		// Stop monitoring if connected.
-		if (mIsConnected) {
-			try {
-				Log.i(LOGTAG, "stopMonitoring");
+		// Adding to a monitoring schedule also fills the slots
+		// freed above.
+		int added = regions.size();
+		monitorRegions(
+				subscribeMonitoring(
+						regions,
+						id,
+						cordovaArgs.optJSONObject(1),
+						existing.callback),
+				existing.callback);
+		clearCallbacks(mMonitoringSubscriptions, removed);
 
-				// Stop monitoring.
-				mBeaconManager.stopMonitoring(region.getIdentifier());
-				//mBeaconManager.stopMonitoring(region);
+		JSONObject json = new JSONObject();
+		json.put("added", added);
+		json.put("removed", removed.size());
+		json.put("kept", kept);
+		callbackContext.success(json);
+	}
 
-				// Send back success.
-				callbackContext.success();
+	/**
+	 * Stop monitoring regions on the SDK, if connected.
+	 */
+	private void stopMonitoringRegions(List<BeaconRegion> regions)
+	{
+		if (!mScanner.isConnected()) {
+			return;
+		}
+		for (BeaconRegion region : regions) {
+			try {
+				mScanner.stopMonitoring(region);
 			}
-			catch(Exception e) {
+			catch (Exception e) {
 				Log.e(LOGTAG, "stopMonitoring", e);
-				callbackContext.error("stopMonitoring RemoteException");
 			}
 		}
-		else {
-			callbackContext.error("Not connected");
-		}
 	}
 
 	/**
@@ -545,9 +3100,13 @@ public class EstimoteBeacons extends CordovaPlugin
 
 			String appID = cordovaArgs.getString(0);
 			String appToken = cordovaArgs.getString(1);
-			EstimoteSDK.initialize(cordova.getActivity(), appID, appToken);
-			PluginResult r = new PluginResult(PluginResult.Status.OK);
-			callbackContext.sendPluginResult(r);
+			initializeSdk(appID, appToken, new Runnable() {
+				@Override
+				public void run() {
+					PluginResult r = new PluginResult(PluginResult.Status.OK);
+					callbackContext.sendPluginResult(r);
+				}
+			});
 		} else {
 			// todo consider including helpful info e.g. appID
 			callbackContext.error("already authenticated to Estimote Cloud");
@@ -559,14 +3118,7 @@ public class EstimoteBeacons extends CordovaPlugin
 	 */
 	private Beacon findBeacon(String macAddress) {
 		Log.i(LOGTAG, "findBeacon(String)");
-		for (Iterator<Beacon> i = mRangedBeacons.iterator(); i.hasNext();) {
-			Beacon beacon = i.next();
-			if (beacon.getMacAddress().equals(macAddress)) {
-				return beacon;
-			}
-		}
-
-		return null;
+		return mScanCycle.find(macAddress);
 	}
 
 	/**
@@ -574,16 +3126,12 @@ public class EstimoteBeacons extends CordovaPlugin
 	 */
 	private Beacon findBeacon(String proximityUUID, int major, int minor) {
 		Log.i(LOGTAG, "findBeacon(String, int, int)");
-		for (Iterator<Beacon> i = mRangedBeacons.iterator(); i.hasNext();) {
-			Beacon beacon = i.next();
-			if (beacon.getProximityUUID().equals(proximityUUID) &&
-					beacon.getMajor() == major &&
-					beacon.getMinor() == minor) {
-				return beacon;
-			}
+		try {
+			return mScanCycle.find(UUID.fromString(proximityUUID), major, minor);
+		}
+		catch (IllegalArgumentException e) {
+			return null;
 		}
-
-		return null;
 	}
 
 	/**
@@ -626,38 +3174,76 @@ public class EstimoteBeacons extends CordovaPlugin
 			return;
 		}
 
-		// beacons are jealous creatures and don't like competition
-		if (mConnectedBeacon != null &&
-				!mConnectedBeacon.getMacAddress().equals(beacon.getMacAddress())) {
-			disconnectConnectedBeacon();
-		}
+		// Reuses an open session, the pool closes the idlest
+		// connection if it is full.
+		connections().connect(beacon, new BeaconConnectionManager.Callback() {
+			@Override
+			public void onReady(BeaconConnectionManager.Session session, boolean reused) {
+				mConnectedSession = session;
+				mConnectedBeacon = session.connection;
+				try {
+					JSONObject json = beaconInfoToJSON(session.info);
+					json.put("reused", reused);
+					json.put("authMillis", session.authMillis);
+					callbackContext.sendPluginResult(
+							new PluginResult(PluginResult.Status.OK, json));
+				}
+				catch (JSONException e) {
+					String msg;
+					msg = "connection succeeded, could not marshall object: ";
+					msg = msg.concat(e.getMessage());
 
-		mBeaconConnectionCallback = callbackContext;
-		mConnectedBeacon = new BeaconConnected(
-				cordova.getActivity(),
-				beacon,
-				new PluginConnectingListener()
-		);
+					callbackContext.error(msg);
+				}
+			}
 
-		mConnectedBeacon.authenticate();
+			@Override
+			public void onError(String message) {
+				callbackContext.error(message);
+			}
+		});
+	}
 
-		return;
+	/**
+	 * Pooled connections, created on first use.
+	 */
+	private synchronized BeaconConnectionManager connections()
+	{
+		if (null == mConnections) {
+			mConnections = new BeaconConnectionManager(
+					cordova.getActivity(),
+					mHandler,
+					new BeaconConnectionManager.DisconnectListener() {
+						@Override
+						public void onDisconnected(BeaconConnectionManager.Session session) {
+							Log.i(LOGTAG, "beacon disconnected " + session.key);
+							if (session == mConnectedSession) {
+								mConnectedSession = null;
+								mConnectedBeacon = null;
+							}
+						}
+					});
+		}
+		return mConnections;
 	}
 
 	/**
-	 * Disconnect connected beacon
+	 * Close all beacon connections.
 	 */
 	private void disconnectConnectedBeacon() {
 		Log.i(LOGTAG, "disconnectConnectedBeacon");
 
-		if (mConnectedBeacon != null && mConnectedBeacon.isConnected()) {
-			mConnectedBeacon.close();
-			mConnectedBeacon = null;
+		mConnectedSession = null;
+		mConnectedBeacon = null;
+		if (mConnections != null) {
+			mConnections.closeAll();
 		}
 	}
 
 	/**
-	 * Disconnect connected beacon, c/o Cordova
+	 * Disconnect connected beacon, c/o Cordova. The connection is kept
+	 * in the pool until its idle timeout, unless options.close is set.
+	 * Arguments: [options]
 	 */
 	private void disconnectConnectedBeacon(
 			CordovaArgs cordovaArgs,
@@ -666,8 +3252,52 @@ public class EstimoteBeacons extends CordovaPlugin
 	{
 		Log.i(LOGTAG, "disconnectConnectedBeacon (cordova)");
 
-		mBeaconDisconnectionCallback = callbackContext;
-		disconnectConnectedBeacon();
+		JSONObject options = cordovaArgs.optJSONObject(0);
+		BeaconConnectionManager.Session session = mConnectedSession;
+		mConnectedSession = null;
+		mConnectedBeacon = null;
+		if (null != session) {
+			if (null != options && options.optBoolean("close")) {
+				mConnections.close(session);
+			}
+			else {
+				mConnections.touch(session);
+			}
+		}
+		callbackContext.success();
+	}
+
+	/**
+	 * Configure the connection pool.
+	 * Arguments: [{ idleTimeoutMillis, maxConnections, maxRetries,
+	 *   retryBaseMillis }]
+	 */
+	private void configureConnections(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		Log.i(LOGTAG, "configureConnections");
+
+		JSONObject options = cordovaArgs.getJSONObject(0);
+		connections().configure(
+				options.optLong("idleTimeoutMillis", 0),
+				options.optInt("maxConnections", 0),
+				options.optInt("maxRetries", -1),
+				options.optLong("retryBaseMillis", 0));
+		callbackContext.success();
+	}
+
+	/**
+	 * Connection pool statistics, including connect and authentication
+	 * latency.
+	 */
+	private void getConnectionStats(
+			CordovaArgs cordovaArgs,
+			final CallbackContext callbackContext)
+			throws JSONException
+	{
+		callbackContext.success(connections().statsToJSON());
 	}
 
 	/**
@@ -801,131 +3431,6 @@ public class EstimoteBeacons extends CordovaPlugin
 		}
 	}
 
-	/**
-	 * Create JSON object representing beacon info.
-	 *
-	 * beaconInfo format:
-	 * {
-	 *	 region: region,
-	 *	 beacons: array of beacon
-	 * }
-	 */
-	private JSONObject makeJSONBeaconInfo(BeaconRegion region, List<Beacon> beacons)
-			throws JSONException
-	{
-		// Create JSON object.
-		JSONObject json = new JSONObject();
-		json.put("region", makeJSONRegion(region));
-		json.put("beacons", makeJSONBeaconArray(beacons));
-        Log.i(LOGTAG, "*** in makeJSONBeaconInfo region - " + region);
-        Log.i(LOGTAG, "*** in makeJSONBeaconInfo beacons - " + beacons);
-        Log.i(LOGTAG, "*** in makeJSONBeaconInfo json - " + json);
-		return json;
-	}
-
-	/**
-	 * Create JSON object representing a region.
-	 */
-	private static JSONObject makeJSONRegion(BeaconRegion region)
-			throws JSONException
-	{
-		return makeJSONRegion(region, null);
-	}
-
-	/**
-	 * Create JSON object representing a region in the given state.
-	 */
-	private static JSONObject makeJSONRegion(BeaconRegion region, String state)
-			throws JSONException
-	{
-		JSONObject json = new JSONObject();
-		json.put("identifier", region.getIdentifier());
-		json.put("uuid", region.getProximityUUID());
-		json.put("major", region.getMajor());
-		json.put("minor", region.getMinor());
-		if (state != null) {
-			json.put("state", state);
-		}
-		return json;
-	}
-
-	/**
-	 * Create JSON object representing a beacon list.
-	 */
-	private JSONArray makeJSONBeaconArray(List<Beacon> beacons)
-			throws JSONException
-	{
-		final JSONArray jsonArray = new JSONArray();
-		for (final Beacon b : beacons) {
-			// Compute proximity value.
-            //Log.i(LOGTAG, "*** makeJSONBeaconArray For loop - " + b);
-			Proximity proximityValue = computeProximity(b);
-			int proximity = 0; // Unknown.
-			if (Proximity.IMMEDIATE == proximityValue) { proximity = 1; }
-			else if (Proximity.NEAR == proximityValue) { proximity = 2; }
-			else if (Proximity.FAR == proximityValue) { proximity = 3; }
-			final int proximity_ = proximity;
-			// Compute distance value.
-			final double distance = computeAccuracy(b);
-
-			// Normalize UUID.
-
-			String uuid = (b.getProximityUUID().toString());
-//			EstimoteCloud estimoteCloud = EstimoteCloud.getInstance();
-//			estimoteCloud.fetchBeaconDetails(b.getMacAddress(), new CloudCallback<BeaconInfo>() {
-//				@Override
-//				public void success(BeaconInfo beaconInfo) {
-//					// Construct JSON object for beacon.
-//                    Log.i(LOGTAG, "*** fetchBeaconDetails - " + b.getMacAddress());
-					try {
-						JSONObject json = new JSONObject();
-						json.put("major", b.getMajor()); //beaconInfo.major);
-						json.put("minor", b.getMinor()); //beaconInfo.minor);
-						json.put("rssi", b.getRssi());
-						//json.put("measuredPower", beaconInfo.settings.broadcastingPower.powerInDbm);
-						json.put("proximityUUID", b.getProximityUUID()); //beaconInfo.uuid);
-						json.put("proximity", proximity_);
-						json.put("distance", distance);
-						//json.put("name", beaconInfo.name);
-						//json.put("macAddress", beaconInfo.macAddress);
-						jsonArray.put(json);
-					}
-					catch (JSONException e){
-						Log.e("JSONException", e.getMessage());
-					}
-//				}
-//
-//				@Override
-//				public void failure(EstimoteCloudException e) {
-//                    Log.i(LOGTAG, "*(******** EstimoteCloudException: " + e);
-//				}
-//			});
-
-		}
-		return jsonArray;
-	}
-
-	private JSONArray makeJSONNearableArray(List<Nearable> nearables)
-		throws JSONException{
-		final JSONArray jsonArray = new JSONArray();
-
-
-		for (final Nearable nearable : nearables){
-			try{
-				JSONObject jsonObject = new JSONObject();
-				jsonObject.put("color", nearable.color.text);
-				jsonObject.put("identifier", nearable.identifier);
-				jsonObject.put("type", nearable.type.text);
-				jsonObject.put("firmware", nearable.firmwareVersion);
-				jsonArray.put(jsonObject);
-			} catch (JSONException e){
-				Log.e("JSONException", e.getMessage());
-			}
-		}
-
-		return jsonArray;
-	}
-
 	private String regionHashMapKey(String uuid, Integer major, Integer minor) {
 		if (uuid == null) {
 			uuid = "0";
@@ -969,6 +3474,30 @@ public class EstimoteBeacons extends CordovaPlugin
 		return new BeaconRegion(identifier, java.util.UUID.fromString(uuid), major, minor);
 	}
 
+	/**
+	 * Create Region objects from a JSON array of regions, by HashMap key
+	 * in array order. Returns null if any region is invalid.
+	 */
+	private LinkedHashMap<String, BeaconRegion> createRegions(JSONArray json)
+			throws JSONException
+	{
+		LinkedHashMap<String, BeaconRegion> regions = new LinkedHashMap<String, BeaconRegion>();
+		for (int i = 0; i < json.length(); ++i) {
+			JSONObject region = json.getJSONObject(i);
+			if (!region.has("uuid")) {
+				return null;
+			}
+			try {
+				BeaconRegion created = createRegion(region);
+				regions.put(regionHashMapKey(created), created);
+			}
+			catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return regions;
+	}
+
 	/**
 	 * Create a Region object from HashMap key.
 	 */
@@ -1006,187 +3535,432 @@ public class EstimoteBeacons extends CordovaPlugin
 			Log.i(LOGTAG, "onBeaconsDiscovered");
 			
 			try {
-				// store in plugin
-				mRangedBeacons.clear();
-				mRangedBeacons.addAll(beacons);
+				// Unpack the cycle once, everything below reads it.
+				ScanCycle cycle = mScanCycle;
+				cycle.fill(beacons);
 
-				// Find region callback.
 				String key = regionHashMapKey(region);
-				CallbackContext rangingCallback = mRangingCallbackContexts.get(key);
-				if (null == rangingCallback) {
-					// No callback found.
+				mWatchdog.onCallback(key, System.currentTimeMillis());
+
+				// Count visits if aggregating presence.
+				boolean consumed = recordPresence(cycle);
+
+				// Evaluate trigger rules.
+				TriggerEngine triggers = mTriggerEngine;
+				if (null != triggers) {
+					sendTriggerEvents(triggers.evaluateBeacons(cycle, System.currentTimeMillis()));
+					consumed = consumed || mTriggerRegions.containsKey(key);
+				}
+
+				// Send position estimate if region is used for positioning.
+				CallbackContext positioningCallback = mPositioningCallbackContexts.get(key);
+				if (null != positioningCallback) {
+					sendPosition(key, cycle, positioningCallback);
+					consumed = true;
+				}
+
+				// Send matching zones if region is used for fingerprinting.
+				CallbackContext fingerprintCallback = mFingerprintCallbackContexts.get(key);
+				if (null != fingerprintCallback) {
+					sendFingerprintZones(key, cycle, fingerprintCallback);
+					consumed = true;
+				}
+
+				// Keep RSSI history if enabled.
+				RssiHistory history = mRssiHistory;
+				if (null != history) {
+					history.record(cycle, System.currentTimeMillis());
+				}
+
+				// Export sightings if enabled.
+				SightingLog sightings = mSightingLog;
+				if (null != sightings) {
+					sightings.record(key, cycle, System.currentTimeMillis());
+				}
+
+				// Keep the last beacons for warm starts.
+				if (mSnapshotRegions.contains(key)) {
+					mSnapshotStore.record(key, cycle, System.currentTimeMillis());
+				}
+
+				// Pass the cycle to monitoring subscriptions during a
+				// ranging burst after an enter.
+				if (mBurstRegions.containsKey(key)) {
+					sendBurstInfo(key, region, cycle);
+					consumed = true;
+				}
+
+				// Stream unfiltered beacon info if any client wants it.
+				CycleSerializer serializer = new CycleSerializer(key, region, cycle);
+				BeaconStreamServer server = mStreamServer;
+				if (null != server && server.wants(BeaconStreamServer.TYPE_RANGING)) {
+					server.publish(
+							BeaconStreamServer.TYPE_RANGING,
+							region.getIdentifier(),
+							serializer.json(null));
+					consumed = true;
+				}
+
+				// Send results to region subscriptions, unless out of credits.
+				if (!mRanging.deliver(key, serializer) && !consumed) {
+					// No callback found, and region is not used natively.
 					Log.e(LOGTAG,
 							"onBeaconsDiscovered no callback found for key: " + key);
-					return;
 				}
-
-				// Create JSON beacon info object.
-				JSONObject json = makeJSONBeaconInfo(region, beacons);
-				
-				// Send result to JavaScript.
-				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-				r.setKeepCallback(true);
-				rangingCallback.sendPluginResult(r);
 			}
 			catch(JSONException e) {
 				Log.e(LOGTAG, "onBeaconsDiscovered error:", e);
 			}
 		}
-	}
 
-	/**
-	 * Listener for monitoring events.
-	 */
-	class PluginMonitoringListener implements BeaconManager.BeaconMonitoringListener {
-		private void sendRegionInfo(BeaconRegion region, String state) {
-			try {
-				// Find region callback.
-				String key = regionHashMapKey(region);
-				CallbackContext monitoringCallback = mMonitoringCallbackContexts.get(key);
-				if (null == monitoringCallback) {
-					// No callback found.
-					Log.e(LOGTAG, "sendRegionInfo no callback found for key: " + key);
-					return;
-				}
+		/**
+		 * Serializes beacon info straight to JSON text, keeping the
+		 * unfiltered text for all that want it.
+		 */
+		private class CycleSerializer implements RegionRanging.Serializer
+		{
+			private final String mKey;
+			private final BeaconRegion mRegion;
+			private final ScanCycle mCycle;
+			private String mUnfiltered;
+
+			CycleSerializer(String key, BeaconRegion region, ScanCycle cycle)
+			{
+				mKey = key;
+				mRegion = region;
+				mCycle = cycle;
+			}
 
-				// Create JSON region info object with the given state.
-				JSONObject json = makeJSONRegion(region, state);
+			@Override
+			public String json(BeaconFilter filter) throws JSONException
+			{
+				if (null != filter) {
+					return BeaconJsonWriter.beaconInfo(mKey, mRegion, mCycle, filter);
+				}
+				if (null == mUnfiltered) {
+					mUnfiltered = BeaconJsonWriter.beaconInfo(mKey, mRegion, mCycle, null);
+				}
+				return mUnfiltered;
+			}
+		}
 
-				// Send result to JavaScript.
-				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-				r.setKeepCallback(true);
-				monitoringCallback.sendPluginResult(r);
+		/**
+		 * Record ranged beacons for presence aggregation.
+		 * Returns true if the beacons were recorded.
+		 */
+		private boolean recordPresence(ScanCycle cycle)
+		{
+			PresenceAggregator aggregator = mPresenceAggregator;
+			if (null == aggregator) {
+				return false;
 			}
-			catch(JSONException e) {
-				Log.e(LOGTAG, "sendRegionInfo error:", e);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < cycle.count; ++i) {
+				aggregator.beaconSeen(cycle.beaconKey(i), now);
+			}
+			return true;
+		}
+
+		/**
+		 * Solve a position from the mapped beacons and send it.
+		 * Nothing is sent until a first fix is available.
+		 */
+		private void sendPosition(
+				String key,
+				ScanCycle cycle,
+				CallbackContext positioningCallback)
+				throws JSONException
+		{
+			PositioningEngine.Tracker tracker = mPositioningTrackers.get(key);
+			if (null == tracker) {
+				return;
 			}
-		}
 
-		@Override
-		public void onEnteredRegion(BeaconRegion region, List<Beacon> list) {
-			// Note that results are not delivered on UI thread.
+			// Collect mapped beacons into the scratch arrays of the tracker.
+			tracker.reserve(cycle.count);
+			PositioningEngine.MapEntry[] entries = tracker.entries;
+			double[] distances = tracker.distances;
+			int count = 0;
+			for (int i = 0; i < cycle.count; ++i) {
+				if (!cycle.hasDistance(i)) {
+					continue;
+				}
+				PositioningEngine.MapEntry entry =
+						mPositioningEngine.lookup(cycle.beaconKey(i));
+				if (null != entry) {
+					entries[count] = entry;
+					distances[count] = cycle.distance[i];
+					++count;
+				}
+			}
 
-			Log.i(LOGTAG, "onEnteredRegion");
+			PositioningEngine.Fix fix =
+					tracker.update(PositioningEngine.solve(entries, distances, count));
+			if (null == fix || !fix.isFinite()) {
+				return;
+			}
 
-			sendRegionInfo(region, "inside");
-		}
+			PluginResult r = new PluginResult(PluginResult.Status.OK, fix.toJSON());
+			r.setKeepCallback(true);
+			positioningCallback.sendPluginResult(r);
+		}
+
+		/**
+		 * Match the cycle against the fingerprint index and send the
+		 * best zones. Nothing is sent while too few indexed beacons
+		 * are in range.
+		 */
+		private void sendFingerprintZones(
+				String key,
+				ScanCycle cycle,
+				CallbackContext fingerprintCallback)
+				throws JSONException
+		{
+			FingerprintIndex index = mFingerprintIndex;
+			FingerprintSession session = mFingerprintSessions.get(key);
+			if (null == index || null == session) {
+				return;
+			}
 
-		@Override
-		public void onExitedRegion(BeaconRegion region) {
-			// Note that results are not delivered on UI thread.
-			Log.i(LOGTAG, "onExitedRegion");
+			// Reuse the observation vector between cycles.
+			if (session.index != index) {
+				session.index = index;
+				session.observed = index.newObservation();
+				session.empty = index.newObservation();
+			}
+			int[] observed = session.observed;
+			System.arraycopy(session.empty, 0, observed, 0, observed.length);
+
+			int matched = 0;
+			for (int i = 0; i < cycle.count; ++i) {
+				int column = index.column(
+						cycle.uuidString(i), cycle.major[i], cycle.minor[i]);
+				if (column >= 0) {
+					FingerprintIndex.observe(observed, column, cycle.rssi[i]);
+					++matched;
+				}
+			}
+			if (matched < session.minBeacons) {
+				return;
+			}
+
+			JSONObject json = new JSONObject();
+			json.put("zones", index.match(observed, session.k, session.maxZones));
+			json.put("beaconCount", matched);
 
-			sendRegionInfo(region, "outside");
+			PluginResult r = new PluginResult(PluginResult.Status.OK, json);
+			r.setKeepCallback(true);
+			fingerprintCallback.sendPluginResult(r);
 		}
 	}
 
 	/**
-	 * Listener for beacon connection events
+	 * Fingerprint matching options and scratch state for one region.
 	 */
-	class PluginConnectingListener implements BeaconConnection.ConnectionCallback
+	static class FingerprintSession
 	{
+		int k;
+		int maxZones;
+		int minBeacons;
+		FingerprintIndex index;
+		int[] observed;
+		int[] empty;
+	}
+
+	/**
+	 * Listener for nearable discovery, feeding trigger rules, the stream
+	 * server and nearable ranging.
+	 */
+	class PluginNearableListener implements BeaconManager.NearableListener {
 		@Override
-		public void onAuthorized(BeaconInfo beaconInfo) {
-			CallbackContext callback = mBeaconConnectionCallback;
+		public void onNearablesDiscovered(List<Nearable> list) {
+			Log.i(LOGTAG, "nearablesDiscovered");
+
+			TriggerEngine triggers = mTriggerEngine;
+			if (null != triggers) {
+				try {
+					sendTriggerEvents(triggers.evaluateNearables(list, System.currentTimeMillis()));
+				}
+				catch (JSONException e) {
+					Log.e(LOGTAG, "nearable triggers error:", e);
+				}
+			}
+
+			CallbackContext callbackContext = mNearablesCallbackContext;
+			if (list.size() > 0){
+				Log.i(LOGTAG, list.get(0).identifier);
+				String json = BeaconJsonWriter.nearables(list);
+				BeaconStreamServer server = mStreamServer;
+				if (null != server) {
+					server.publish(BeaconStreamServer.TYPE_NEARABLES, null, json);
+				}
+				if (null != callbackContext) {
+					PluginResult r = new BeaconJsonWriter.Result(PluginResult.Status.OK, json);
+					r.setKeepCallback(true);
+					callbackContext.sendPluginResult(r);
+				}
+			}
+		}
+	}
 
-			if (callback == null) {
+	/**
+	 * Listener for monitoring events.
+	 */
+	class PluginMonitoringListener implements BeaconManager.BeaconMonitoringListener {
+		/**
+		 * Send region state to subscriptions. The beacons that triggered
+		 * an enter, if not null, go to subscriptions that want them,
+		 * and a ranging burst is started if one is wanted.
+		 */
+		private void sendRegionInfo(BeaconRegion region, String state, List<Beacon> beacons) {
+			// Find region subscriptions.
+			final String key = regionHashMapKey(region);
+			List<RegionSubscriptions.Subscription> subscriptions =
+					mMonitoringSubscriptions.get(key);
+			if (subscriptions.isEmpty()) {
+				// No callback found.
+				Log.e(LOGTAG, "sendRegionInfo no callback found for key: " + key);
 				return;
 			}
 
-			try {
-				JSONObject json = new JSONObject();
-
-				// add beaconInfo
-				json.put(
-						"batteryLifeExpectancyInDays",
-						beaconInfo.batteryLifeExpectancyInDays
-				);
-				json.put("color", beaconInfo.color.toString());
-				json.put("macAddress", beaconInfo.macAddress);
-				json.put("major", beaconInfo.major);
-				json.put("minor", beaconInfo.minor);
-				json.put("name", beaconInfo.name);
-				json.put("uuid", beaconInfo.uuid);
-
-				Log.i(LOGTAG, "2");
-				// add beaconInfo.settings
-				BeaconInfoSettings settings = beaconInfo.settings;
-				JSONObject jsonSettings = new JSONObject();
-				jsonSettings.put(
-						"advertisingIntervalMillis",
-						settings.advertisingIntervalMillis
-				);
-				jsonSettings.put("batteryLevel", settings.batteryLevel);
-				jsonSettings.put(
-						"broadcastingPower",
-						settings.broadcastingPower
-				);
-				jsonSettings.put("firmware", settings.firmware);
-				jsonSettings.put("hardware", settings.hardware);
-
-				Log.i(LOGTAG, "3");
-				// finish up response param
-				json.put("settings", jsonSettings);
-
-				Log.i(LOGTAG, "4");
-				Log.i(LOGTAG, json.toString());
-				// pass back to web
-				PluginResult r = new PluginResult(PluginResult.Status.OK, json);
-				callback.sendPluginResult(r);
-			} catch (JSONException e) {
-				Log.i(LOGTAG, "inError");
-				String msg;
-				msg = "connection succeeded, could not marshall object: ";
-				msg = msg.concat(e.getMessage());
+			// Serialize region info with the given state, once for all,
+			// and once with beacons if any subscription wants them.
+			String json = BeaconJsonWriter.regionState(key, region, state);
+			String withBeacons = null;
 
-				callback.error(msg);
+			BeaconStreamServer server = mStreamServer;
+			if (null != server) {
+				server.publish(
+						BeaconStreamServer.TYPE_MONITORING, region.getIdentifier(), json);
+			}
+
+			// Send result to JavaScript, unless out of credits.
+			long burstMillis = 0;
+			ResultCallback burstCallback = null;
+			for (RegionSubscriptions.Subscription subscription : subscriptions) {
+				if (subscription.streamOnly) {
+					continue;
+				}
+				String result = json;
+				if (null != beacons && subscription.enterBeacons) {
+					if (null == withBeacons) {
+						withBeacons = BeaconJsonWriter.regionState(key, region, state, beacons);
+					}
+					result = withBeacons;
+				}
+				subscription.send(result);
+				if (subscription.burstMillis > burstMillis) {
+					burstMillis = subscription.burstMillis;
+					burstCallback = subscription.callback;
+				}
 			}
 
-			// cleanup
-			mBeaconConnectionCallback = null;
+			if (null != beacons && burstMillis > 0) {
+				final BeaconRegion burstRegion = region;
+				final long millis = burstMillis;
+				final ResultCallback callback = burstCallback;
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						startBurst(key, burstRegion, millis, callback);
+					}
+				});
+			}
 		}
 
 		@Override
-		public void onConnected(BeaconInfo beaconInfo) {
-			//TODO: Implement onConnected method.
-		}
+		public void onEnteredRegion(BeaconRegion region, List<Beacon> list) {
+			// Note that results are not delivered on UI thread.
 
-		@Override public void onAuthenticationError(EstimoteDeviceException e) {
-			CallbackContext callback = mBeaconConnectionCallback;
+			Log.i(LOGTAG, "onEnteredRegion");
 
-			if (callback == null) {
+			if (!stateChanged(region, true)) {
 				return;
 			}
 
-			// pass back to js
-			callback.error(e.getMessage());
-
-			// print stacktrace to android logs
-			StringWriter sw = new StringWriter();
-			PrintWriter pw = new PrintWriter(sw);
-			e.printStackTrace(pw);
-			Log.e(LOGTAG, sw.toString());
+			PresenceAggregator aggregator = mPresenceAggregator;
+			if (null != aggregator) {
+				aggregator.regionEntered(region.getIdentifier(), System.currentTimeMillis());
+			}
 
-			// cleanup
-			mBeaconConnectionCallback = null;
+			sendRegionInfo(region, "inside", list);
 		}
 
-		@Override public void onDisconnected() {
-			CallbackContext callback = mBeaconDisconnectionCallback;
+		@Override
+		public void onExitedRegion(BeaconRegion region) {
+			// Note that results are not delivered on UI thread.
+			Log.i(LOGTAG, "onExitedRegion");
 
-			if (callback == null) {
+			if (!stateChanged(region, false)) {
 				return;
 			}
 
-			PluginResult r = new PluginResult(PluginResult.Status.OK);
-			callback.sendPluginResult(r);
+			PresenceAggregator aggregator = mPresenceAggregator;
+			if (null != aggregator) {
+				aggregator.regionExited(region.getIdentifier(), System.currentTimeMillis());
+			}
 
-			// cleanup
-			mBeaconDisconnectionCallback = null;
+			endBurstLater(regionHashMapKey(region));
+			sendRegionInfo(region, "outside", null);
 		}
+
+		/**
+		 * False if a scheduled region already was in this state, which
+		 * happens when it is rotated back in.
+		 */
+		private boolean stateChanged(BeaconRegion region, boolean inside) {
+			RegionScheduler scheduler = mRegionScheduler;
+			return null == scheduler || scheduler.recordState(
+					regionHashMapKey(region), inside, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Beacon info from an authorized connection.
+	 *
+	 * format:
+	 * { batteryLifeExpectancyInDays, color, macAddress, major, minor,
+	 *   name, uuid, settings: { advertisingIntervalMillis, batteryLevel,
+	 *   broadcastingPower, firmware, hardware } }
+	 */
+	private static JSONObject beaconInfoToJSON(BeaconInfo beaconInfo)
+			throws JSONException
+	{
+		JSONObject json = new JSONObject();
+
+		// add beaconInfo
+		json.put(
+				"batteryLifeExpectancyInDays",
+				beaconInfo.batteryLifeExpectancyInDays
+		);
+		json.put("color", beaconInfo.color.toString());
+		json.put("macAddress", beaconInfo.macAddress);
+		json.put("major", beaconInfo.major);
+		json.put("minor", beaconInfo.minor);
+		json.put("name", beaconInfo.name);
+		json.put("uuid", beaconInfo.uuid);
+
+		// add beaconInfo.settings
+		BeaconInfoSettings settings = beaconInfo.settings;
+		JSONObject jsonSettings = new JSONObject();
+		jsonSettings.put(
+				"advertisingIntervalMillis",
+				settings.advertisingIntervalMillis
+		);
+		jsonSettings.put("batteryLevel", settings.batteryLevel);
+		jsonSettings.put(
+				"broadcastingPower",
+				settings.broadcastingPower
+		);
+		jsonSettings.put("firmware", settings.firmware);
+		jsonSettings.put("hardware", settings.hardware);
+
+		// finish up response param
+		json.put("settings", jsonSettings);
+		return json;
 	}
 
-	public class BeaconConnected extends BeaconConnection {
+	public static class BeaconConnected extends BeaconConnection {
 		private Beacon mBeacon;
 
 		public BeaconConnected(
@@ -0,0 +1,414 @@
+/*
+RSSI fingerprint matching for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Read-only index of RSSI fingerprints, memory mapped from a compact
+ * binary file, with k-nearest-neighbour zone matching.
+ *
+ * The index is built once from a JSON fingerprint database:
+ * {
+ *	 beacons: [ { uuid, major, minor }, ... ],
+ *	 fingerprints: [ { zone: "zone id", rssi: [ -70, null, ... ] }, ... ]
+ * }
+ * Each rssi array has one entry per beacon, in the order of the beacons
+ * array, with null for beacons not heard. The beacons array must come
+ * before the fingerprints array in the file.
+ *
+ * Binary layout, big endian:
+ *	 header:  magic, version, beaconCount, fingerprintCount, zoneCount,
+ *	          rowsOffset, zonesOffset (ints)
+ *	 beacons: beaconCount x (uuid msb long, uuid lsb long, major int, minor int)
+ *	 rows:    fingerprintCount x (zone index int, beaconCount rssi bytes)
+ *	 zones:   zoneCount x (length short, UTF-8 bytes)
+ */
+class FingerprintIndex
+{
+	private static final int MAGIC = 0x45465031; // "EFP1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 7 * 4;
+	private static final int BEACON_SIZE = 8 + 8 + 4 + 4;
+
+	// Stored for beacons missing from a fingerprint.
+	private static final byte RSSI_MISSING = Byte.MIN_VALUE;
+
+	// Missing readings, stored or observed, are compared as this value.
+	private static final int RSSI_FLOOR = -100;
+
+	private final MappedByteBuffer mBuffer;
+	private final int mBeaconCount;
+	private final int mFingerprintCount;
+	private final int mRowsOffset;
+	private final int mRowSize;
+	private final String[] mZones;
+	private final HashMap<String, Integer> mColumns;
+
+	private FingerprintIndex(MappedByteBuffer buffer) throws IOException
+	{
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a fingerprint index");
+		}
+		mBuffer = buffer;
+		mBeaconCount = buffer.getInt(8);
+		mFingerprintCount = buffer.getInt(12);
+		int zoneCount = buffer.getInt(16);
+		mRowsOffset = buffer.getInt(20);
+		int zonesOffset = buffer.getInt(24);
+		mRowSize = 4 + mBeaconCount;
+
+		mColumns = new HashMap<String, Integer>(mBeaconCount * 2);
+		for (int i = 0; i < mBeaconCount; ++i) {
+			int offset = HEADER_SIZE + i * BEACON_SIZE;
+			UUID uuid = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+			mColumns.put(
+					PositioningEngine.beaconKey(
+							uuid.toString(),
+							buffer.getInt(offset + 16),
+							buffer.getInt(offset + 20)),
+					i);
+		}
+
+		mZones = new String[zoneCount];
+		buffer.position(zonesOffset);
+		for (int i = 0; i < zoneCount; ++i) {
+			int length = buffer.getShort() & 0xFFFF;
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			mZones[i] = new String(bytes, "UTF-8");
+		}
+	}
+
+	/**
+	 * Open the index for a JSON database, building the binary index
+	 * in cacheDir first if it is missing or older than the database.
+	 */
+	static FingerprintIndex open(File database, File cacheDir) throws IOException
+	{
+		File indexFile = new File(
+				cacheDir,
+				"fingerprints-" + Integer.toHexString(database.getAbsolutePath().hashCode()) + ".idx");
+		if (!indexFile.exists() || indexFile.lastModified() < database.lastModified()) {
+			File tmp = new File(indexFile.getPath() + ".tmp");
+			build(database, tmp);
+			if (!tmp.renameTo(indexFile)) {
+				tmp.delete();
+				throw new IOException("Could not write " + indexFile);
+			}
+		}
+		return map(indexFile);
+	}
+
+	private static FingerprintIndex map(File indexFile) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			return new FingerprintIndex(
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			// The mapping stays valid after the file is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * Stream the JSON database into a binary index file.
+	 */
+	private static void build(File database, File indexFile) throws IOException
+	{
+		JsonReader reader = new JsonReader(
+				new InputStreamReader(new FileInputStream(database), "UTF-8"));
+		RandomAccessFile out = new RandomAccessFile(indexFile, "rw");
+		try {
+			out.setLength(0);
+			out.write(new byte[HEADER_SIZE]);
+
+			int beaconCount = -1;
+			int fingerprintCount = 0;
+			int rowsOffset = HEADER_SIZE;
+			ArrayList<String> zones = new ArrayList<String>();
+			HashMap<String, Integer> zoneIndex = new HashMap<String, Integer>();
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("beacons".equals(name)) {
+					beaconCount = 0;
+					reader.beginArray();
+					while (reader.hasNext()) {
+						writeBeacon(reader, out);
+						++beaconCount;
+					}
+					reader.endArray();
+					rowsOffset = (int) out.getFilePointer();
+				}
+				else if ("fingerprints".equals(name)) {
+					if (beaconCount < 0) {
+						throw new IOException("beacons must precede fingerprints");
+					}
+					byte[] row = new byte[beaconCount];
+					reader.beginArray();
+					while (reader.hasNext()) {
+						int zone = readFingerprint(reader, row, zones, zoneIndex);
+						out.writeInt(zone);
+						out.write(row);
+						++fingerprintCount;
+					}
+					reader.endArray();
+				}
+				else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+
+			int zonesOffset = (int) out.getFilePointer();
+			for (String zone : zones) {
+				byte[] bytes = zone.getBytes("UTF-8");
+				out.writeShort(bytes.length);
+				out.write(bytes);
+			}
+
+			out.seek(0);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(Math.max(beaconCount, 0));
+			out.writeInt(fingerprintCount);
+			out.writeInt(zones.size());
+			out.writeInt(rowsOffset);
+			out.writeInt(zonesOffset);
+		}
+		catch (IllegalStateException e) {
+			// JsonReader reports malformed structure this way.
+			throw new IOException("Malformed fingerprint database: " + e.getMessage());
+		}
+		finally {
+			out.close();
+			reader.close();
+		}
+	}
+
+	private static void writeBeacon(JsonReader reader, RandomAccessFile out)
+			throws IOException
+	{
+		String uuid = null;
+		int major = 0;
+		int minor = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("uuid".equals(name)) {
+				uuid = reader.nextString();
+			}
+			else if ("major".equals(name)) {
+				major = reader.nextInt();
+			}
+			else if ("minor".equals(name)) {
+				minor = reader.nextInt();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (uuid == null) {
+			throw new IOException("Beacon without uuid");
+		}
+		UUID u;
+		try {
+			u = UUID.fromString(uuid);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("Invalid beacon uuid: " + uuid);
+		}
+		out.writeLong(u.getMostSignificantBits());
+		out.writeLong(u.getLeastSignificantBits());
+		out.writeInt(major);
+		out.writeInt(minor);
+	}
+
+	private static int readFingerprint(
+			JsonReader reader,
+			byte[] row,
+			ArrayList<String> zones,
+			HashMap<String, Integer> zoneIndex)
+			throws IOException
+	{
+		String zone = null;
+		Arrays.fill(row, RSSI_MISSING);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("zone".equals(name)) {
+				zone = reader.nextString();
+			}
+			else if ("rssi".equals(name)) {
+				int i = 0;
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.peek() == JsonToken.NULL || i >= row.length) {
+						reader.skipValue();
+					}
+					else {
+						row[i] = clampRssi(reader.nextInt());
+					}
+					++i;
+				}
+				reader.endArray();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (zone == null) {
+			throw new IOException("Fingerprint without zone");
+		}
+		Integer index = zoneIndex.get(zone);
+		if (index == null) {
+			index = zones.size();
+			zones.add(zone);
+			zoneIndex.put(zone, index);
+		}
+		return index;
+	}
+
+	private static byte clampRssi(int rssi)
+	{
+		return (byte) Math.max(Byte.MIN_VALUE + 1, Math.min(rssi, 0));
+	}
+
+	int beaconCount()
+	{
+		return mBeaconCount;
+	}
+
+	int fingerprintCount()
+	{
+		return mFingerprintCount;
+	}
+
+	int zoneCount()
+	{
+		return mZones.length;
+	}
+
+	/**
+	 * Column of a beacon in the index, or -1 if not indexed.
+	 */
+	int column(String uuid, int major, int minor)
+	{
+		Integer column = mColumns.get(PositioningEngine.beaconKey(uuid, major, minor));
+		return (column == null) ? -1 : column;
+	}
+
+	/**
+	 * Create an observation vector, all readings missing.
+	 */
+	int[] newObservation()
+	{
+		int[] observed = new int[mBeaconCount];
+		Arrays.fill(observed, RSSI_FLOOR);
+		return observed;
+	}
+
+	/**
+	 * Set the observed RSSI of a column.
+	 */
+	static void observe(int[] observed, int column, int rssi)
+	{
+		observed[column] = Math.max(rssi, RSSI_FLOOR);
+	}
+
+	/**
+	 * Find the k nearest fingerprints to observed and vote on zones,
+	 * weighing each neighbour by inverse distance.
+	 *
+	 * format:
+	 * [ { zone: "zone id", score: 0..1 }, ... ] best first, at most maxZones.
+	 */
+	JSONArray match(int[] observed, int k, int maxZones) throws JSONException
+	{
+		k = Math.max(1, Math.min(k, mFingerprintCount));
+
+		// Sorted nearest first.
+		long[] bestDist = new long[k];
+		int[] bestZone = new int[k];
+		Arrays.fill(bestDist, Long.MAX_VALUE);
+
+		for (int f = 0; f < mFingerprintCount; ++f) {
+			int offset = mRowsOffset + f * mRowSize;
+			long limit = bestDist[k - 1];
+			long sum = 0;
+			for (int c = 0; c < mBeaconCount && sum < limit; ++c) {
+				byte stored = mBuffer.get(offset + 4 + c);
+				int rssi = (stored == RSSI_MISSING) ? RSSI_FLOOR : stored;
+				int diff = rssi - observed[c];
+				sum += diff * diff;
+			}
+			if (sum >= limit) {
+				continue;
+			}
+			int i = k - 1;
+			while (i > 0 && bestDist[i - 1] > sum) {
+				bestDist[i] = bestDist[i - 1];
+				bestZone[i] = bestZone[i - 1];
+				--i;
+			}
+			bestDist[i] = sum;
+			bestZone[i] = mBuffer.getInt(offset);
+		}
+
+		HashMap<Integer, Double> votes = new HashMap<Integer, Double>();
+		double total = 0;
+		for (int i = 0; i < k && bestDist[i] != Long.MAX_VALUE; ++i) {
+			double w = 1.0 / (1.0 + Math.sqrt(bestDist[i]));
+			Double v = votes.get(bestZone[i]);
+			votes.put(bestZone[i], (v == null) ? w : v + w);
+			total += w;
+		}
+
+		JSONArray result = new JSONArray();
+		while (!votes.isEmpty() && result.length() < maxZones) {
+			int zone = -1;
+			double score = -1;
+			for (Map.Entry<Integer, Double> entry : votes.entrySet()) {
+				if (entry.getValue() > score) {
+					score = entry.getValue();
+					zone = entry.getKey();
+				}
+			}
+			votes.remove(zone);
+			JSONObject json = new JSONObject();
+			json.put("zone", mZones[zone]);
+			json.put("score", score / total);
+			result.put(json);
+		}
+		return result;
+	}
+}
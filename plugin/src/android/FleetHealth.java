@@ -0,0 +1,219 @@
+/*
+Fleet health from telemetry for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.recognition.packets.EstimoteTelemetry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of beacons seen through the telemetry packets Estimote beacons
+ * broadcast, one entry per device id, so that battery, temperature and
+ * uptime of a whole site can be audited without connecting to each
+ * beacon.
+ *
+ * Telemetry does not carry firmware or hardware versions; the telemetry
+ * protocol version is kept instead, it changes with the firmware
+ * generation.
+ *
+ * All methods are synchronized, telemetry arrives on the SDK thread.
+ */
+class FleetHealth
+{
+	/**
+	 * Last known state of one beacon.
+	 */
+	private static class Device
+	{
+		long firstSeen;
+		long lastSeen;
+		long packets;
+		int rssi;
+		int protocolVersion;
+		int batteryPercentage = -1;
+		int batteryVoltage;
+		double temperature = Double.NaN;
+		long uptimeSeconds = -1;
+		boolean error;
+	}
+
+	private final int mLowBatteryPercent;
+	private final long mSilentMillis;
+	private final int mMaxDevices;
+	private final HashMap<String, Device> mDevices = new HashMap<String, Device>();
+	private long mPackets = 0;
+	private int mNewDevices = 0;
+
+	/**
+	 * @param lowBatteryPercent battery level at or below which a beacon
+	 * is reported as low.
+	 * @param silentMillis time without telemetry after which a beacon is
+	 * reported as silent.
+	 * @param maxDevices maximum number of beacons in the table.
+	 */
+	FleetHealth(int lowBatteryPercent, long silentMillis, int maxDevices)
+	{
+		mLowBatteryPercent = lowBatteryPercent;
+		mSilentMillis = silentMillis;
+		mMaxDevices = Math.max(1, maxDevices);
+	}
+
+	/**
+	 * Record telemetry packets of a scan.
+	 */
+	synchronized void record(List<EstimoteTelemetry> telemetries, long now)
+	{
+		for (EstimoteTelemetry t : telemetries) {
+			if (null == t.deviceId) {
+				continue;
+			}
+			++mPackets;
+			String id = t.deviceId.toHexString();
+			Device device = mDevices.get(id);
+			if (null == device) {
+				if (mDevices.size() >= mMaxDevices) {
+					evictSilentest();
+				}
+				device = new Device();
+				device.firstSeen = now;
+				mDevices.put(id, device);
+				++mNewDevices;
+			}
+			device.lastSeen = now;
+			device.packets++;
+			device.rssi = t.rssi;
+			device.protocolVersion = t.protocolVersion;
+
+			// Telemetry comes in subframes, fields missing from this
+			// one keep their last value.
+			if (null != t.batteryPercentage) {
+				device.batteryPercentage = t.batteryPercentage;
+			}
+			if (t.batteryVoltage > 0) {
+				device.batteryVoltage = t.batteryVoltage;
+			}
+			if (null != t.temperature) {
+				device.temperature = t.temperature;
+			}
+			if (null != t.uptime) {
+				device.uptimeSeconds = t.uptime.unit.toSeconds(t.uptime.value);
+			}
+			if (null != t.applicationError || null != t.rtcError) {
+				device.error = Boolean.TRUE.equals(t.applicationError)
+						|| Boolean.TRUE.equals(t.rtcError);
+			}
+		}
+	}
+
+	/**
+	 * Compact summary listing only beacons that need attention.
+	 * newDevices counts beacons first seen since the last summary.
+	 *
+	 * format:
+	 * {
+	 *	 at, devices, packets, newDevices,
+	 *	 lowBattery: [ { id, batteryPercentage } ],
+	 *	 silent: [ { id, silentMillis } ],
+	 *	 errors: [ id ]
+	 * }
+	 */
+	synchronized JSONObject summarize(long now) throws JSONException
+	{
+		JSONArray lowBattery = new JSONArray();
+		JSONArray silent = new JSONArray();
+		JSONArray errors = new JSONArray();
+		for (Map.Entry<String, Device> entry : mDevices.entrySet()) {
+			Device device = entry.getValue();
+			if (device.batteryPercentage >= 0
+					&& device.batteryPercentage <= mLowBatteryPercent) {
+				JSONObject json = new JSONObject();
+				json.put("id", entry.getKey());
+				json.put("batteryPercentage", device.batteryPercentage);
+				lowBattery.put(json);
+			}
+			if (now - device.lastSeen >= mSilentMillis) {
+				JSONObject json = new JSONObject();
+				json.put("id", entry.getKey());
+				json.put("silentMillis", now - device.lastSeen);
+				silent.put(json);
+			}
+			if (device.error) {
+				errors.put(entry.getKey());
+			}
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("at", now);
+		json.put("devices", mDevices.size());
+		json.put("packets", mPackets);
+		json.put("newDevices", mNewDevices);
+		json.put("lowBattery", lowBattery);
+		json.put("silent", silent);
+		json.put("errors", errors);
+		mNewDevices = 0;
+		return json;
+	}
+
+	/**
+	 * The whole table.
+	 *
+	 * format:
+	 * [ { id, firstSeen, lastSeen, packets, rssi, protocolVersion,
+	 *   batteryPercentage, batteryVoltage, temperature, uptimeSeconds,
+	 *   error } ]
+	 *
+	 * Values not received yet are left out.
+	 */
+	synchronized JSONArray tableToJSON() throws JSONException
+	{
+		JSONArray table = new JSONArray();
+		for (Map.Entry<String, Device> entry : mDevices.entrySet()) {
+			Device device = entry.getValue();
+			JSONObject json = new JSONObject();
+			json.put("id", entry.getKey());
+			json.put("firstSeen", device.firstSeen);
+			json.put("lastSeen", device.lastSeen);
+			json.put("packets", device.packets);
+			json.put("rssi", device.rssi);
+			json.put("protocolVersion", device.protocolVersion);
+			if (device.batteryPercentage >= 0) {
+				json.put("batteryPercentage", device.batteryPercentage);
+			}
+			if (device.batteryVoltage > 0) {
+				json.put("batteryVoltage", device.batteryVoltage);
+			}
+			if (!Double.isNaN(device.temperature)) {
+				json.put("temperature", device.temperature);
+			}
+			if (device.uptimeSeconds >= 0) {
+				json.put("uptimeSeconds", device.uptimeSeconds);
+			}
+			json.put("error", device.error);
+			table.put(json);
+		}
+		return table;
+	}
+
+	private void evictSilentest()
+	{
+		String silentest = null;
+		long silentestTime = Long.MAX_VALUE;
+		for (Map.Entry<String, Device> entry : mDevices.entrySet()) {
+			if (entry.getValue().lastSeen < silentestTime) {
+				silentestTime = entry.getValue().lastSeen;
+				silentest = entry.getKey();
+			}
+		}
+		if (null != silentest) {
+			mDevices.remove(silentest);
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+Indoor positioning for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Estimates the device position from ranged beacon distances, using a
+ * floor map that places beacons at known coordinates.
+ *
+ * Each scan cycle is solved with weighted linear least squares
+ * trilateration on the floor that has the most mapped beacons in range,
+ * and the result is smoothed with an exponential moving average per
+ * {@link Tracker}.
+ */
+class PositioningEngine
+{
+	// Upper bound on beacons used per cycle, nearest first.
+	private static final int MAX_BEACONS_PER_FIX = 8;
+
+	// Distances below this are clamped to avoid infinite weights.
+	private static final double MIN_DISTANCE = 0.1;
+
+	/**
+	 * Position of a beacon on the floor map.
+	 */
+	static class MapEntry
+	{
+		final double x;
+		final double y;
+		final int floor;
+
+		MapEntry(double x, double y, int floor)
+		{
+			this.x = x;
+			this.y = y;
+			this.floor = floor;
+		}
+	}
+
+	/**
+	 * Position estimate for one scan cycle.
+	 */
+	static class Fix
+	{
+		double x;
+		double y;
+		int floor;
+		double accuracy;
+		double confidence;
+		int beaconCount;
+
+		/**
+		 * True if all values can be represented in JSON.
+		 */
+		boolean isFinite()
+		{
+			return PositioningEngine.isFinite(x)
+					&& PositioningEngine.isFinite(y)
+					&& PositioningEngine.isFinite(accuracy)
+					&& PositioningEngine.isFinite(confidence);
+		}
+
+		JSONObject toJSON() throws JSONException
+		{
+			JSONObject json = new JSONObject();
+			json.put("x", x);
+			json.put("y", y);
+			json.put("floor", floor);
+			json.put("accuracy", accuracy);
+			json.put("confidence", confidence);
+			json.put("beaconCount", beaconCount);
+			return json;
+		}
+	}
+
+	// Replaced as a whole when a new map is uploaded, never mutated.
+	private volatile HashMap<String, MapEntry> mFloorMap =
+			new HashMap<String, MapEntry>();
+
+	/**
+	 * Key of a beacon in the floor map.
+	 */
+	static String beaconKey(String uuid, int major, int minor)
+	{
+		return uuid.toLowerCase() + "%" + major + "%" + minor;
+	}
+
+	/**
+	 * Replace the floor map.
+	 *
+	 * format:
+	 * [ { uuid, major, minor, x, y, floor }, ... ]
+	 */
+	void setFloorMap(JSONArray beacons) throws JSONException
+	{
+		HashMap<String, MapEntry> map = new HashMap<String, MapEntry>();
+		for (int i = 0; i < beacons.length(); ++i) {
+			JSONObject json = beacons.getJSONObject(i);
+			String uuid = UUID.fromString(json.getString("uuid")).toString();
+			map.put(
+					beaconKey(uuid, json.getInt("major"), json.getInt("minor")),
+					new MapEntry(
+							json.getDouble("x"),
+							json.getDouble("y"),
+							json.optInt("floor", 0)));
+		}
+		mFloorMap = map;
+	}
+
+	int floorMapSize()
+	{
+		return mFloorMap.size();
+	}
+
+	/**
+	 * Look up a beacon in the floor map by a key made by beaconKey.
+	 * Returns null if not mapped.
+	 */
+	MapEntry lookup(String beaconKey)
+	{
+		return mFloorMap.get(beaconKey);
+	}
+
+	private static boolean isFinite(double value)
+	{
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	/**
+	 * Solve a single fix. Entries and distances are parallel arrays of
+	 * length count. Beacons without a finite distance are skipped.
+	 * Returns null if no mapped beacon is in range or no finite
+	 * position results.
+	 */
+	static Fix solve(MapEntry[] entries, double[] distances, int count)
+	{
+		// Pick the floor with the most beacons in range.
+		HashMap<Integer, Integer> floorCounts = new HashMap<Integer, Integer>();
+		int floor = 0;
+		int best = 0;
+		for (int i = 0; i < count; ++i) {
+			if (!isFinite(distances[i])) {
+				continue;
+			}
+			Integer n = floorCounts.get(entries[i].floor);
+			int c = (n == null) ? 1 : n + 1;
+			floorCounts.put(entries[i].floor, c);
+			if (c > best) {
+				best = c;
+				floor = entries[i].floor;
+			}
+		}
+		if (best == 0) {
+			return null;
+		}
+
+		// Keep the nearest beacons on that floor.
+		int n = 0;
+		MapEntry[] e = new MapEntry[Math.min(best, MAX_BEACONS_PER_FIX)];
+		double[] d = new double[e.length];
+		for (int i = 0; i < count; ++i) {
+			if (entries[i].floor != floor || !isFinite(distances[i])) {
+				continue;
+			}
+			double dist = Math.max(distances[i], MIN_DISTANCE);
+			if (n < e.length) {
+				e[n] = entries[i];
+				d[n] = dist;
+				++n;
+			}
+			else {
+				int farthest = 0;
+				for (int j = 1; j < n; ++j) {
+					if (d[j] > d[farthest]) {
+						farthest = j;
+					}
+				}
+				if (dist < d[farthest]) {
+					e[farthest] = entries[i];
+					d[farthest] = dist;
+				}
+			}
+		}
+
+		Fix fix = new Fix();
+		fix.floor = floor;
+		fix.beaconCount = n;
+
+		if (n < 3 || !trilaterate(e, d, n, fix)) {
+			weightedCentroid(e, d, n, fix);
+		}
+
+		// Residual between estimated and measured distances.
+		double sum = 0;
+		for (int i = 0; i < n; ++i) {
+			double dx = fix.x - e[i].x;
+			double dy = fix.y - e[i].y;
+			double r = Math.sqrt(dx * dx + dy * dy) - d[i];
+			sum += r * r;
+		}
+		fix.accuracy = Math.sqrt(sum / n);
+
+		// Confidence grows with beacon count and shrinks with residual.
+		double countFactor = Math.min(n, 4) / 4.0;
+		fix.confidence = countFactor / (1.0 + fix.accuracy);
+
+		return fix.isFinite() ? fix : null;
+	}
+
+	/**
+	 * Weighted least squares trilateration, linearised against the
+	 * nearest beacon. Returns false if the geometry is degenerate.
+	 */
+	private static boolean trilaterate(MapEntry[] e, double[] d, int n, Fix fix)
+	{
+		int ref = 0;
+		for (int i = 1; i < n; ++i) {
+			if (d[i] < d[ref]) {
+				ref = i;
+			}
+		}
+		double x0 = e[ref].x;
+		double y0 = e[ref].y;
+		double k0 = x0 * x0 + y0 * y0 - d[ref] * d[ref];
+
+		// Normal equations for the 2x2 system A^T W A p = A^T W b.
+		double a11 = 0, a12 = 0, a22 = 0, b1 = 0, b2 = 0;
+		for (int i = 0; i < n; ++i) {
+			if (i == ref) {
+				continue;
+			}
+			double ax = 2 * (e[i].x - x0);
+			double ay = 2 * (e[i].y - y0);
+			double b = e[i].x * e[i].x + e[i].y * e[i].y - d[i] * d[i] - k0;
+			double w = 1.0 / (d[i] * d[i]);
+			a11 += w * ax * ax;
+			a12 += w * ax * ay;
+			a22 += w * ay * ay;
+			b1 += w * ax * b;
+			b2 += w * ay * b;
+		}
+
+		double det = a11 * a22 - a12 * a12;
+		if (Math.abs(det) < 1e-9) {
+			return false;
+		}
+		fix.x = (a22 * b1 - a12 * b2) / det;
+		fix.y = (a11 * b2 - a12 * b1) / det;
+		return true;
+	}
+
+	private static void weightedCentroid(MapEntry[] e, double[] d, int n, Fix fix)
+	{
+		double sx = 0, sy = 0, sw = 0;
+		for (int i = 0; i < n; ++i) {
+			double w = 1.0 / (d[i] * d[i]);
+			sx += w * e[i].x;
+			sy += w * e[i].y;
+			sw += w;
+		}
+		fix.x = sx / sw;
+		fix.y = sy / sw;
+	}
+
+	/**
+	 * Smoothed position state for one positioning session.
+	 */
+	static class Tracker
+	{
+		private final double mAlpha;
+		private Fix mLast;
+
+		// Mapped beacons of a cycle, collected by the caller and passed
+		// to solve. Reused between cycles, only grown.
+		MapEntry[] entries = new MapEntry[16];
+		double[] distances = new double[16];
+
+		/**
+		 * @param smoothing weight of the previous estimate, 0 (none)
+		 * to just below 1 (heavy).
+		 */
+		Tracker(double smoothing)
+		{
+			mAlpha = 1.0 - Math.max(0.0, Math.min(smoothing, 0.95));
+		}
+
+		/**
+		 * Make room for count beacons in entries and distances.
+		 */
+		void reserve(int count)
+		{
+			if (count > entries.length) {
+				int capacity = Math.max(count, entries.length * 2);
+				entries = new MapEntry[capacity];
+				distances = new double[capacity];
+			}
+		}
+
+		/**
+		 * Blend a new fix into the tracked position.
+		 * Returns the smoothed fix, or null if there is none yet.
+		 */
+		Fix update(Fix fix)
+		{
+			if (fix == null) {
+				return mLast;
+			}
+			if (mLast == null || mLast.floor != fix.floor) {
+				mLast = fix;
+				return mLast;
+			}
+			// Weigh new fixes by their confidence so outliers move less.
+			double a = mAlpha * Math.max(fix.confidence, 0.1)
+					/ Math.max(mLast.confidence, 0.1);
+			a = Math.min(a, 1.0);
+			fix.x = mLast.x + a * (fix.x - mLast.x);
+			fix.y = mLast.y + a * (fix.y - mLast.y);
+			mLast = fix;
+			return mLast;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*
+Presence aggregation for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+/**
+ * Aggregates ranging and monitoring events into visit sessions per
+ * beacon and per region, and produces compact periodic summaries with
+ * visit counts, time in zone and a dwell time histogram.
+ *
+ * The number of tracked beacons and regions is bounded; when full, an
+ * entry is evicted, preferring absent entries whose activity has been
+ * reported, then absent ones, then present ones, the longest idle first
+ * within each. Evictions are counted in the summary. All methods are
+ * synchronized since events and summaries arrive on different threads.
+ */
+class PresenceAggregator
+{
+	// Upper bounds of the dwell histogram buckets, the last bucket is open.
+	private static final long[] DWELL_BUCKETS_MILLIS = {
+			10000, 30000, 60000, 300000, 900000, 3600000
+	};
+
+	/**
+	 * Visit state and counters for one beacon or region.
+	 */
+	private static class Entry
+	{
+		final String id;
+		final boolean isRegion;
+		boolean present;
+		long sessionStart;
+		long lastSeen;
+
+		// Counters for the current period.
+		int visits;
+		long dwellMillis;
+		final int[] histogram = new int[DWELL_BUCKETS_MILLIS.length + 1];
+		boolean active;
+
+		// Counters since tracking started.
+		long totalVisits;
+
+		Entry(String id, boolean isRegion)
+		{
+			this.id = id;
+			this.isRegion = isRegion;
+		}
+	}
+
+	private final int mMaxEntries;
+	private final long mExitTimeoutMillis;
+	private final HashMap<String, Entry> mEntries;
+	private long mPeriodStart;
+
+	// Evictions in the current period, and those that lost activity
+	// not reported yet.
+	private int mEvictions;
+	private int mEvictedUnreported;
+
+	/**
+	 * @param maxEntries maximum number of beacons and regions tracked.
+	 * @param exitTimeoutMillis time a beacon must be unseen before its
+	 * visit ends.
+	 */
+	PresenceAggregator(int maxEntries, long exitTimeoutMillis, long now)
+	{
+		mMaxEntries = Math.max(1, maxEntries);
+		mExitTimeoutMillis = exitTimeoutMillis;
+		mEntries = new HashMap<String, Entry>(mMaxEntries * 2);
+		mPeriodStart = now;
+	}
+
+	/**
+	 * Record a beacon seen in a ranging cycle.
+	 */
+	synchronized void beaconSeen(String beaconKey, long now)
+	{
+		Entry entry = entry(beaconKey, false, now);
+		if (entry.present && now - entry.lastSeen > mExitTimeoutMillis) {
+			endVisit(entry, entry.lastSeen);
+		}
+		if (!entry.present) {
+			startVisit(entry, now);
+		}
+		entry.lastSeen = now;
+	}
+
+	/**
+	 * Record a monitored region being entered.
+	 */
+	synchronized void regionEntered(String identifier, long now)
+	{
+		Entry entry = entry(identifier, true, now);
+		if (!entry.present) {
+			startVisit(entry, now);
+		}
+		entry.lastSeen = now;
+	}
+
+	/**
+	 * Record a monitored region being exited.
+	 */
+	synchronized void regionExited(String identifier, long now)
+	{
+		Entry entry = mEntries.get(mapKey(identifier, true));
+		if (entry != null && entry.present) {
+			endVisit(entry, now);
+		}
+	}
+
+	/**
+	 * Create JSON summary of the period since the last summary and
+	 * start a new period. Only beacons and regions with activity in
+	 * the period are included.
+	 *
+	 * format:
+	 * {
+	 *	 periodStart, periodEnd: milliseconds since epoch,
+	 *	 dwellBucketsMillis: histogram bucket upper bounds,
+	 *	 beacons: [ { id, present, visits, totalVisits, dwellMillis, histogram } ],
+	 *	 regions: [ same as beacons ],
+	 *	 evictions, evictedUnreported: entries evicted in the period
+	 * }
+	 */
+	synchronized JSONObject summarize(long now) throws JSONException
+	{
+		JSONArray beacons = new JSONArray();
+		JSONArray regions = new JSONArray();
+
+		for (Entry entry : mEntries.values()) {
+			// Beacons not seen for the exit timeout have left.
+			if (entry.present && !entry.isRegion
+					&& now - entry.lastSeen > mExitTimeoutMillis) {
+				endVisit(entry, entry.lastSeen);
+			}
+
+			// Time in zone of ongoing visits counts towards this period.
+			if (entry.present) {
+				long from = Math.max(entry.sessionStart, mPeriodStart);
+				entry.dwellMillis += now - from;
+				entry.active = true;
+			}
+
+			if (!entry.active) {
+				continue;
+			}
+
+			JSONObject json = new JSONObject();
+			json.put("id", entry.id);
+			json.put("present", entry.present);
+			json.put("visits", entry.visits);
+			json.put("totalVisits", entry.totalVisits);
+			json.put("dwellMillis", entry.dwellMillis);
+			JSONArray histogram = new JSONArray();
+			for (int count : entry.histogram) {
+				histogram.put(count);
+			}
+			json.put("histogram", histogram);
+			(entry.isRegion ? regions : beacons).put(json);
+
+			entry.visits = 0;
+			entry.dwellMillis = 0;
+			entry.active = false;
+			for (int i = 0; i < entry.histogram.length; ++i) {
+				entry.histogram[i] = 0;
+			}
+		}
+
+		JSONArray buckets = new JSONArray();
+		for (long bucket : DWELL_BUCKETS_MILLIS) {
+			buckets.put(bucket);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("periodStart", mPeriodStart);
+		json.put("periodEnd", now);
+		json.put("dwellBucketsMillis", buckets);
+		json.put("beacons", beacons);
+		json.put("regions", regions);
+		json.put("evictions", mEvictions);
+		json.put("evictedUnreported", mEvictedUnreported);
+
+		mPeriodStart = now;
+		mEvictions = 0;
+		mEvictedUnreported = 0;
+		return json;
+	}
+
+	// Region identifiers may look like beacon keys, keep them apart.
+	private static String mapKey(String id, boolean isRegion)
+	{
+		return (isRegion ? "r:" : "b:") + id;
+	}
+
+	private Entry entry(String id, boolean isRegion, long now)
+	{
+		String key = mapKey(id, isRegion);
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			if (mEntries.size() >= mMaxEntries) {
+				evict(now);
+			}
+			entry = new Entry(id, isRegion);
+			mEntries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Eviction rank of an entry, lower is evicted first: absent and
+	 * reported, absent with unreported activity, present.
+	 */
+	private int evictionRank(Entry entry, long now)
+	{
+		// Beacons not seen for the exit timeout have left, even if
+		// their visit is only ended by the next summary.
+		boolean present = entry.present
+				&& (entry.isRegion || now - entry.lastSeen <= mExitTimeoutMillis);
+		if (present) {
+			return 2;
+		}
+		return (entry.active || entry.present) ? 1 : 0;
+	}
+
+	private void evict(long now)
+	{
+		Entry victim = null;
+		int victimRank = 0;
+		for (Entry entry : mEntries.values()) {
+			int rank = evictionRank(entry, now);
+			if (victim == null || rank < victimRank
+					|| (rank == victimRank && entry.lastSeen < victim.lastSeen)) {
+				victim = entry;
+				victimRank = rank;
+			}
+		}
+		if (victim != null) {
+			mEntries.remove(mapKey(victim.id, victim.isRegion));
+			mEvictions++;
+			if (victimRank > 0) {
+				mEvictedUnreported++;
+			}
+		}
+	}
+
+	private void startVisit(Entry entry, long now)
+	{
+		entry.present = true;
+		entry.sessionStart = now;
+		entry.visits++;
+		entry.totalVisits++;
+		entry.active = true;
+	}
+
+	private void endVisit(Entry entry, long end)
+	{
+		entry.present = false;
+
+		// Only the part of the visit inside this period counts as dwell.
+		long from = Math.max(entry.sessionStart, mPeriodStart);
+		entry.dwellMillis += Math.max(0, end - from);
+		entry.active = true;
+
+		long duration = end - entry.sessionStart;
+		int bucket = 0;
+		while (bucket < DWELL_BUCKETS_MILLIS.length
+				&& duration >= DWELL_BUCKETS_MILLIS[bucket]) {
+			++bucket;
+		}
+		entry.histogram[bucket]++;
+	}
+}
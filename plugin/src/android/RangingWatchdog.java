@@ -0,0 +1,269 @@
+/*
+Ranging watchdog for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects ranged regions whose ranging callbacks have stopped arriving.
+ *
+ * The SDK calls the ranging listener once per scan period for every
+ * ranged region, also when no beacons are seen, so a region without a
+ * callback for several scan periods is stalled, typically after a
+ * Bluetooth stack hiccup. The scan period of each region is learned
+ * from its callbacks, since it is longer in the background, and never
+ * taken as shorter than the configured one.
+ *
+ * Stalled regions are returned by check to be restarted, first right
+ * away and then with exponential backoff while they stay stalled. The
+ * next callback of a stalled region counts as a recovery.
+ *
+ * All methods are synchronized, callbacks arrive on the SDK thread and
+ * checks run on the main thread.
+ */
+class RangingWatchdog
+{
+	/**
+	 * Outcome of a check.
+	 */
+	static class Check
+	{
+		// Keys of regions to restart now.
+		final List<String> restart = new ArrayList<String>();
+
+		// True if all ranged regions are stalled, meaning the scanner
+		// itself has stopped, rather than single regions.
+		boolean scannerStalled;
+	}
+
+	/**
+	 * Callback state of one region.
+	 */
+	private static class Region
+	{
+		long lastCallback;
+		long period;
+		boolean stalled;
+		long stalledAt;
+		int restarts;
+		long nextRestart;
+	}
+
+	// Learned scan periods are capped at this, so that one long
+	// gap does not hide the next stall.
+	private static final long MAX_PERIOD_MILLIS = 60000;
+
+	private final long mScanPeriodMillis;
+	private final int mStallPeriods;
+	private final long mBackoffMillis;
+	private final long mMaxBackoffMillis;
+	private final HashMap<String, Region> mRegions = new HashMap<String, Region>();
+
+	private long mStalls = 0;
+	private long mRecoveries = 0;
+	private long mRestarts = 0;
+	private long mScannerStalls = 0;
+	private long mRecoveryMillis = 0;
+	private long mLastStallAt = 0;
+	private long mLastRecoveryAt = 0;
+	private long mSdkErrors = 0;
+	private int mLastErrorId = 0;
+	private boolean mScannerStalled = false;
+
+	/**
+	 * @param scanPeriodMillis expected time between callbacks of a region.
+	 * @param stallPeriods number of scan periods without a callback after
+	 * which a region is stalled.
+	 * @param backoffMillis time before the second restart of a stalled
+	 * region, doubled for each further restart.
+	 * @param maxBackoffMillis longest time between restarts.
+	 */
+	RangingWatchdog(
+			long scanPeriodMillis,
+			int stallPeriods,
+			long backoffMillis,
+			long maxBackoffMillis)
+	{
+		mScanPeriodMillis = Math.max(1, scanPeriodMillis);
+		mStallPeriods = Math.max(1, stallPeriods);
+		mBackoffMillis = Math.max(1, backoffMillis);
+		mMaxBackoffMillis = Math.max(mBackoffMillis, maxBackoffMillis);
+	}
+
+	/**
+	 * Time without callbacks after which a region is stalled.
+	 */
+	private long stallMillis(Region region)
+	{
+		return Math.max(mScanPeriodMillis, region.period) * mStallPeriods;
+	}
+
+	/**
+	 * Record a ranging callback of a region.
+	 */
+	synchronized void onCallback(String key, long now)
+	{
+		Region region = mRegions.get(key);
+		if (null == region) {
+			return;
+		}
+		long last = region.lastCallback;
+		region.lastCallback = now;
+		if (!region.stalled) {
+			// Moving average of the time between callbacks,
+			// the gap of a stall is not a scan period.
+			long interval = Math.min(MAX_PERIOD_MILLIS, now - last);
+			region.period = (0 == region.period) ? interval : (region.period * 7 + interval) / 8;
+		}
+		else {
+			region.stalled = false;
+			region.restarts = 0;
+			++mRecoveries;
+			mRecoveryMillis += now - region.stalledAt;
+			mLastRecoveryAt = now;
+		}
+	}
+
+	/**
+	 * Record an error reported by the SDK error listener.
+	 */
+	synchronized void onError(int errorId)
+	{
+		++mSdkErrors;
+		mLastErrorId = errorId;
+	}
+
+	/**
+	 * Follow the set of ranged regions. New regions get a full stall
+	 * period from now, regions no longer ranged are forgotten.
+	 */
+	synchronized void track(Set<String> keys, long now)
+	{
+		for (Iterator<String> i = mRegions.keySet().iterator(); i.hasNext();) {
+			if (!keys.contains(i.next())) {
+				i.remove();
+			}
+		}
+		for (String key : keys) {
+			if (!mRegions.containsKey(key)) {
+				Region region = new Region();
+				region.lastCallback = now;
+				mRegions.put(key, region);
+			}
+		}
+	}
+
+	/**
+	 * Give all regions a full stall period from now, without counting
+	 * stalls or recoveries. Used while scanning is paused on purpose.
+	 */
+	synchronized void rearm(long now)
+	{
+		for (Region region : mRegions.values()) {
+			region.lastCallback = now;
+			region.stalled = false;
+			region.restarts = 0;
+		}
+		mScannerStalled = false;
+	}
+
+	/**
+	 * Find stalled regions and the ones due for a restart.
+	 */
+	synchronized Check check(long now)
+	{
+		Check check = new Check();
+		int stalled = 0;
+		for (Map.Entry<String, Region> entry : mRegions.entrySet()) {
+			Region region = entry.getValue();
+			if (now - region.lastCallback < stallMillis(region)) {
+				continue;
+			}
+			++stalled;
+			if (!region.stalled) {
+				region.stalled = true;
+				region.stalledAt = now;
+				region.nextRestart = now;
+				++mStalls;
+				mLastStallAt = now;
+			}
+			if (now >= region.nextRestart) {
+				check.restart.add(entry.getKey());
+				region.nextRestart = now + backoff(region.restarts);
+				++region.restarts;
+				++mRestarts;
+			}
+		}
+
+		check.scannerStalled = stalled > 0 && stalled == mRegions.size();
+		if (check.scannerStalled && !mScannerStalled) {
+			++mScannerStalls;
+		}
+		mScannerStalled = check.scannerStalled;
+		return check;
+	}
+
+	private long backoff(int restarts)
+	{
+		// Shift is capped, the result is capped by the maximum anyway.
+		return Math.min(mMaxBackoffMillis, mBackoffMillis << Math.min(restarts, 20));
+	}
+
+	synchronized void clear()
+	{
+		mRegions.clear();
+		mScannerStalled = false;
+	}
+
+	/**
+	 * Watchdog statistics.
+	 *
+	 * format:
+	 * {
+	 *	 stalls, recoveries, restarts, scannerStalls,
+	 *	 meanRecoveryMillis, lastStallAt, lastRecoveryAt,
+	 *	 sdkErrors, lastErrorId,
+	 *	 regions: [ { key, periodMillis, silentMillis, stallMillis,
+	 *	   stalled, restarts } ]
+	 * }
+	 */
+	synchronized JSONObject statsToJSON(long now) throws JSONException
+	{
+		JSONArray regions = new JSONArray();
+		for (Map.Entry<String, Region> entry : mRegions.entrySet()) {
+			Region region = entry.getValue();
+			JSONObject json = new JSONObject();
+			json.put("key", entry.getKey());
+			json.put("periodMillis", region.period);
+			json.put("silentMillis", now - region.lastCallback);
+			json.put("stallMillis", stallMillis(region));
+			json.put("stalled", region.stalled);
+			json.put("restarts", region.restarts);
+			regions.put(json);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("stalls", mStalls);
+		json.put("recoveries", mRecoveries);
+		json.put("restarts", mRestarts);
+		json.put("scannerStalls", mScannerStalls);
+		json.put("meanRecoveryMillis", mRecoveries > 0 ? mRecoveryMillis / mRecoveries : 0);
+		json.put("lastStallAt", mLastStallAt);
+		json.put("lastRecoveryAt", mLastRecoveryAt);
+		json.put("sdkErrors", mSdkErrors);
+		json.put("lastErrorId", mLastErrorId);
+		json.put("regions", regions);
+		return json;
+	}
+}
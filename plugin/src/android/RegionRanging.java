@@ -0,0 +1,305 @@
+/*
+Region ranging for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONException;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the regions ranged on the scanner in step with their uses:
+ * JavaScript subscriptions, and native uses such as positioning, which
+ * are asked through Uses. A region is wanted while it has a use, and
+ * started on the scanner while wanted, connected and not paused.
+ *
+ * Actions, Bluetooth state changes, resets and service ready callbacks
+ * come from different threads, so the wanted and started regions are
+ * only changed under the lock of this object, and the scanner is called
+ * under it too. Results are fanned out by deliver without locking.
+ *
+ * @param <R> region type of the scanner.
+ */
+class RegionRanging<R>
+{
+	/**
+	 * Native uses of regions, other than subscriptions.
+	 */
+	interface Uses
+	{
+		boolean inUse(String key);
+
+		/**
+		 * Remove all native uses, called by reset under the lock so
+		 * that a use added concurrently is either kept ranged or
+		 * removed, never left behind on one side.
+		 */
+		void clear();
+	}
+
+	/**
+	 * Beacons of one ranging callback, serialized for a filter, null
+	 * for unfiltered.
+	 */
+	interface Serializer
+	{
+		String json(BeaconFilter filter) throws JSONException;
+	}
+
+	private final BeaconScanner<R> mScanner;
+	private final RegionSubscriptions mSubscriptions;
+	private final Uses mUses;
+
+	// Guarded by this.
+	private final LinkedHashMap<String, R> mWanted = new LinkedHashMap<String, R>();
+	private final HashSet<String> mStarted = new HashSet<String>();
+	private boolean mPaused = false;
+
+	RegionRanging(BeaconScanner<R> scanner, RegionSubscriptions subscriptions, Uses uses)
+	{
+		mScanner = scanner;
+		mSubscriptions = subscriptions;
+		mUses = uses;
+	}
+
+	/**
+	 * True if the region has a subscription or a native use.
+	 */
+	boolean isRanged(String key)
+	{
+		return mSubscriptions.containsKey(key) || mUses.inUse(key);
+	}
+
+	/**
+	 * Add a subscription and want its region. Call start to range it.
+	 * Returns true if the region was not wanted before.
+	 */
+	synchronized boolean subscribe(String key, R region, RegionSubscriptions.Subscription subscription)
+	{
+		mSubscriptions.add(key, subscription);
+		return want(key, region);
+	}
+
+	/**
+	 * Want a region for a native use, added before calling this. Call
+	 * start to range it. Returns true if the region was not wanted
+	 * before.
+	 */
+	synchronized boolean range(String key, R region)
+	{
+		if (!isRanged(key)) {
+			return false;
+		}
+		return want(key, region);
+	}
+
+	private boolean want(String key, R region)
+	{
+		if (mWanted.containsKey(key)) {
+			return false;
+		}
+		mWanted.put(key, region);
+		return true;
+	}
+
+	/**
+	 * Start the wanted regions that are not started yet, connecting
+	 * first if needed. Start errors go to errors, or to the first
+	 * subscription of the region if null.
+	 */
+	void start(final ResultCallback errors)
+	{
+		synchronized (this) {
+			if (mPaused || mWanted.size() == mStarted.size()) {
+				return;
+			}
+		}
+		mScanner.connect(new Runnable() {
+			@Override
+			public void run() {
+				startWanted(errors);
+			}
+		});
+	}
+
+	private synchronized void startWanted(ResultCallback errors)
+	{
+		if (mPaused || !mScanner.isConnected()) {
+			return;
+		}
+		for (Map.Entry<String, R> entry : mWanted.entrySet()) {
+			String key = entry.getKey();
+			if (mStarted.contains(key)) {
+				continue;
+			}
+			try {
+				mScanner.startRanging(entry.getValue());
+				mStarted.add(key);
+			}
+			catch (RuntimeException e) {
+				ResultCallback callback = (null != errors) ? errors : mSubscriptions.firstCallback(key);
+				if (null != callback) {
+					callback.error("Start ranging RemoteException");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a subscription, or all subscriptions of the region if id
+	 * is not positive, adding the removed ones to removed. The region
+	 * is stopped if it has no use left. Returns true if it was stopped.
+	 */
+	synchronized boolean unsubscribe(String key, int id, List<RegionSubscriptions.Subscription> removed)
+	{
+		if (id <= 0) {
+			removed.addAll(mSubscriptions.removeAll(key));
+		}
+		else {
+			RegionSubscriptions.Subscription subscription = mSubscriptions.remove(key, id);
+			if (null != subscription) {
+				removed.add(subscription);
+			}
+		}
+		return release(key);
+	}
+
+	/**
+	 * Stop the region if it has no use left, call after removing
+	 * a native use. Returns true if it was stopped.
+	 */
+	synchronized boolean release(String key)
+	{
+		if (isRanged(key)) {
+			return false;
+		}
+		R region = mWanted.remove(key);
+		if (null == region) {
+			return false;
+		}
+		stop(key, region);
+		return true;
+	}
+
+	private void stop(String key, R region)
+	{
+		if (!mStarted.remove(key)) {
+			return;
+		}
+		try {
+			mScanner.stopRanging(region);
+		}
+		catch (RuntimeException e) {
+			// Stopped with the connection anyway.
+		}
+	}
+
+	/**
+	 * Stop and start a stalled region again.
+	 */
+	synchronized void restart(String key)
+	{
+		R region = mWanted.get(key);
+		if (null == region) {
+			return;
+		}
+		stop(key, region);
+		startWanted(null);
+	}
+
+	/**
+	 * Stop all regions, keeping them wanted. Used when Bluetooth
+	 * is turned off.
+	 */
+	synchronized void pause()
+	{
+		mPaused = true;
+		for (Map.Entry<String, R> entry : mWanted.entrySet()) {
+			stop(entry.getKey(), entry.getValue());
+		}
+		mStarted.clear();
+	}
+
+	/**
+	 * Start the wanted regions again after pause.
+	 */
+	void resume()
+	{
+		synchronized (this) {
+			mPaused = false;
+		}
+		start(null);
+	}
+
+	synchronized boolean isPaused()
+	{
+		return mPaused;
+	}
+
+	/**
+	 * Stop all regions, remove all subscriptions and native uses, and
+	 * disconnect the scanner, which ends monitoring and discovery too.
+	 */
+	synchronized void reset()
+	{
+		for (Map.Entry<String, R> entry : mWanted.entrySet()) {
+			stop(entry.getKey(), entry.getValue());
+		}
+		mStarted.clear();
+		mWanted.clear();
+		mSubscriptions.clear();
+		mUses.clear();
+		mScanner.disconnect();
+	}
+
+	/**
+	 * Keys of the wanted regions.
+	 */
+	synchronized HashSet<String> keys()
+	{
+		return new HashSet<String>(mWanted.keySet());
+	}
+
+	/**
+	 * Keys of the regions started on the scanner.
+	 */
+	synchronized HashSet<String> startedKeys()
+	{
+		return new HashSet<String>(mStarted);
+	}
+
+	/**
+	 * Send the beacons of a ranging callback to the subscriptions of
+	 * the region, serializing once for all unfiltered subscriptions
+	 * and once per filter. Returns false if the region has none.
+	 */
+	boolean deliver(String key, Serializer serializer) throws JSONException
+	{
+		List<RegionSubscriptions.Subscription> subscriptions = mSubscriptions.get(key);
+		if (subscriptions.isEmpty()) {
+			return false;
+		}
+		String unfiltered = null;
+		for (RegionSubscriptions.Subscription subscription : subscriptions) {
+			if (subscription.streamOnly) {
+				continue;
+			}
+			String json;
+			if (null == subscription.filter) {
+				if (null == unfiltered) {
+					unfiltered = serializer.json(null);
+				}
+				json = unfiltered;
+			}
+			else {
+				json = serializer.json(subscription.filter);
+			}
+			subscription.send(json);
+		}
+		return true;
+	}
+}
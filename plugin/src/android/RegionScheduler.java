@@ -0,0 +1,251 @@
+/*
+Monitoring region rotation for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.observation.region.beacon.BeaconRegion;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps a virtual set of monitored regions of any size and decides which
+ * of them are monitored on the SDK at a time, at most maxActive, rotating
+ * the rest in time slices.
+ *
+ * Regions the user is inside always come first, so that exits are seen.
+ * The rest are ranked by score: app assigned priority, a boost for
+ * regions with recent enter or exit events, plus one point for every
+ * slice the region has waited, so that every region gets its turn. A
+ * priority point is thus worth one slice of waiting.
+ *
+ * This class only decides; the caller starts and stops monitoring on the
+ * SDK. All methods are synchronized, rotation runs on the main thread
+ * while regions are added from the plugin action thread.
+ */
+class RegionScheduler
+{
+	// Score boost for regions with recent enter or exit events.
+	private static final int RECENT_ACTIVITY_BOOST = 10;
+
+	/**
+	 * One region in the virtual set.
+	 */
+	static class Entry
+	{
+		final String key;
+		final BeaconRegion region;
+		final int priority;
+		boolean active;
+		boolean inside;
+		long lastEvent;
+		int waiting;
+
+		Entry(String key, BeaconRegion region, int priority)
+		{
+			this.key = key;
+			this.region = region;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * Regions to start and stop on the SDK.
+	 */
+	static class Rotation
+	{
+		final List<Entry> activate = new ArrayList<Entry>();
+		final List<Entry> deactivate = new ArrayList<Entry>();
+	}
+
+	private final int mMaxActive;
+	private final long mRecentMillis;
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private int mActiveCount = 0;
+	private long mRotations = 0;
+
+	/**
+	 * @param maxActive maximum number of regions monitored on the SDK.
+	 * @param recentMillis how long enter and exit events boost a region.
+	 */
+	RegionScheduler(int maxActive, long recentMillis)
+	{
+		mMaxActive = Math.max(1, maxActive);
+		mRecentMillis = recentMillis;
+	}
+
+	/**
+	 * Add a region, active if it already is monitored on the SDK.
+	 * Replaces a region with the same key.
+	 */
+	synchronized Entry add(String key, BeaconRegion region, int priority, boolean active)
+	{
+		remove(key);
+		Entry entry = new Entry(key, region, priority);
+		entry.active = active;
+		if (active) {
+			++mActiveCount;
+		}
+		mEntries.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Remove a region. Returns the removed entry, whose active flag tells
+	 * if it has to be stopped on the SDK, or null if there was none.
+	 */
+	synchronized Entry remove(String key)
+	{
+		Entry entry = mEntries.remove(key);
+		if (null != entry && entry.active) {
+			--mActiveCount;
+		}
+		return entry;
+	}
+
+	/**
+	 * Record an enter or exit event. Returns false if the region already
+	 * was in that state, so that events repeated when a region is rotated
+	 * back in are not reported twice.
+	 */
+	synchronized boolean recordState(String key, boolean inside, long now)
+	{
+		Entry entry = mEntries.get(key);
+		if (null == entry) {
+			return true;
+		}
+		entry.lastEvent = now;
+		if (entry.inside == inside) {
+			return false;
+		}
+		entry.inside = inside;
+		return true;
+	}
+
+	/**
+	 * Activate regions while there are free slots, without rotating
+	 * active regions out. Used when regions are added or removed.
+	 */
+	synchronized Rotation fill(long now)
+	{
+		Rotation rotation = new Rotation();
+		if (mActiveCount >= mMaxActive) {
+			return rotation;
+		}
+		for (Entry entry : ranked(now)) {
+			if (mActiveCount >= mMaxActive) {
+				break;
+			}
+			if (!entry.active) {
+				activate(entry, rotation);
+			}
+		}
+		return rotation;
+	}
+
+	/**
+	 * Start a new time slice: pick the best ranked regions and
+	 * return which ones to start and stop on the SDK.
+	 */
+	synchronized Rotation rotate(long now)
+	{
+		Rotation rotation = new Rotation();
+		List<Entry> ranked = ranked(now);
+		for (int i = 0; i < ranked.size(); ++i) {
+			Entry entry = ranked.get(i);
+			boolean wanted = i < mMaxActive;
+			if (wanted && !entry.active) {
+				activate(entry, rotation);
+			}
+			else if (!wanted && entry.active) {
+				entry.active = false;
+				--mActiveCount;
+				rotation.deactivate.add(entry);
+			}
+			if (!wanted) {
+				entry.waiting++;
+			}
+		}
+		++mRotations;
+		return rotation;
+	}
+
+	/**
+	 * All regions, for activating them when the schedule is turned off.
+	 */
+	synchronized List<Entry> entries()
+	{
+		return new ArrayList<Entry>(mEntries.values());
+	}
+
+	/**
+	 * Scheduler statistics.
+	 *
+	 * format:
+	 * { maxActiveRegions, regions, active, inside, rotations }
+	 */
+	synchronized JSONObject statsToJSON() throws JSONException
+	{
+		int inside = 0;
+		for (Entry entry : mEntries.values()) {
+			if (entry.inside) {
+				++inside;
+			}
+		}
+		JSONObject json = new JSONObject();
+		json.put("maxActiveRegions", mMaxActive);
+		json.put("regions", mEntries.size());
+		json.put("active", mActiveCount);
+		json.put("inside", inside);
+		json.put("rotations", mRotations);
+		return json;
+	}
+
+	private void activate(Entry entry, Rotation rotation)
+	{
+		entry.active = true;
+		entry.waiting = 0;
+		++mActiveCount;
+		rotation.activate.add(entry);
+	}
+
+	private List<Entry> ranked(final long now)
+	{
+		ArrayList<Entry> ranked = new ArrayList<Entry>(mEntries.values());
+		Collections.sort(ranked, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				if (a.inside != b.inside) {
+					return a.inside ? -1 : 1;
+				}
+				int scoreA = score(a, now);
+				int scoreB = score(b, now);
+				if (scoreA != scoreB) {
+					return scoreA > scoreB ? -1 : 1;
+				}
+				// Active regions lose ties, so equals take turns.
+				if (a.active != b.active) {
+					return a.active ? 1 : -1;
+				}
+				return a.key.compareTo(b.key);
+			}
+		});
+		return ranked;
+	}
+
+	private int score(Entry entry, long now)
+	{
+		int score = entry.priority + entry.waiting;
+		if (entry.lastEvent > 0 && now - entry.lastEvent < mRecentMillis) {
+			score += RECENT_ACTIVITY_BOOST;
+		}
+		return score;
+	}
+}
@@ -0,0 +1,362 @@
+/*
+Region subscriptions for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JavaScript subscriptions to ranging or monitoring results, grouped by
+ * region key. A region is started on the SDK when it gets its first
+ * subscription and stopped when the last one leaves, and results are
+ * fanned out to all subscriptions of the region.
+ *
+ * Subscriptions can use credit based flow control: JavaScript grants
+ * credits, one result is sent per credit, and while out of credits only
+ * the latest result is kept, replacing older ones.
+ *
+ * Subscriptions are changed by actions and read by SDK listeners on
+ * another thread. Changes are synchronized and replace the list of the
+ * region instead of modifying it, so readers never lock and a list
+ * returned by get can be iterated while subscriptions change. Removed
+ * subscriptions are closed, so a listener still holding an old list
+ * sends nothing to a callback that has been cleared.
+ */
+class RegionSubscriptions
+{
+	/**
+	 * One JavaScript subscription.
+	 */
+	static class Subscription
+	{
+		// Credits value of subscriptions without flow control.
+		static final int UNLIMITED = -1;
+
+		final int id;
+		final ResultCallback callback;
+
+		// Ranging only, null if unfiltered.
+		final BeaconFilter filter;
+
+		// True if results go to the stream server only, the
+		// subscription just keeps the region started.
+		final boolean streamOnly;
+
+		// Monitoring only: include the beacons that triggered an enter,
+		// and range the region natively for this long after an enter.
+		final boolean enterBeacons;
+		final long burstMillis;
+
+		// Flow control state, guarded by this.
+		private int mCredits;
+		private String mPending;
+		private long mCoalesced;
+		private boolean mClosed;
+
+		// True once a live result has been sent or kept, guarded by this.
+		private boolean mLive;
+
+		Subscription(int id, ResultCallback callback, BeaconFilter filter)
+		{
+			this(id, callback, filter, UNLIMITED, false);
+		}
+
+		Subscription(
+				int id,
+				ResultCallback callback,
+				BeaconFilter filter,
+				int credits,
+				boolean streamOnly)
+		{
+			this(id, callback, filter, credits, streamOnly, false, 0);
+		}
+
+		Subscription(
+				int id,
+				ResultCallback callback,
+				BeaconFilter filter,
+				int credits,
+				boolean streamOnly,
+				boolean enterBeacons,
+				long burstMillis)
+		{
+			this.id = id;
+			this.callback = callback;
+			this.filter = filter;
+			this.streamOnly = streamOnly;
+			this.enterBeacons = enterBeacons;
+			this.burstMillis = burstMillis;
+			mCredits = credits;
+		}
+
+		/**
+		 * Send a live result, taking a credit. If out of credits json
+		 * is kept as pending result instead, replacing any older one.
+		 * Returns true if json was sent, false if kept or closed.
+		 */
+		synchronized boolean send(String json)
+		{
+			if (mClosed) {
+				return false;
+			}
+			mLive = true;
+			return deliver(json);
+		}
+
+		/**
+		 * Send a cached result like send, unless a live result has
+		 * already been sent or kept, which would be newer. Returns
+		 * true if json was sent.
+		 */
+		synchronized boolean sendCached(String json)
+		{
+			if (mClosed || mLive) {
+				return false;
+			}
+			return deliver(json);
+		}
+
+		private boolean deliver(String json)
+		{
+			if (mCredits == UNLIMITED) {
+				callback.sendJson(json);
+				return true;
+			}
+			if (mCredits > 0) {
+				--mCredits;
+				callback.sendJson(json);
+				return true;
+			}
+			if (mPending != null) {
+				++mCoalesced;
+			}
+			mPending = json;
+			return false;
+		}
+
+		/**
+		 * Add credits. The pending result, if any, takes one of them
+		 * and is sent now.
+		 */
+		synchronized void grant(int credits)
+		{
+			if (mClosed || mCredits == UNLIMITED) {
+				return;
+			}
+			mCredits += credits;
+			if (mPending == null || mCredits <= 0) {
+				return;
+			}
+			String pending = mPending;
+			mPending = null;
+			--mCredits;
+			callback.sendJson(pending);
+		}
+
+		/**
+		 * Stop sending results, done when the subscription is removed.
+		 */
+		synchronized void close()
+		{
+			mClosed = true;
+			mPending = null;
+		}
+
+		synchronized boolean isClosed()
+		{
+			return mClosed;
+		}
+
+		/**
+		 * True once a live result has been sent or kept.
+		 */
+		synchronized boolean isLive()
+		{
+			return mLive;
+		}
+
+		synchronized int credits()
+		{
+			return mCredits;
+		}
+
+		/**
+		 * Number of results replaced by newer ones while out of credits.
+		 */
+		synchronized long coalesced()
+		{
+			return mCoalesced;
+		}
+	}
+
+	private final ConcurrentHashMap<String, List<Subscription>> mSubscriptions =
+			new ConcurrentHashMap<String, List<Subscription>>();
+
+	/**
+	 * Add a subscription to a region, replacing any subscription
+	 * with the same id. Returns true if it is the first subscription
+	 * of the region.
+	 */
+	synchronized boolean add(String key, Subscription subscription)
+	{
+		List<Subscription> old = mSubscriptions.get(key);
+		ArrayList<Subscription> list = (old == null)
+				? new ArrayList<Subscription>(1)
+				: new ArrayList<Subscription>(old);
+		Subscription replaced = remove(list, subscription.id);
+		if (replaced != null) {
+			replaced.close();
+		}
+		list.add(subscription);
+		mSubscriptions.put(key, Collections.unmodifiableList(list));
+		return list.size() == 1;
+	}
+
+	/**
+	 * Remove one subscription of a region. Returns the removed
+	 * subscription, or null if it did not exist.
+	 */
+	synchronized Subscription remove(String key, int id)
+	{
+		List<Subscription> old = mSubscriptions.get(key);
+		if (old == null) {
+			return null;
+		}
+		ArrayList<Subscription> list = new ArrayList<Subscription>(old);
+		Subscription removed = remove(list, id);
+		if (removed != null) {
+			removed.close();
+		}
+		if (list.isEmpty()) {
+			mSubscriptions.remove(key);
+		}
+		else if (removed != null) {
+			mSubscriptions.put(key, Collections.unmodifiableList(list));
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove all subscriptions of a region. Returns the removed
+	 * subscriptions, empty if there were none.
+	 */
+	synchronized List<Subscription> removeAll(String key)
+	{
+		List<Subscription> list = mSubscriptions.remove(key);
+		if (list == null) {
+			return Collections.<Subscription>emptyList();
+		}
+		for (Subscription subscription : list) {
+			subscription.close();
+		}
+		return list;
+	}
+
+	/**
+	 * Remove all subscriptions of all regions.
+	 */
+	synchronized void clear()
+	{
+		for (List<Subscription> list : mSubscriptions.values()) {
+			for (Subscription subscription : list) {
+				subscription.close();
+			}
+		}
+		mSubscriptions.clear();
+	}
+
+	private static Subscription remove(ArrayList<Subscription> list, int id)
+	{
+		for (int i = 0; i < list.size(); ++i) {
+			if (list.get(i).id == id) {
+				return list.remove(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Subscriptions of a region, empty if there are none. The list
+	 * is an unmodifiable snapshot.
+	 */
+	List<Subscription> get(String key)
+	{
+		List<Subscription> list = mSubscriptions.get(key);
+		return (list == null) ? Collections.<Subscription>emptyList() : list;
+	}
+
+	/**
+	 * Callback of the first subscription of a region, for reporting
+	 * region wide errors. Null if there are no subscriptions.
+	 */
+	ResultCallback firstCallback(String key)
+	{
+		List<Subscription> list = mSubscriptions.get(key);
+		return (list == null) ? null : list.get(0).callback;
+	}
+
+	/**
+	 * Find a subscription by id in any region. Null if not found.
+	 */
+	Subscription find(int id)
+	{
+		for (List<Subscription> list : mSubscriptions.values()) {
+			for (Subscription subscription : list) {
+				if (subscription.id == id) {
+					return subscription;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * All subscriptions with an id, one per region for subscriptions
+	 * made by the bulk actions.
+	 */
+	List<Subscription> findAll(int id)
+	{
+		List<Subscription> found = new ArrayList<Subscription>();
+		for (List<Subscription> list : mSubscriptions.values()) {
+			for (Subscription subscription : list) {
+				if (subscription.id == id) {
+					found.add(subscription);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Keys of the regions that have a subscription with an id.
+	 */
+	List<String> keysOf(int id)
+	{
+		List<String> keys = new ArrayList<String>();
+		for (Map.Entry<String, List<Subscription>> entry : mSubscriptions.entrySet()) {
+			for (Subscription subscription : entry.getValue()) {
+				if (subscription.id == id) {
+					keys.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		return keys;
+	}
+
+	boolean containsKey(String key)
+	{
+		return mSubscriptions.containsKey(key);
+	}
+
+	Set<String> keySet()
+	{
+		return mSubscriptions.keySet();
+	}
+}
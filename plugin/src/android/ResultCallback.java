@@ -0,0 +1,29 @@
+/*
+Result callback for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+/**
+ * Kept JavaScript callback that subscriptions send their results to.
+ * Implemented over a Cordova CallbackContext by CordovaResultCallback,
+ * and kept free of Cordova so subscriptions and ranging can be tested
+ * on a plain JVM.
+ */
+interface ResultCallback
+{
+	/**
+	 * Send a JSON text result, keeping the callback.
+	 */
+	void sendJson(String json);
+
+	/**
+	 * Send an error, which ends the callback.
+	 */
+	void error(String message);
+
+	/**
+	 * End the callback without a result.
+	 */
+	void clear();
+}
@@ -0,0 +1,337 @@
+/*
+RSSI history for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Bounded RSSI time series per beacon, fed from ranging results.
+ *
+ * Samples are stored in blocks of varints: each block keeps the time of
+ * its first sample, and each sample is the change in time and the zigzag
+ * encoded change in RSSI from the previous one, usually three bytes per
+ * sample. Whole blocks older than the window are dropped. When more
+ * beacons than maxBeacons are seen, the one seen least recently is
+ * evicted.
+ *
+ * Queries decode the blocks in a time range and down-sample them into
+ * buckets with mean, min and max. All methods are synchronized.
+ */
+class RssiHistory
+{
+	private static final int SAMPLES_PER_BLOCK = 64;
+
+	// Worst case bytes per sample: 10 for the time delta, 5 for RSSI.
+	private static final int MAX_SAMPLE_BYTES = 15;
+
+	// Samples closer than this are the same scan cycle seen through
+	// several ranged regions, only the first is kept.
+	private static final long MIN_SAMPLE_INTERVAL_MILLIS = 100;
+
+	/**
+	 * Delta encoded samples. The first sample has time startTime and
+	 * a time delta of zero.
+	 */
+	private static class Block
+	{
+		final long startTime;
+		byte[] data = new byte[SAMPLES_PER_BLOCK * MAX_SAMPLE_BYTES];
+		int length;
+		int count;
+		long lastTime;
+		int lastRssi;
+
+		Block(long startTime)
+		{
+			this.startTime = startTime;
+			this.lastTime = startTime;
+		}
+
+		void append(long time, int rssi)
+		{
+			length = writeVarLong(data, length, time - lastTime);
+			length = writeVarLong(data, length, zigzag(rssi - lastRssi));
+			lastTime = time;
+			lastRssi = rssi;
+			++count;
+		}
+
+		/**
+		 * Shrink the buffer to the encoded length, once the block is full.
+		 */
+		void trim()
+		{
+			data = Arrays.copyOf(data, length);
+		}
+	}
+
+	/**
+	 * Samples of one beacon.
+	 */
+	private static class Series
+	{
+		final UUID uuid;
+		final int major;
+		final int minor;
+		final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+		long lastTime;
+
+		Series(UUID uuid, int major, int minor)
+		{
+			this.uuid = uuid;
+			this.major = major;
+			this.minor = minor;
+		}
+	}
+
+	private final long mWindowMillis;
+	private final int mMaxBeacons;
+	private final HashMap<String, Series> mSeries;
+
+	/**
+	 * @param windowMillis how long samples are kept.
+	 * @param maxBeacons maximum number of beacons with a history.
+	 */
+	RssiHistory(long windowMillis, int maxBeacons)
+	{
+		mWindowMillis = windowMillis;
+		mMaxBeacons = Math.max(1, maxBeacons);
+		mSeries = new HashMap<String, Series>(mMaxBeacons * 2);
+	}
+
+	/**
+	 * Record the beacons of a ranging cycle.
+	 */
+	synchronized void record(ScanCycle cycle, long now)
+	{
+		for (int i = 0; i < cycle.count; ++i) {
+			String key = cycle.beaconKey(i);
+			Series series = mSeries.get(key);
+			if (null == series) {
+				if (mSeries.size() >= mMaxBeacons) {
+					evictIdlest();
+				}
+				series = new Series(cycle.uuid(i), cycle.major[i], cycle.minor[i]);
+				mSeries.put(key, series);
+			}
+			else if (now - series.lastTime < MIN_SAMPLE_INTERVAL_MILLIS) {
+				continue;
+			}
+			append(series, now, cycle.rssi[i]);
+		}
+	}
+
+	/**
+	 * Down-sampled history of beacons matching uuid, major and minor,
+	 * each null to match any, between from and to.
+	 *
+	 * format:
+	 * {
+	 *	 from, to, bucketMillis,
+	 *	 beacons: [ { proximityUUID, major, minor,
+	 *	   t: [ bucket start times ], mean: [], min: [], max: [], count: [] } ]
+	 * }
+	 *
+	 * Buckets without samples are left out.
+	 */
+	synchronized JSONObject query(
+			UUID uuid,
+			Integer major,
+			Integer minor,
+			long from,
+			long to,
+			int maxPoints)
+			throws JSONException
+	{
+		int buckets = Math.max(1, maxPoints);
+		long bucketMillis = Math.max(1, (to - from + buckets - 1) / buckets);
+
+		long[] sum = new long[buckets];
+		int[] count = new int[buckets];
+		int[] min = new int[buckets];
+		int[] max = new int[buckets];
+
+		JSONArray result = new JSONArray();
+		for (Series series : mSeries.values()) {
+			if ((null != uuid && !uuid.equals(series.uuid))
+					|| (null != major && major != series.major)
+					|| (null != minor && minor != series.minor)) {
+				continue;
+			}
+
+			for (int i = 0; i < buckets; ++i) {
+				sum[i] = 0;
+				count[i] = 0;
+			}
+			boolean any = false;
+
+			for (Block block : series.blocks) {
+				if (block.lastTime < from || block.startTime > to) {
+					continue;
+				}
+				long time = block.startTime;
+				int rssi = 0;
+				int[] position = { 0 };
+				for (int s = 0; s < block.count; ++s) {
+					time += readVarLong(block.data, position);
+					rssi += unzigzag(readVarLong(block.data, position));
+					if (time < from || time > to) {
+						continue;
+					}
+					int bucket = (int) Math.min(buckets - 1, (time - from) / bucketMillis);
+					if (count[bucket] == 0) {
+						min[bucket] = rssi;
+						max[bucket] = rssi;
+					}
+					else {
+						min[bucket] = Math.min(min[bucket], rssi);
+						max[bucket] = Math.max(max[bucket], rssi);
+					}
+					sum[bucket] += rssi;
+					count[bucket]++;
+					any = true;
+				}
+			}
+			if (!any) {
+				continue;
+			}
+
+			JSONArray t = new JSONArray();
+			JSONArray means = new JSONArray();
+			JSONArray mins = new JSONArray();
+			JSONArray maxs = new JSONArray();
+			JSONArray counts = new JSONArray();
+			for (int i = 0; i < buckets; ++i) {
+				if (count[i] == 0) {
+					continue;
+				}
+				t.put(from + i * bucketMillis);
+				means.put((double) sum[i] / count[i]);
+				mins.put(min[i]);
+				maxs.put(max[i]);
+				counts.put(count[i]);
+			}
+
+			JSONObject json = new JSONObject();
+			json.put("proximityUUID", series.uuid.toString());
+			json.put("major", series.major);
+			json.put("minor", series.minor);
+			json.put("t", t);
+			json.put("mean", means);
+			json.put("min", mins);
+			json.put("max", maxs);
+			json.put("count", counts);
+			result.put(json);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("from", from);
+		json.put("to", to);
+		json.put("bucketMillis", bucketMillis);
+		json.put("beacons", result);
+		return json;
+	}
+
+	/**
+	 * Memory statistics.
+	 *
+	 * format:
+	 * { windowMillis, beacons, samples, bytes }
+	 */
+	synchronized JSONObject statsToJSON() throws JSONException
+	{
+		long samples = 0;
+		long bytes = 0;
+		for (Series series : mSeries.values()) {
+			for (Block block : series.blocks) {
+				samples += block.count;
+				bytes += block.data.length;
+			}
+		}
+		JSONObject json = new JSONObject();
+		json.put("windowMillis", mWindowMillis);
+		json.put("beacons", mSeries.size());
+		json.put("samples", samples);
+		json.put("bytes", bytes);
+		return json;
+	}
+
+	private void append(Series series, long now, int rssi)
+	{
+		// Drop blocks that have left the window entirely.
+		long oldest = now - mWindowMillis;
+		while (!series.blocks.isEmpty() && series.blocks.peekFirst().lastTime < oldest) {
+			series.blocks.pollFirst();
+		}
+
+		Block block = series.blocks.peekLast();
+		if (null == block || block.count >= SAMPLES_PER_BLOCK) {
+			if (null != block) {
+				block.trim();
+			}
+			block = new Block(now);
+			series.blocks.addLast(block);
+		}
+		block.append(now, rssi);
+		series.lastTime = now;
+	}
+
+	private void evictIdlest()
+	{
+		String idlest = null;
+		long idlestTime = Long.MAX_VALUE;
+		for (Map.Entry<String, Series> entry : mSeries.entrySet()) {
+			if (entry.getValue().lastTime < idlestTime) {
+				idlestTime = entry.getValue().lastTime;
+				idlest = entry.getKey();
+			}
+		}
+		if (null != idlest) {
+			mSeries.remove(idlest);
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static int unzigzag(long value)
+	{
+		return (int) ((value >>> 1) ^ -(value & 1));
+	}
+
+	private static int writeVarLong(byte[] buffer, int position, long value)
+	{
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	private static long readVarLong(byte[] buffer, int[] position)
+	{
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			byte b = buffer[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+}
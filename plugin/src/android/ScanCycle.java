@@ -0,0 +1,171 @@
+/*
+Scan cycle buffer for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.recognition.packets.Beacon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import static com.estimote.coresdk.observation.region.RegionUtils.computeAccuracy;
+import static com.estimote.coresdk.observation.region.RegionUtils.computeProximity;
+
+/**
+ * The beacons of one ranging cycle as parallel primitive arrays, filled
+ * once per cycle so that lookup, serialization and the native consumers
+ * read plain arrays instead of walking the SDK list and calling
+ * computeAccuracy and computeProximity again each.
+ *
+ * The arrays are reused between cycles and only grow. UUIDs are interned
+ * into a small table, beacons refer to it by index, and the UUID strings
+ * and beacon keys are cached, since they repeat every cycle.
+ *
+ * Filled and read on the ranging listener thread. The find methods and
+ * the UUID and key accessors are synchronized with fill, since fill may
+ * clear the interned tables they read.
+ */
+class ScanCycle
+{
+	// The interned tables are cleared when they grow past this,
+	// they should hold a handful of entries in practice.
+	private static final int MAX_INTERNED = 256;
+	private static final int MAX_KEYS = 4096;
+
+	int count;
+	Beacon[] beacons = new Beacon[16];
+	int[] uuidIndex = new int[16];
+	int[] major = new int[16];
+	int[] minor = new int[16];
+	int[] rssi = new int[16];
+	int[] proximity = new int[16];
+	double[] distance = new double[16];
+
+	private final ArrayList<UUID> mUuids = new ArrayList<UUID>();
+	private final ArrayList<String> mUuidStrings = new ArrayList<String>();
+	private final HashMap<UUID, Integer> mUuidIndices = new HashMap<UUID, Integer>();
+	private final HashMap<Long, String> mKeys = new HashMap<Long, String>();
+
+	/**
+	 * Fill from the beacons of a ranging cycle.
+	 */
+	synchronized void fill(List<Beacon> list)
+	{
+		int n = list.size();
+		if (n > beacons.length) {
+			grow(Math.max(n, beacons.length * 2));
+		}
+		if (mUuids.size() > MAX_INTERNED || mKeys.size() > MAX_KEYS) {
+			mUuids.clear();
+			mUuidStrings.clear();
+			mUuidIndices.clear();
+			mKeys.clear();
+		}
+
+		for (int i = 0; i < n; ++i) {
+			Beacon b = list.get(i);
+			beacons[i] = b;
+			uuidIndex[i] = intern(b.getProximityUUID());
+			major[i] = b.getMajor();
+			minor[i] = b.getMinor();
+			rssi[i] = b.getRssi();
+			proximity[i] = BeaconJsonWriter.proximityCode(computeProximity(b));
+			distance[i] = computeAccuracy(b);
+		}
+
+		// Do not hold on to beacons of a larger previous cycle.
+		if (n < count) {
+			Arrays.fill(beacons, n, count, null);
+		}
+		count = n;
+	}
+
+	/**
+	 * True if the distance of beacon i can be represented in JSON.
+	 */
+	boolean hasDistance(int i)
+	{
+		return !Double.isNaN(distance[i]) && !Double.isInfinite(distance[i]);
+	}
+
+	synchronized UUID uuid(int i)
+	{
+		return mUuids.get(uuidIndex[i]);
+	}
+
+	synchronized String uuidString(int i)
+	{
+		return mUuidStrings.get(uuidIndex[i]);
+	}
+
+	/**
+	 * Beacon key as made by PositioningEngine.beaconKey, cached.
+	 */
+	synchronized String beaconKey(int i)
+	{
+		long id = ((long) uuidIndex[i] << 32) | ((long) major[i] << 16) | minor[i];
+		String key = mKeys.get(id);
+		if (null == key) {
+			key = PositioningEngine.beaconKey(uuidString(i), major[i], minor[i]);
+			mKeys.put(id, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Beacon of the last cycle with a MAC address, or null.
+	 */
+	synchronized Beacon find(String macAddress)
+	{
+		for (int i = 0; i < count; ++i) {
+			if (beacons[i].getMacAddress().toStandardString().equalsIgnoreCase(macAddress)) {
+				return beacons[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Beacon of the last cycle with a UUID, major and minor, or null.
+	 */
+	synchronized Beacon find(UUID uuid, int major, int minor)
+	{
+		Integer index = mUuidIndices.get(uuid);
+		if (null == index) {
+			return null;
+		}
+		for (int i = 0; i < count; ++i) {
+			if (uuidIndex[i] == index && this.major[i] == major && this.minor[i] == minor) {
+				return beacons[i];
+			}
+		}
+		return null;
+	}
+
+	private int intern(UUID uuid)
+	{
+		Integer index = mUuidIndices.get(uuid);
+		if (null == index) {
+			index = mUuids.size();
+			mUuids.add(uuid);
+			mUuidStrings.add(uuid.toString());
+			mUuidIndices.put(uuid, index);
+		}
+		return index;
+	}
+
+	private void grow(int capacity)
+	{
+		beacons = Arrays.copyOf(beacons, capacity);
+		uuidIndex = Arrays.copyOf(uuidIndex, capacity);
+		major = Arrays.copyOf(major, capacity);
+		minor = Arrays.copyOf(minor, capacity);
+		rssi = Arrays.copyOf(rssi, capacity);
+		proximity = Arrays.copyOf(proximity, capacity);
+		distance = Arrays.copyOf(distance, capacity);
+	}
+}
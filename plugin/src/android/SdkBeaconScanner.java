@@ -0,0 +1,142 @@
+/*
+SDK beacon scanner for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.observation.region.beacon.BeaconRegion;
+import com.estimote.coresdk.service.BeaconManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BeaconScanner over the Estimote BeaconManager. Tracks the connection
+ * to the scanning service, which the BeaconManager does not expose.
+ *
+ * Listeners are still set on the BeaconManager itself.
+ */
+class SdkBeaconScanner implements BeaconScanner<BeaconRegion>
+{
+	private final BeaconManager mBeaconManager;
+
+	// Connection state, guarded by this. The generation changes on
+	// disconnect, so a ready callback of an older connect is ignored.
+	private boolean mConnected = false;
+	private boolean mConnecting = false;
+	private int mGeneration = 0;
+	private final List<Runnable> mPending = new ArrayList<Runnable>();
+
+	SdkBeaconScanner(BeaconManager beaconManager)
+	{
+		mBeaconManager = beaconManager;
+	}
+
+	@Override
+	public void connect(Runnable onReady)
+	{
+		final int generation;
+		synchronized (this) {
+			if (!mConnected) {
+				mPending.add(onReady);
+				if (mConnecting) {
+					return;
+				}
+				mConnecting = true;
+				generation = mGeneration;
+			}
+			else {
+				generation = -1;
+			}
+		}
+
+		if (generation < 0) {
+			onReady.run();
+			return;
+		}
+
+		mBeaconManager.connect(new BeaconManager.ServiceReadyCallback() {
+			@Override
+			public void onServiceReady() {
+				ready(generation);
+			}
+		});
+	}
+
+	private void ready(int generation)
+	{
+		List<Runnable> ready;
+		synchronized (this) {
+			if (generation != mGeneration) {
+				return;
+			}
+			mConnected = true;
+			mConnecting = false;
+			ready = new ArrayList<Runnable>(mPending);
+			mPending.clear();
+		}
+		for (Runnable onReady : ready) {
+			onReady.run();
+		}
+	}
+
+	@Override
+	public synchronized boolean isConnected()
+	{
+		return mConnected;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		synchronized (this) {
+			mConnected = false;
+			mConnecting = false;
+			++mGeneration;
+			mPending.clear();
+		}
+		mBeaconManager.disconnect();
+	}
+
+	@Override
+	public void startRanging(BeaconRegion region)
+	{
+		mBeaconManager.startRanging(region);
+	}
+
+	@Override
+	public void stopRanging(BeaconRegion region)
+	{
+		mBeaconManager.stopRanging(region);
+	}
+
+	@Override
+	public void startMonitoring(BeaconRegion region)
+	{
+		mBeaconManager.startMonitoring(region);
+	}
+
+	@Override
+	public void stopMonitoring(BeaconRegion region)
+	{
+		mBeaconManager.stopMonitoring(region.getIdentifier());
+	}
+
+	@Override
+	public void startNearableDiscovery()
+	{
+		mBeaconManager.startNearableDiscovery();
+	}
+
+	@Override
+	public void startTelemetryDiscovery()
+	{
+		mBeaconManager.startTelemetryDiscovery();
+	}
+
+	@Override
+	public void stopTelemetryDiscovery()
+	{
+		mBeaconManager.stopTelemetryDiscovery();
+	}
+}
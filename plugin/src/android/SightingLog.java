@@ -0,0 +1,577 @@
+/*
+Sighting export for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Writes ranged beacon sightings into rolling segment files for bulk
+ * upload, so that the app does not have to send each ranging result.
+ *
+ * Sightings are encoded in memory as they arrive and appended to the
+ * current segment file in chunks, each chunk compressed as its own gzip
+ * member. Concatenated gzip members are one valid gzip stream. A segment
+ * is finished, renamed from .part to .gz, when it reaches the size or
+ * age limit, or on request. The oldest finished segments are deleted
+ * when there are more than maxSegments.
+ *
+ * A crash loses the sightings still buffered or queued, and may leave
+ * a truncated member at the end of the .part file. On the next start
+ * the file is cut back to its last complete member before it is
+ * finished, or deleted if it has none. Chunks end on record boundaries,
+ * so the records kept are whole.
+ *
+ * Segment format, after decompression, all integers unsigned varints
+ * unless noted:
+ *
+ *   magic (4 bytes, "ESL1"), start time (ms)
+ *   records, each starting with a tag byte:
+ *     TAG_REGION: index, key length, key (UTF-8)
+ *     TAG_UUID: index, uuid (16 bytes)
+ *     TAG_CYCLE: time since previous cycle or start (ms), region index,
+ *       count, then count beacons of:
+ *       uuid index, major, minor, rssi (zigzag), distance in cm + 1
+ *       (0 if unknown)
+ *
+ * Region and UUID indices are defined in the segment before their first
+ * use, so each segment decodes on its own. They are defined once per
+ * segment though, not per chunk, so a segment must be decoded from its
+ * start and a single member does not decode on its own.
+ *
+ * Recording is synchronized and only encodes into a buffer; the files
+ * are written in order on the executor.
+ */
+class SightingLog
+{
+	private static final String LOGTAG = "EstimoteBeacons";
+
+	private static final byte[] MAGIC = { 'E', 'S', 'L', '1' };
+	private static final int TAG_REGION = 0;
+	private static final int TAG_UUID = 1;
+	private static final int TAG_CYCLE = 2;
+
+	private static final String PART_SUFFIX = ".part";
+	private static final String SEGMENT_SUFFIX = ".gz";
+
+	// Encoded bytes are appended to the file in chunks of about this size.
+	private static final int CHUNK_BYTES = 16384;
+
+	// Header and trailer of the gzip members written by GZIPOutputStream.
+	private static final int GZIP_HEADER_BYTES = 10;
+	private static final int GZIP_TRAILER_BYTES = 8;
+
+	// Worst case encoded bytes of one beacon of a cycle.
+	private static final int MAX_BEACON_BYTES = 5 * 5 + 10;
+
+	/**
+	 * Result of drain.
+	 */
+	interface DrainCallback
+	{
+		void onDrained(List<String> paths, long sightings, long dropped);
+	}
+
+	private final File mDirectory;
+	private final Executor mExecutor;
+	private final long mMaxSegmentBytes;
+	private final long mMaxSegmentMillis;
+	private final int mMaxSegments;
+
+	// Encoder state of the current segment, guarded by this.
+	private File mSegment;
+	private long mSegmentStart;
+	private long mSegmentBytes;
+	private long mLastTime;
+	private int mSequence = 0;
+	private final HashMap<String, Integer> mRegions = new HashMap<String, Integer>();
+	private final HashMap<UUID, Integer> mUuids = new HashMap<UUID, Integer>();
+	private byte[] mBuffer = new byte[CHUNK_BYTES + 1024];
+	private int mLength = 0;
+	private long mSightings = 0;
+	private long mDropped = 0;
+
+	// True once segments of earlier runs have been finished, this
+	// must not touch segments of a log closed in this run.
+	private static boolean sRecovered = false;
+
+	// Writes run one at a time, in order, guarded by mTasks.
+	private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+	private boolean mWriting = false;
+
+	/**
+	 * @param directory directory of the segment files, created if needed.
+	 * @param executor executor the files are written on.
+	 * @param maxSegmentBytes encoded size at which a segment is finished,
+	 * the file is smaller after compression.
+	 * @param maxSegmentMillis age at which a segment is finished.
+	 * @param maxSegments maximum number of finished segments kept.
+	 */
+	SightingLog(
+			File directory,
+			Executor executor,
+			long maxSegmentBytes,
+			long maxSegmentMillis,
+			int maxSegments)
+	{
+		mDirectory = directory;
+		mExecutor = executor;
+		mMaxSegmentBytes = Math.max(CHUNK_BYTES, maxSegmentBytes);
+		mMaxSegmentMillis = Math.max(1000, maxSegmentMillis);
+		mMaxSegments = Math.max(1, maxSegments);
+
+		// Segments left unfinished by an earlier run may end in a
+		// truncated chunk, cut it off and finish them.
+		final boolean recover;
+		synchronized (SightingLog.class) {
+			recover = !sRecovered;
+			sRecovered = true;
+		}
+		enqueue(new Runnable() {
+			@Override
+			public void run() {
+				if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+					Log.e(LOGTAG, "SightingLog could not create " + mDirectory);
+					return;
+				}
+				if (recover) {
+					for (File part : files(PART_SUFFIX)) {
+						recoverFile(part);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record the beacons of a ranging cycle of a region.
+	 */
+	synchronized void record(String regionKey, ScanCycle cycle, long now)
+	{
+		if (0 == cycle.count) {
+			return;
+		}
+		if (null != mSegment
+				&& (mSegmentBytes + mLength >= mMaxSegmentBytes
+					|| now - mSegmentStart >= mMaxSegmentMillis)) {
+			finishSegment();
+		}
+		if (null == mSegment) {
+			startSegment(now);
+		}
+
+		Integer region = mRegions.get(regionKey);
+		if (null == region) {
+			region = mRegions.size();
+			mRegions.put(regionKey, region);
+			byte[] key = utf8(regionKey);
+			reserve(1 + 10 + 10 + key.length);
+			mBuffer[mLength++] = TAG_REGION;
+			mLength = writeVarLong(mBuffer, mLength, region);
+			mLength = writeVarLong(mBuffer, mLength, key.length);
+			System.arraycopy(key, 0, mBuffer, mLength, key.length);
+			mLength += key.length;
+		}
+
+		// Define UUIDs first, so the cycle is one record.
+		int[] uuids = new int[cycle.count];
+		for (int i = 0; i < cycle.count; ++i) {
+			UUID uuid = cycle.uuid(i);
+			Integer index = mUuids.get(uuid);
+			if (null == index) {
+				index = mUuids.size();
+				mUuids.put(uuid, index);
+				reserve(1 + 10 + 16);
+				mBuffer[mLength++] = TAG_UUID;
+				mLength = writeVarLong(mBuffer, mLength, index);
+				mLength = writeLong(mBuffer, mLength, uuid.getMostSignificantBits());
+				mLength = writeLong(mBuffer, mLength, uuid.getLeastSignificantBits());
+			}
+			uuids[i] = index;
+		}
+
+		reserve(1 + 30 + cycle.count * MAX_BEACON_BYTES);
+		mBuffer[mLength++] = TAG_CYCLE;
+		mLength = writeVarLong(mBuffer, mLength, Math.max(0, now - mLastTime));
+		mLength = writeVarLong(mBuffer, mLength, region);
+		mLength = writeVarLong(mBuffer, mLength, cycle.count);
+		for (int i = 0; i < cycle.count; ++i) {
+			mLength = writeVarLong(mBuffer, mLength, uuids[i]);
+			mLength = writeVarLong(mBuffer, mLength, cycle.major[i]);
+			mLength = writeVarLong(mBuffer, mLength, cycle.minor[i]);
+			mLength = writeVarLong(mBuffer, mLength, zigzag(cycle.rssi[i]));
+			long distance = cycle.hasDistance(i)
+					? Math.round(Math.max(0, cycle.distance[i]) * 100) + 1
+					: 0;
+			mLength = writeVarLong(mBuffer, mLength, distance);
+		}
+		mLastTime = now;
+		mSightings += cycle.count;
+
+		if (mLength >= CHUNK_BYTES) {
+			writeChunk();
+		}
+	}
+
+	/**
+	 * Write buffered sightings to the current segment, on the executor.
+	 */
+	synchronized void flush()
+	{
+		if (mLength > 0) {
+			writeChunk();
+		}
+	}
+
+	/**
+	 * Finish the current segment, if any, then run done on the executor
+	 * with the paths of all finished segments, oldest first, the number
+	 * of sightings recorded and of segments dropped by the segment limit.
+	 * Segments in delete are deleted first, typically those uploaded
+	 * since the last drain; only segment files of this log are deleted.
+	 */
+	void drain(final List<String> delete, boolean finish, final DrainCallback done)
+	{
+		final long sightings;
+		final long dropped;
+		synchronized (this) {
+			if (finish && null != mSegment) {
+				finishSegment();
+			}
+			sightings = mSightings;
+			dropped = mDropped;
+		}
+		enqueue(new Runnable() {
+			@Override
+			public void run() {
+				for (String path : delete) {
+					File file = new File(path);
+					if (mDirectory.equals(file.getParentFile())
+							&& file.getName().endsWith(SEGMENT_SUFFIX)
+							&& !file.delete()) {
+						Log.e(LOGTAG, "SightingLog could not delete " + file);
+					}
+				}
+				List<String> paths = new ArrayList<String>();
+				for (File file : files(SEGMENT_SUFFIX)) {
+					paths.add(file.getAbsolutePath());
+				}
+				done.onDrained(paths, sightings, dropped);
+			}
+		});
+	}
+
+	/**
+	 * Finish the current segment and stop. Recording again starts a
+	 * new segment.
+	 */
+	synchronized void close()
+	{
+		if (null != mSegment) {
+			finishSegment();
+		}
+	}
+
+	private void startSegment(long now)
+	{
+		mSegment = new File(
+				mDirectory,
+				"sightings-" + now + "-" + (mSequence++) + SEGMENT_SUFFIX + PART_SUFFIX);
+		mSegmentStart = now;
+		mSegmentBytes = 0;
+		mLastTime = now;
+		mRegions.clear();
+		mUuids.clear();
+		reserve(MAGIC.length + 10);
+		System.arraycopy(MAGIC, 0, mBuffer, mLength, MAGIC.length);
+		mLength += MAGIC.length;
+		mLength = writeVarLong(mBuffer, mLength, now);
+	}
+
+	private void finishSegment()
+	{
+		writeChunk();
+		final File part = mSegment;
+		mSegment = null;
+		enqueue(new Runnable() {
+			@Override
+			public void run() {
+				finishFile(part);
+				dropOldSegments();
+			}
+		});
+	}
+
+	/**
+	 * Hand the buffer to the executor, to be appended to the current
+	 * segment as one gzip member.
+	 */
+	private void writeChunk()
+	{
+		if (0 == mLength || null == mSegment) {
+			return;
+		}
+		final File file = mSegment;
+		final byte[] chunk = Arrays.copyOf(mBuffer, mLength);
+		mSegmentBytes += mLength;
+		mLength = 0;
+		enqueue(new Runnable() {
+			@Override
+			public void run() {
+				GZIPOutputStream out = null;
+				try {
+					out = new GZIPOutputStream(new FileOutputStream(file, true), 8192);
+					out.write(chunk);
+					out.finish();
+				}
+				catch (IOException e) {
+					Log.e(LOGTAG, "SightingLog write error:", e);
+				}
+				finally {
+					closeQuietly(out);
+				}
+			}
+		});
+	}
+
+	private void reserve(int bytes)
+	{
+		if (mLength + bytes > mBuffer.length) {
+			mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + bytes));
+		}
+	}
+
+	/**
+	 * Run a task on the executor after all earlier ones.
+	 */
+	private void enqueue(Runnable task)
+	{
+		synchronized (mTasks) {
+			mTasks.add(task);
+			if (mWriting) {
+				return;
+			}
+			mWriting = true;
+		}
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					Runnable next;
+					synchronized (mTasks) {
+						next = mTasks.poll();
+						if (null == next) {
+							mWriting = false;
+							return;
+						}
+					}
+					try {
+						next.run();
+					}
+					catch (RuntimeException e) {
+						Log.e(LOGTAG, "SightingLog task error:", e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cut a segment of an earlier run back to its last complete gzip
+	 * member and finish it. Deleted if not even the first member, which
+	 * holds the segment header, is complete.
+	 */
+	private void recoverFile(File part)
+	{
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(part, "rw");
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			int complete = completeLength(data);
+			if (complete < data.length) {
+				Log.i(LOGTAG, "SightingLog dropping " + (data.length - complete)
+						+ " bytes of incomplete chunk in " + part);
+				file.setLength(complete);
+			}
+		}
+		catch (IOException e) {
+			Log.e(LOGTAG, "SightingLog could not check " + part, e);
+		}
+		finally {
+			closeQuietly(file);
+		}
+		if (0 == part.length()) {
+			if (!part.delete()) {
+				Log.e(LOGTAG, "SightingLog could not delete " + part);
+			}
+			return;
+		}
+		finishFile(part);
+	}
+
+	/**
+	 * Length of the complete gzip members at the start of data, as
+	 * written by writeChunk: a plain header, the deflated chunk, and a
+	 * trailer with matching CRC and size.
+	 */
+	private static int completeLength(byte[] data)
+	{
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		byte[] out = new byte[8192];
+		int complete = 0;
+		try {
+			while (complete + GZIP_HEADER_BYTES <= data.length
+					&& (data[complete] & 0xFF) == 0x1F
+					&& (data[complete + 1] & 0xFF) == 0x8B
+					&& data[complete + 2] == 8
+					&& data[complete + 3] == 0) {
+				inflater.reset();
+				crc.reset();
+				int start = complete + GZIP_HEADER_BYTES;
+				inflater.setInput(data, start, data.length - start);
+				long size = 0;
+				while (!inflater.finished()) {
+					int n = inflater.inflate(out);
+					if (0 == n && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					crc.update(out, 0, n);
+					size += n;
+				}
+				if (!inflater.finished()) {
+					break;
+				}
+				int end = data.length - inflater.getRemaining();
+				if (end + GZIP_TRAILER_BYTES > data.length
+						|| readIntLE(data, end) != (int) crc.getValue()
+						|| readIntLE(data, end + 4) != (int) size) {
+					break;
+				}
+				complete = end + GZIP_TRAILER_BYTES;
+			}
+		}
+		catch (DataFormatException e) {
+			// Corrupt member, keep the ones before it.
+		}
+		finally {
+			inflater.end();
+		}
+		return complete;
+	}
+
+	private static int readIntLE(byte[] data, int position)
+	{
+		return (data[position] & 0xFF)
+				| (data[position + 1] & 0xFF) << 8
+				| (data[position + 2] & 0xFF) << 16
+				| (data[position + 3] & 0xFF) << 24;
+	}
+
+	private void finishFile(File part)
+	{
+		String name = part.getName();
+		File segment = new File(
+				part.getParentFile(),
+				name.substring(0, name.length() - PART_SUFFIX.length()));
+		if (part.exists() && !part.renameTo(segment)) {
+			Log.e(LOGTAG, "SightingLog could not finish " + part);
+		}
+	}
+
+	private void dropOldSegments()
+	{
+		List<File> segments = files(SEGMENT_SUFFIX);
+		for (int i = 0; i < segments.size() - mMaxSegments; ++i) {
+			if (segments.get(i).delete()) {
+				synchronized (this) {
+					++mDropped;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Files of this log with a suffix, oldest first.
+	 */
+	private List<File> files(String suffix)
+	{
+		List<File> files = new ArrayList<File>();
+		File[] all = mDirectory.listFiles();
+		if (null == all) {
+			return files;
+		}
+		Arrays.sort(all);
+		for (File file : all) {
+			if (file.getName().startsWith("sightings-") && file.getName().endsWith(suffix)) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static byte[] utf8(String s)
+	{
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static int writeVarLong(byte[] buffer, int position, long value)
+	{
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	private static int writeLong(byte[] buffer, int position, long value)
+	{
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+		return position;
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (null != closeable) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+Proximity trigger rules for the Android implementation of the Estimote Beacons plugin.
+*/
+
+package com.evothings;
+
+import com.estimote.coresdk.recognition.packets.Nearable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Declarative trigger rules evaluated on every ranging and nearable scan
+ * cycle, so that JavaScript only receives the events of rules that fire.
+ *
+ * A rule matches beacons or nearables, has conditions on proximity,
+ * distance, RSSI and (for nearables) motion, and fires once the
+ * conditions have held for durationMillis. It fires again only after the
+ * conditions have been broken and have held again, and no sooner than
+ * cooldownMillis after the last firing. A beacon missing from scans for
+ * more than graceMillis breaks the conditions, so that a beacon ranged
+ * in several regions is not reset by cycles of other regions.
+ *
+ * All methods are synchronized, ranging and nearable results arrive on
+ * different threads.
+ */
+class TriggerEngine
+{
+	private static final long DEFAULT_GRACE_MILLIS = 3000;
+
+	// States are pruned when there are more than this, dropping
+	// those of subjects not seen for the expiry time.
+	private static final int MAX_STATES = 1024;
+	private static final long STATE_EXPIRY_MILLIS = 600000;
+
+	/**
+	 * One rule.
+	 */
+	private static class Rule
+	{
+		String id;
+		boolean nearable;
+
+		// Matchers, null matches any.
+		UUID uuid;
+		Integer major;
+		Integer minor;
+		String identifier;
+		String nearableType;
+		String color;
+
+		// Conditions.
+		int proximityMask = ~0;
+		double maxDistance = Double.MAX_VALUE;
+		int minRssi = Integer.MIN_VALUE;
+		int maxRssi = Integer.MAX_VALUE;
+		Boolean moving;
+
+		long durationMillis;
+		long cooldownMillis;
+		long graceMillis;
+	}
+
+	/**
+	 * Condition state of one rule for one beacon or nearable.
+	 */
+	private static class State
+	{
+		long since;
+		long lastSatisfied;
+		long lastFired;
+		boolean fired;
+	}
+
+	private final ArrayList<Rule> mBeaconRules = new ArrayList<Rule>();
+	private final ArrayList<Rule> mNearableRules = new ArrayList<Rule>();
+	private final HashMap<String, State> mStates = new HashMap<String, State>();
+
+	/**
+	 * Parse rules.
+	 *
+	 * rule format:
+	 * {
+	 *	 id: string,
+	 *	 type: "beacon" (default) or "nearable",
+	 *	 uuid, major, minor: beacon matchers,
+	 *	 identifier, nearableType, color: nearable matchers,
+	 *	 proximities: [ proximity codes ], maxDistance, minRssi, maxRssi,
+	 *	 moving: boolean (nearables),
+	 *	 durationMillis, cooldownMillis, graceMillis
+	 * }
+	 */
+	TriggerEngine(JSONArray rules) throws JSONException
+	{
+		for (int i = 0; i < rules.length(); ++i) {
+			JSONObject json = rules.getJSONObject(i);
+			Rule rule = new Rule();
+			rule.id = json.optString("id", String.valueOf(i));
+			rule.nearable = "nearable".equals(json.optString("type", "beacon"));
+
+			String uuid = json.optString("uuid", null);
+			rule.uuid = (null == uuid) ? null : UUID.fromString(uuid);
+			rule.major = json.has("major") ? json.getInt("major") : null;
+			rule.minor = json.has("minor") ? json.getInt("minor") : null;
+			rule.identifier = json.optString("identifier", null);
+			rule.nearableType = json.optString("nearableType", null);
+			rule.color = json.optString("color", null);
+
+			JSONArray proximities = json.optJSONArray("proximities");
+			if (null != proximities) {
+				rule.proximityMask = BeaconFilter.proximityMask(proximities);
+			}
+			rule.maxDistance = json.optDouble("maxDistance", Double.MAX_VALUE);
+			rule.minRssi = json.optInt("minRssi", Integer.MIN_VALUE);
+			rule.maxRssi = json.optInt("maxRssi", Integer.MAX_VALUE);
+			rule.moving = json.has("moving") ? json.getBoolean("moving") : null;
+
+			rule.durationMillis = Math.max(0, json.optLong("durationMillis", 0));
+			rule.cooldownMillis = Math.max(0, json.optLong("cooldownMillis", 0));
+			rule.graceMillis = Math.max(0, json.optLong("graceMillis", DEFAULT_GRACE_MILLIS));
+
+			(rule.nearable ? mNearableRules : mBeaconRules).add(rule);
+		}
+	}
+
+	boolean hasNearableRules()
+	{
+		return !mNearableRules.isEmpty();
+	}
+
+	/**
+	 * Evaluate beacon rules on a ranging cycle.
+	 * Returns the events of rules that fired, often empty.
+	 */
+	synchronized List<JSONObject> evaluateBeacons(ScanCycle cycle, long now)
+			throws JSONException
+	{
+		List<JSONObject> events = new ArrayList<JSONObject>(0);
+		if (mBeaconRules.isEmpty()) {
+			return events;
+		}
+		for (int i = 0; i < cycle.count; ++i) {
+			UUID uuid = cycle.uuid(i);
+			int rssi = cycle.rssi[i];
+			int proximity = cycle.proximity[i];
+			double distance = cycle.distance[i];
+			for (Rule rule : mBeaconRules) {
+				if ((null != rule.uuid && !rule.uuid.equals(uuid))
+						|| (null != rule.major && rule.major != cycle.major[i])
+						|| (null != rule.minor && rule.minor != cycle.minor[i])) {
+					continue;
+				}
+				boolean satisfied = rssi >= rule.minRssi
+						&& rssi <= rule.maxRssi
+						&& (rule.proximityMask & (1 << proximity)) != 0
+						&& (rule.maxDistance == Double.MAX_VALUE
+							|| distance <= rule.maxDistance);
+				long held = update(rule, cycle.beaconKey(i), satisfied, now);
+				if (held >= 0) {
+					JSONObject beacon = new JSONObject();
+					beacon.put("proximityUUID", cycle.uuidString(i));
+					beacon.put("major", cycle.major[i]);
+					beacon.put("minor", cycle.minor[i]);
+					beacon.put("rssi", rssi);
+					beacon.put("proximity", proximity);
+					if (cycle.hasDistance(i)) {
+						beacon.put("distance", distance);
+					}
+					events.add(event(rule, now, held).put("beacon", beacon));
+				}
+			}
+		}
+		prune(now);
+		return events;
+	}
+
+	/**
+	 * Evaluate nearable rules on a nearable scan cycle.
+	 * Returns the events of rules that fired, often empty.
+	 */
+	synchronized List<JSONObject> evaluateNearables(List<Nearable> nearables, long now)
+			throws JSONException
+	{
+		List<JSONObject> events = new ArrayList<JSONObject>(0);
+		if (mNearableRules.isEmpty()) {
+			return events;
+		}
+		for (Nearable n : nearables) {
+			for (Rule rule : mNearableRules) {
+				if ((null != rule.identifier && !rule.identifier.equals(n.identifier))
+						|| (null != rule.nearableType
+							&& (null == n.type || !rule.nearableType.equals(n.type.text)))
+						|| (null != rule.color
+							&& (null == n.color || !rule.color.equals(n.color.text)))) {
+					continue;
+				}
+				boolean satisfied = n.rssi >= rule.minRssi
+						&& n.rssi <= rule.maxRssi
+						&& (null == rule.moving || rule.moving == n.isMoving);
+				long held = update(rule, n.identifier, satisfied, now);
+				if (held >= 0) {
+					JSONObject nearable = new JSONObject();
+					nearable.put("identifier", n.identifier);
+					if (null != n.type) {
+						nearable.put("type", n.type.text);
+					}
+					if (null != n.color) {
+						nearable.put("color", n.color.text);
+					}
+					nearable.put("rssi", n.rssi);
+					nearable.put("isMoving", n.isMoving);
+					events.add(event(rule, now, held).put("nearable", nearable));
+				}
+			}
+		}
+		prune(now);
+		return events;
+	}
+
+	/**
+	 * Update the state of a rule for a subject. Returns how long the
+	 * conditions have held if the rule fires now, otherwise -1.
+	 */
+	private long update(Rule rule, String subject, boolean satisfied, long now)
+	{
+		String key = rule.id + "|" + subject;
+		State state = mStates.get(key);
+		if (!satisfied) {
+			if (null != state) {
+				state.since = 0;
+			}
+			return -1;
+		}
+		if (null == state) {
+			state = new State();
+			mStates.put(key, state);
+		}
+		if (0 == state.since || now - state.lastSatisfied > rule.graceMillis) {
+			// New stretch of the conditions holding.
+			state.since = now;
+			state.fired = false;
+		}
+		state.lastSatisfied = now;
+
+		if (!state.fired
+				&& now - state.since >= rule.durationMillis
+				&& (0 == state.lastFired || now - state.lastFired >= rule.cooldownMillis)) {
+			state.fired = true;
+			state.lastFired = now;
+			return now - state.since;
+		}
+		return -1;
+	}
+
+	private static JSONObject event(Rule rule, long now, long held) throws JSONException
+	{
+		JSONObject json = new JSONObject();
+		json.put("ruleId", rule.id);
+		json.put("firedAt", now);
+		json.put("heldMillis", held);
+		return json;
+	}
+
+	/**
+	 * Drop states of subjects gone for long, keeping ones that are
+	 * still in their cooldown.
+	 */
+	private void prune(long now)
+	{
+		if (mStates.size() <= MAX_STATES) {
+			return;
+		}
+		for (Iterator<State> i = mStates.values().iterator(); i.hasNext();) {
+			State state = i.next();
+			long last = Math.max(state.lastSatisfied, state.lastFired);
+			if (now - last > STATE_EXPIRY_MILLIS) {
+				i.remove();
+			}
+		}
+	}
+}
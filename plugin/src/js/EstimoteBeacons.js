@@ -161,6 +161,208 @@ estimote.bluetoothState = function(success, error)
 	return true;
 };
 
+/**
+ * Bluetooth adapter state object.
+ * @typedef {Object} BluetoothState
+ * @property {string} state One of 'on', 'off', 'turningOn', 'turningOff'.
+ * @property {boolean} enabled True if Bluetooth is on.
+ */
+
+/**
+ * Subscribe to Bluetooth adapter state changes. Available on Android.
+ * The current state is passed to the success callback immediately, and
+ * again on every change. Ranging and monitoring are paused natively while
+ * Bluetooth is off and resumed for all regions when it comes back on,
+ * whether or not the app subscribes.
+ *
+ * @param {function} success Function called with a {@link BluetoothState}
+ * object (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example
+ * estimote.startBluetoothStateUpdates(
+ *   function(state) {
+ *      console.log('Bluetooth is ' + state.state) })
+ */
+estimote.startBluetoothStateUpdates = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'bluetooth_startStateUpdates',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Unsubscribe all Bluetooth adapter state callbacks. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called on success (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.stopBluetoothStateUpdates = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'bluetooth_stopStateUpdates',
+		[]
+	);
+
+	return true;
+};
+
+/*********************************************************/
+/***************** Local Stream Functions ****************/
+/*********************************************************/
+
+/**
+ * Start a WebSocket server on 127.0.0.1 that streams ranging, monitoring
+ * and nearable results to the page without going through the Cordova
+ * bridge. Available on Android.
+ *
+ * Each message is JSON text: { type: 'ranging' | 'monitoring' | 'nearables',
+ * data: same format as the corresponding callback }. Send a JSON message
+ * { types: [...], regions: [region identifiers] } to receive only some
+ * events. Slow connections drop their oldest queued events.
+ *
+ * Pass { stream: true } in the options of
+ * {@link estimote.beacons.startRangingBeaconsInRegion} or
+ * {@link estimote.beacons.startMonitoringForRegion} to send results of
+ * that subscription only to the stream.
+ *
+ * @param {Object} [options] Server options (optional).
+ * @param {number} [options.port=0] Port to listen on, 0 picks a free port.
+ * @param {number} [options.queueSize=64] Maximum queued events per connection.
+ * @param {function} success Function called with { url, port, token },
+ * connect to url, it includes the token (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example
+ * estimote.startStream({}, function(info) {
+ *   var socket = new WebSocket(info.url)
+ *   socket.onopen = function() {
+ *     socket.send(JSON.stringify({ types: ['ranging'] })) }
+ *   socket.onmessage = function(message) {
+ *     var event = JSON.parse(message.data)
+ *     estimote.printObject(event.data) } })
+ */
+estimote.startStream = function(options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'stream_start',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Stop the stream server and close all connections. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called when
+ * the server is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.stopStream = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'stream_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Get stream server statistics. Available on Android.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { port, rejected, connections: [ { queued, sent, dropped } ] },
+ * where rejected counts connections refused because too many were open
+ * (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.streamStats = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'stream_stats',
+		[]
+	);
+
+	return true;
+};
+
+/*********************************************************/
+/************** Plugin Diagnostics Functions *************/
+/*********************************************************/
+
+/**
+ * Get call counts and latencies for each plugin action. Available on Android.
+ * Latency is the time the native side spends handling the call,
+ * not the time until asynchronous results arrive. Failures count calls
+ * that threw and error results passed to error callbacks.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { periodMillis: number, actions: { name: { calls, failures,
+ * callsPerMinute, meanMicros, maxMicros } } } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {boolean} [reset=false] Set to true to reset the counters
+ * after reading them (optional).
+ *
+ * @example
+ * estimote.actionStats(
+ *   function(stats) {
+ *      estimote.printObject(stats) })
+ */
+estimote.actionStats = function(success, error, reset)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'plugin_actionStats',
+		[!!reset]
+	);
+
+	return true;
+};
+
+/**
+ * Get the time the plugin spent initializing. Available on Android.
+ * The plugin only registers its actions at app startup; the beacon
+ * manager is created on the first beacon action and the Estimote SDK
+ * is initialized on a background thread, so parts not used yet are
+ * left out of the result.
+ *
+ * To benchmark startup, cold start the app a number of times with
+ * "adb shell am start -W" and compare TotalTime, then read these
+ * statistics to see the cost of the plugin itself.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { pluginInitializeMicros, beaconManagerInitMicros,
+ * sdkInitMicros } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.startupStats = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'plugin_startupStats',
+		[]
+	);
+
+	return true;
+};
+
 /*********************************************************/
 /*************** Basic Callback Functions ****************/
 /*********************************************************/
@@ -187,6 +389,12 @@ estimote.bluetoothState = function(success, error)
  */
 estimote.beacons.printObject = estimote.printObject
 
+/**
+ * Id of the next ranging or monitoring subscription.
+ * @private
+ */
+var nextSubscriptionId = 1;
+
 /**
  * Proximity value.
  */
@@ -548,6 +756,9 @@ estimote.beacons.setupAppIDAndAppToken = function(appID, appToken, success, erro
  * @typedef {Object} BeaconInfo
  * @property {BeaconRegion} region Beacon region. Not available when scanning on iOS.
  * @property {Beacon[]} beacons Array of {@link Beacon} objects.
+ * @property {boolean} [cached] True if the beacons come from a warm start
+ * snapshot instead of a live scan (Android).
+ * @property {number} [ageMillis] Age of the warm start snapshot (Android).
  */
 
 /**
@@ -578,6 +789,10 @@ estimote.beacons.setupAppIDAndAppToken = function(appID, appToken, success, erro
  * {@link estimote.beacons.RegionStateInside},
  * {@link estimote.beacons.RegionStateOutside},
  * {@link estimote.beacons.RegionStateUnknown}.
+ * @property {Object[]} [beacons] Beacons that triggered an enter, or of
+ * a ranging burst cycle, if asked for with the enterBeacons or
+ * burstMillis monitoring options (Android).
+ * @property {boolean} [burst] True for ranging burst cycles (Android).
  */
 
 /**
@@ -639,6 +854,30 @@ estimote.beacons.stopEstimoteBeaconDiscovery = function(success, error)
  * @param {function} success Function called when beacons are ranged,
  * takes a {@link BeaconInfo} object as parameter (mandatory).
  * @param {ErrorCallback} error Function called on error (mandatory).
+ * @param {Object} [options] Native filters applied before beacons are
+ * passed to JavaScript, available on Android (optional).
+ * @param {number} [options.minRssi] Leave out beacons with lower RSSI.
+ * @param {number} [options.maxDistance] Leave out beacons farther away,
+ * in meters.
+ * @param {number[]} [options.proximities] Only include beacons with these
+ * estimote.beacons.Proximity* values.
+ * @param {Array} [options.allow] Only include these beacons, given as
+ * [major, minor] pairs or {major, minor} objects.
+ * @param {Array} [options.deny] Leave out these beacons, same format as allow.
+ * @param {number} [options.credits] Enable flow control with this many
+ * initial credits, see {@link estimote.beacons.grantCredits}.
+ * @param {boolean} [options.stream] Send results only to the local
+ * stream, see {@link estimote.startStream}.
+ * @param {boolean} [options.warmStart] Start with the beacons last
+ * ranged in this region, possibly in an earlier app run, while the first
+ * scan runs. The cached result has cached: true and ageMillis set.
+ * @param {number} [options.warmStartMaxAgeMillis=3600000] Skip the
+ * cached result if it is older than this.
+ *
+ * @return {number} Subscription id, pass it to
+ * {@link estimote.beacons.stopRangingBeaconsInRegion} to stop only
+ * this subscription when several parts of the app range the same region
+ * (Android). False if parameters are invalid.
  *
  * @example callback format:
  *   success(BeaconInfo)
@@ -652,20 +891,22 @@ estimote.beacons.stopEstimoteBeaconDiscovery = function(success, error)
  *     function(errorMessage) {
  *       console.log('Ranging error: ' + errorMessage) })
  */
-estimote.beacons.startRangingBeaconsInRegion = function(region, success, error)
+estimote.beacons.startRangingBeaconsInRegion = function(region, success, error, options)
 {
 	if (!checkExecParamsRegionSuccessError(region, success, error)) {
 		return false;
 	}
 
+	var subscriptionId = nextSubscriptionId++;
+
 	exec(success,
 		error,
 		'EstimoteBeacons',
 		'beacons_startRangingBeaconsInRegion',
-		[region]
+		[region, options || {}, subscriptionId]
 	);
 
-	return true;
+	return subscriptionId;
 };
 
 /**
@@ -675,11 +916,16 @@ estimote.beacons.startRangingBeaconsInRegion = function(region, success, error)
  * @param {ErrorCallbackNoParams} [success] Function called when ranging
  * is stopped (optional).
  * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {number} [subscriptionId] Id returned by
+ * {@link estimote.beacons.startRangingBeaconsInRegion}, if given only that
+ * subscription is stopped, otherwise all subscriptions of the region
+ * (optional, Android).
  *
  * @example Example that stops ranging:
  *   estimote.beacons.stopRangingBeaconsInRegion({})
  */
-estimote.beacons.stopRangingBeaconsInRegion = function(region, success, error)
+estimote.beacons.stopRangingBeaconsInRegion = function(
+	region, success, error, subscriptionId)
 {
 	if (!checkExecParamsRegion(region)) {
 		return false;
@@ -689,7 +935,139 @@ estimote.beacons.stopRangingBeaconsInRegion = function(region, success, error)
 		error,
 		'EstimoteBeacons',
 		'beacons_stopRangingBeaconsInRegion',
-		[region]
+		[region, subscriptionId || 0]
+	);
+
+	return true;
+};
+
+/**
+ * Start ranging beacons in several regions at once. Available on Android.
+ * All regions share one subscription and the success callback. Results
+ * are the same as for {@link estimote.beacons.startRangingBeaconsInRegion},
+ * each {@link BeaconInfo} names its region. Nothing is started if any
+ * region is invalid.
+ *
+ * @param {BeaconRegion[]} regions Regions, each with a uuid (mandatory).
+ * @param {function} success Function called when beacons are ranged,
+ * takes a {@link BeaconInfo} object as parameter (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ * @param {Object} [options] Same options as for
+ * {@link estimote.beacons.startRangingBeaconsInRegion}, applied to each
+ * region. With credits, each region has its own credits (optional).
+ *
+ * @return {number} Subscription id, pass it to
+ * {@link estimote.beacons.stopRangingRegions} and
+ * {@link estimote.beacons.replaceRangedRegions}.
+ */
+estimote.beacons.startRangingRegions = function(regions, success, error, options)
+{
+	var subscriptionId = nextSubscriptionId++;
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_startRangingRegions',
+		[regions, options || {}, subscriptionId]
+	);
+
+	return subscriptionId;
+};
+
+/**
+ * Stop ranging beacons in several regions at once. Available on Android.
+ * Regions no longer used are stopped on the scanner. The callback of a
+ * subscription is released when none of its regions are left.
+ *
+ * @param {BeaconRegion[]} [regions] Regions to stop, null for all regions
+ * of the subscription (optional).
+ * @param {function} [success] Function called with { stopped, sdkStopped },
+ * the number of regions stopped for the subscription and the number
+ * stopped on the scanner (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {number} [subscriptionId] Id returned by
+ * {@link estimote.beacons.startRangingRegions}, if given only that
+ * subscription is stopped, otherwise all subscriptions of the regions
+ * (optional).
+ */
+estimote.beacons.stopRangingRegions = function(
+	regions, success, error, subscriptionId)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_stopRangingRegions',
+		[regions || null, subscriptionId || 0]
+	);
+
+	return true;
+};
+
+/**
+ * Replace the regions of a subscription made with
+ * {@link estimote.beacons.startRangingRegions}. Available on Android.
+ * Only the difference is applied: removed regions are stopped first, new
+ * regions are started with options, and regions in both sets are left
+ * running. Results keep going to the success callback the subscription
+ * was started with.
+ *
+ * @param {number} subscriptionId Id of the subscription (mandatory).
+ * @param {BeaconRegion[]} regions The new set of regions (mandatory).
+ * @param {Object} [options] Options for the new regions, see
+ * {@link estimote.beacons.startRangingBeaconsInRegion} (optional).
+ * @param {function} [success] Function called with { added, removed, kept }
+ * region counts (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.replaceRangedRegions = function(
+	subscriptionId, regions, options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_replaceRangedRegions',
+		[regions, options || {}, subscriptionId]
+	);
+
+	return true;
+};
+
+/**
+ * Grant flow control credits to a ranging or monitoring subscription
+ * started with the credits option. Available on Android.
+ * One result is delivered per credit. While out of credits the plugin
+ * keeps only the latest result of the subscription, and delivers it as
+ * soon as credits are granted, so the app never works through a backlog
+ * of stale results. Subscriptions of the bulk start functions have
+ * credits per region, each region gets the credits and success gets the
+ * lowest remaining credits and the total coalesced.
+ *
+ * @param {number} subscriptionId Id returned when the subscription was
+ * started (mandatory).
+ * @param {number} credits Number of credits to add (mandatory).
+ * @param {function} [success] Function called with { credits, coalesced },
+ * the remaining credits and the number of results replaced while out of
+ * credits (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example Example that handles one result per animation frame:
+ *   var id = estimote.beacons.startRangingBeaconsInRegion(
+ *     {},
+ *     function(info) {
+ *       render(info)
+ *       requestAnimationFrame(function() {
+ *         estimote.beacons.grantCredits(id, 1) }) },
+ *     function(errorMessage) {
+ *       console.log('Ranging error: ' + errorMessage) },
+ *     { credits: 1 })
+ */
+estimote.beacons.grantCredits = function(subscriptionId, credits, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_grantCredits',
+		[subscriptionId, credits]
 	);
 
 	return true;
@@ -740,32 +1118,72 @@ estimote.beacons.stopRangingSecureBeaconsInRegion = function(region, success, er
 };
 
 /**
- * Start monitoring beacons. Available on iOS and Android.
+ * Beacon floor map entry, places a beacon at known coordinates.
+ * @typedef {Object} FloorMapEntry
+ * @property {string} uuid The UUID of the beacon.
+ * @property {number} major The major value of the beacon.
+ * @property {number} minor The minor value of the beacon.
+ * @property {number} x X coordinate of the beacon in meters.
+ * @property {number} y Y coordinate of the beacon in meters.
+ * @property {number} [floor=0] Floor number of the beacon.
+ */
+
+/**
+ * Position estimate object, given as result when positioning.
+ * @typedef {Object} Position
+ * @property {number} x Estimated X coordinate in meters.
+ * @property {number} y Estimated Y coordinate in meters.
+ * @property {number} floor Floor with the most beacons in range.
+ * @property {number} accuracy RMS distance error of the estimate in meters.
+ * @property {number} confidence Confidence of the estimate, from 0 to 1.
+ * @property {number} beaconCount Number of mapped beacons used.
+ */
+
+/**
+ * Upload the beacon floor map used for positioning. Available on Android.
+ * Replaces any previously uploaded floor map.
+ *
+ * @param {FloorMapEntry[]} floorMap Array of beacon positions (mandatory).
+ * @param {function} [success] Function called with the number of
+ * beacons in the map (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.setFloorMap = function(floorMap, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'positioning_setFloorMap',
+		[floorMap]
+	);
+
+	return true;
+};
+
+/**
+ * Start estimating the position from beacons ranged in a region.
+ * Available on Android. Position is computed natively by weighted
+ * trilateration against the floor map set with
+ * {@link estimote.beacons.setFloorMap}, and only the estimate is
+ * passed to JavaScript.
  *
  * @param {BeaconRegion} region Dictionary with region properties (mandatory).
- * @param success Function called when beacons are enter/exit the region (mandatory).
- * @param {function} success Function called when beacons enter/exit the region,
- * takes a {@link RegionState} object as parameter (mandatory).
+ * @param {function} success Function called each scan cycle with a
+ * {@link Position} object (mandatory).
  * @param {ErrorCallback} error Function called on error (mandatory).
- * @param {boolean} [notifyEntryStateOnDisplay=false] Set to true to detect if you
- * are inside a region when the user turns display on, see
- * {@link https://developer.apple.com/library/prerelease/ios/documentation/CoreLocation/Reference/CLBeaconRegion_class/index.html#//apple_ref/occ/instp/CLBeaconRegion/notifyEntryStateOnDisplay|iOS documentation}
- * for further details (optional, defaults to false, iOS only).
- *
- * @example success callback format:
- *   success(RegionState)
- *
- * @example Example that prints regionState properties:
- *   estimote.beacons.startMonitoringForRegion(
- *     {}, // Empty region matches all beacons.
- *     function(state) {
- *       console.log('Region state:')
- *       estimote.printObject(state) },
+ * @param {Object} [options] Positioning options (optional).
+ * @param {number} [options.smoothing=0.7] Weight of the previous estimate,
+ * from 0 (no smoothing) to 0.95.
+ *
+ * @example Example that prints the position:
+ *   estimote.beacons.startPositioningInRegion(
+ *     {},
+ *     function(position) {
+ *       console.log('Position: ' + position.x + ', ' + position.y) },
  *     function(errorMessage) {
- *       console.log('Monitoring error: ' + errorMessage) })
+ *       console.log('Positioning error: ' + errorMessage) })
  */
-estimote.beacons.startMonitoringForRegion = function(
-	region, success, error, notifyEntryStateOnDisplay)
+estimote.beacons.startPositioningInRegion = function(region, success, error, options)
 {
 	if (!checkExecParamsRegionSuccessError(region, success, error)) {
 		return false;
@@ -774,25 +1192,22 @@ estimote.beacons.startMonitoringForRegion = function(
 	exec(success,
 		error,
 		'EstimoteBeacons',
-		'beacons_startMonitoringForRegion',
-		[region, !!notifyEntryStateOnDisplay]
+		'positioning_startPositioningInRegion',
+		[region, options || {}]
 	);
 
 	return true;
 };
 
 /**
- * Stop monitoring beacons. Available on iOS and Android.
+ * Stop positioning in a region. Available on Android.
  *
  * @param {BeaconRegion} region Dictionary with region properties (mandatory).
- * @param {ErrorCallbackNoParams} [success] Function called when monitoring
- * is stopped (optional).
+ * @param {SuccessCallbackNoParams} [success] Function called when
+ * positioning is stopped (optional).
  * @param {ErrorCallback} [error] Function called on error (optional).
- *
- * @example Example that stops monitoring:
- *   estimote.beacons.stopMonitoringForRegion({})
  */
-estimote.beacons.stopMonitoringForRegion = function (region, success, error)
+estimote.beacons.stopPositioningInRegion = function(region, success, error)
 {
 	if (!checkExecParamsRegion(region)) {
 		return false;
@@ -801,7 +1216,7 @@ estimote.beacons.stopMonitoringForRegion = function (region, success, error)
 	exec(success,
 		error,
 		'EstimoteBeacons',
-		'beacons_stopMonitoringForRegion',
+		'positioning_stopPositioningInRegion',
 		[region]
 	);
 
@@ -809,15 +1224,49 @@ estimote.beacons.stopMonitoringForRegion = function (region, success, error)
 };
 
 /**
- * Start monitoring secure beacons. Available on iOS.
- * This function has the same parameters/behaviour as
- * estimote.beacons.startMonitoringForRegion.
- * To use secure beacons set the App ID and App Token using
- * {@link estimote.beacons.setupAppIDAndAppToken}.
- * @see {@link estimote.beacons.startMonitoringForRegion}
+ * Load an RSSI fingerprint database for zone matching. Available on Android.
+ * The database is a JSON file of the format
+ * { beacons: [{ uuid, major, minor }], fingerprints: [{ zone, rssi: [] }] },
+ * where each rssi array holds one value per beacon (null if not heard).
+ * The beacons array must come before the fingerprints array.
+ * On first load the file is converted to a compact binary index that
+ * is memory mapped on later loads.
+ *
+ * @param {string} path Path or file:// URL of the database (mandatory).
+ * @param {function} [success] Function called with
+ * { beacons, fingerprints, zones } counts when loaded (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
  */
-estimote.beacons.startSecureMonitoringForRegion = function(
-	region, success, error, notifyEntryStateOnDisplay)
+estimote.beacons.loadFingerprintDatabase = function(path, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'fingerprint_loadDatabase',
+		[path]
+	);
+
+	return true;
+};
+
+/**
+ * Start matching beacons ranged in a region against the fingerprint
+ * database loaded with {@link estimote.beacons.loadFingerprintDatabase}.
+ * Available on Android. Matching is k-nearest-neighbour on RSSI and
+ * runs natively, only the best zones are passed to JavaScript.
+ *
+ * @param {BeaconRegion} region Dictionary with region properties (mandatory).
+ * @param {function} success Function called each scan cycle with
+ * { zones: [{ zone, score }], beaconCount }, best zone first (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ * @param {Object} [options] Matching options (optional).
+ * @param {number} [options.k=5] Number of nearest fingerprints that vote.
+ * @param {number} [options.maxZones=3] Maximum number of zones returned.
+ * @param {number} [options.minBeacons=1] Minimum number of indexed beacons
+ * in range for a match to be reported.
+ */
+estimote.beacons.startFingerprintMatchingInRegion = function(
+	region, success, error, options)
 {
 	if (!checkExecParamsRegionSuccessError(region, success, error)) {
 		return false;
@@ -826,14 +1275,774 @@ estimote.beacons.startSecureMonitoringForRegion = function(
 	exec(success,
 		error,
 		'EstimoteBeacons',
-		'beacons_startSecureMonitoringForRegion',
-		[region, !!notifyEntryStateOnDisplay]
+		'fingerprint_startMatchingInRegion',
+		[region, options || {}]
 	);
 
 	return true;
 };
 
-
+/**
+ * Stop fingerprint matching in a region. Available on Android.
+ *
+ * @param {BeaconRegion} region Dictionary with region properties (mandatory).
+ * @param {SuccessCallbackNoParams} [success] Function called when
+ * matching is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopFingerprintMatchingInRegion = function(region, success, error)
+{
+	if (!checkExecParamsRegion(region)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'fingerprint_stopMatchingInRegion',
+		[region]
+	);
+
+	return true;
+};
+
+/**
+ * Presence summary object, given periodically when aggregating presence.
+ * @typedef {Object} PresenceSummary
+ * @property {number} periodStart Start of the period, milliseconds since epoch.
+ * @property {number} periodEnd End of the period, milliseconds since epoch.
+ * @property {number[]} dwellBucketsMillis Upper bounds of the histogram
+ * buckets, the last histogram bucket has no upper bound.
+ * @property {Object[]} beacons Beacons with activity in the period, each
+ * { id, present, visits, totalVisits, dwellMillis, histogram }.
+ * @property {Object[]} regions Monitored regions with activity in the
+ * period, same format as beacons, id is the region identifier.
+ * @property {number} evictions Beacons and regions dropped in the period
+ * because maxEntries was reached.
+ * @property {number} evictedUnreported Dropped entries whose activity in
+ * the period was lost, a hint to raise maxEntries.
+ */
+
+/**
+ * Start aggregating beacon and region presence natively. Available on Android.
+ * Visits, time in zone and dwell histograms are aggregated from all
+ * ranged and monitored regions, and a {@link PresenceSummary} is passed
+ * to the success callback every interval instead of per scan cycle.
+ *
+ * @param {Object} [options] Aggregation options (optional).
+ * @param {number} [options.intervalMillis=60000] Summary interval.
+ * @param {number} [options.exitTimeoutMillis=10000] Time a beacon must
+ * be unseen before its visit ends.
+ * @param {number} [options.maxEntries=256] Maximum number of beacons and
+ * regions tracked. When full, absent entries already reported are
+ * dropped first, the longest idle first.
+ * @param {BeaconRegion[]} [regions] Regions to range natively for
+ * presence, without passing beacons to JavaScript (optional).
+ * @param {function} success Function called with each summary (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ */
+estimote.beacons.startPresenceAggregation = function(
+	options, regions, success, error)
+{
+	if (!checkExecParamsSuccessError(success, error)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'presence_start',
+		[options || {}, regions || []]
+	);
+
+	return true;
+};
+
+/**
+ * Get a presence summary now and start a new period. Available on Android.
+ *
+ * @param {function} success Function called with a
+ * {@link PresenceSummary} (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.presenceSummary = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'presence_summary',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Stop presence aggregation. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called when
+ * aggregation is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopPresenceAggregation = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'presence_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Fleet health summary object, given periodically when health scanning.
+ * Only beacons that need attention are listed.
+ * @typedef {Object} HealthSummary
+ * @property {number} at Time of the summary, milliseconds since epoch.
+ * @property {number} devices Number of beacons in the fleet table.
+ * @property {number} packets Telemetry packets received in total.
+ * @property {number} newDevices Beacons first seen since the last summary.
+ * @property {Object[]} lowBattery Beacons low on battery, each
+ * { id, batteryPercentage }.
+ * @property {Object[]} silent Beacons not heard from for silentMillis,
+ * each { id, silentMillis }.
+ * @property {string[]} errors Ids of beacons reporting errors.
+ */
+
+/**
+ * Start passive fleet health scanning. Available on Android.
+ * Battery, temperature and uptime are collected from the telemetry
+ * packets Estimote beacons broadcast, without connecting to them, and a
+ * {@link HealthSummary} is passed to the success callback every interval.
+ *
+ * @param {Object} [options] Scan options (optional).
+ * @param {number} [options.intervalMillis=60000] Summary interval.
+ * @param {number} [options.lowBatteryPercent=20] Battery level at or
+ * below which a beacon is reported.
+ * @param {number} [options.silentMillis=300000] Time without telemetry
+ * after which a beacon is reported as silent.
+ * @param {number} [options.maxDevices=1024] Maximum number of beacons
+ * tracked, the longest silent is dropped when full.
+ * @param {function} success Function called with each summary (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ */
+estimote.beacons.startHealthScan = function(options, success, error)
+{
+	if (!checkExecParamsSuccessError(success, error)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'health_start',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Get the whole fleet health table. Available on Android.
+ *
+ * @param {function} success Function called with an array of
+ * { id, firstSeen, lastSeen, packets, rssi, protocolVersion,
+ * batteryPercentage, batteryVoltage, temperature, uptimeSeconds, error },
+ * values not received yet are left out (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.healthTable = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'health_table',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Stop fleet health scanning. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called when
+ * scanning is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopHealthScan = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'health_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Start monitoring beacons. Available on iOS and Android.
+ *
+ * @param {BeaconRegion} region Dictionary with region properties (mandatory).
+ * @param success Function called when beacons are enter/exit the region (mandatory).
+ * @param {function} success Function called when beacons enter/exit the region,
+ * takes a {@link RegionState} object as parameter (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ * @param {boolean} [notifyEntryStateOnDisplay=false] Set to true to detect if you
+ * are inside a region when the user turns display on, see
+ * {@link https://developer.apple.com/library/prerelease/ios/documentation/CoreLocation/Reference/CLBeaconRegion_class/index.html#//apple_ref/occ/instp/CLBeaconRegion/notifyEntryStateOnDisplay|iOS documentation}
+ * for further details (optional, defaults to false, iOS only).
+ * @param {Object} [options] Monitoring options (optional, Android).
+ * @param {number} [options.credits] Enable flow control with this many
+ * initial credits, see {@link estimote.beacons.grantCredits}.
+ * @param {boolean} [options.stream] Send results only to the local
+ * stream, see {@link estimote.startStream}.
+ * @param {number} [options.priority=0] Priority of the region in the
+ * monitoring schedule, see {@link estimote.beacons.setMonitoringSchedule}.
+ * @param {boolean} [options.enterBeacons] Include the beacons that
+ * triggered an enter in the region state, as beacons: [ { major, minor,
+ * rssi, proximityUUID } ]. proximityUUID is left out if the region has
+ * a UUID.
+ * @param {number} [options.burstMillis] After an enter, range the region
+ * natively for this long, at most 60000 ms, and pass each cycle as a
+ * region state with beacons in the same form and burst: true. The burst
+ * ends on its own, or on exit.
+ * @return {number} Subscription id, pass it to
+ * {@link estimote.beacons.stopMonitoringForRegion} to stop only
+ * this subscription when several parts of the app monitor the same region
+ * (Android). False if parameters are invalid.
+ *
+ * @example success callback format:
+ *   success(RegionState)
+ *
+ * @example Example that prints regionState properties:
+ *   estimote.beacons.startMonitoringForRegion(
+ *     {}, // Empty region matches all beacons.
+ *     function(state) {
+ *       console.log('Region state:')
+ *       estimote.printObject(state) },
+ *     function(errorMessage) {
+ *       console.log('Monitoring error: ' + errorMessage) })
+ */
+estimote.beacons.startMonitoringForRegion = function(
+	region, success, error, notifyEntryStateOnDisplay, options)
+{
+	if (!checkExecParamsRegionSuccessError(region, success, error)) {
+		return false;
+	}
+
+	var subscriptionId = nextSubscriptionId++;
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_startMonitoringForRegion',
+		[region, !!notifyEntryStateOnDisplay, subscriptionId, options || {}]
+	);
+
+	return subscriptionId;
+};
+
+/**
+ * Stop monitoring beacons. Available on iOS and Android.
+ *
+ * @param {BeaconRegion} region Dictionary with region properties (mandatory).
+ * @param {ErrorCallbackNoParams} [success] Function called when monitoring
+ * is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {number} [subscriptionId] Id returned by
+ * {@link estimote.beacons.startMonitoringForRegion}, if given only that
+ * subscription is stopped, otherwise all subscriptions of the region
+ * (optional, Android).
+ *
+ * @example Example that stops monitoring:
+ *   estimote.beacons.stopMonitoringForRegion({})
+ */
+estimote.beacons.stopMonitoringForRegion = function (
+	region, success, error, subscriptionId)
+{
+	if (!checkExecParamsRegion(region)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_stopMonitoringForRegion',
+		[region, subscriptionId || 0]
+	);
+
+	return true;
+};
+
+/**
+ * Start monitoring several regions at once. Available on Android.
+ * All regions share one subscription and the success callback, each
+ * {@link RegionState} names its region. With a monitoring schedule the
+ * regions join the rotation together. Nothing is started if any region
+ * is invalid.
+ *
+ * @param {BeaconRegion[]} regions Regions, each with a uuid (mandatory).
+ * @param {function} success Function called when beacons enter/exit a
+ * region, takes a {@link RegionState} object as parameter (mandatory).
+ * @param {ErrorCallback} error Function called on error (mandatory).
+ * @param {Object} [options] Same options as for
+ * {@link estimote.beacons.startMonitoringForRegion}, applied to each
+ * region (optional).
+ *
+ * @return {number} Subscription id, pass it to
+ * {@link estimote.beacons.stopMonitoringRegions} and
+ * {@link estimote.beacons.replaceMonitoredRegions}.
+ */
+estimote.beacons.startMonitoringRegions = function(regions, success, error, options)
+{
+	var subscriptionId = nextSubscriptionId++;
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_startMonitoringRegions',
+		[regions, options || {}, subscriptionId]
+	);
+
+	return subscriptionId;
+};
+
+/**
+ * Stop monitoring several regions at once. Available on Android.
+ * Regions left without subscriptions are stopped on the scanner. The
+ * callback of a subscription is released when none of its regions are
+ * left.
+ *
+ * @param {BeaconRegion[]} [regions] Regions to stop, null for all regions
+ * of the subscription (optional).
+ * @param {function} [success] Function called with { stopped, sdkStopped },
+ * the number of regions stopped for the subscription and the number
+ * stopped on the scanner (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {number} [subscriptionId] Id returned by
+ * {@link estimote.beacons.startMonitoringRegions}, if given only that
+ * subscription is stopped, otherwise all subscriptions of the regions
+ * (optional).
+ */
+estimote.beacons.stopMonitoringRegions = function(
+	regions, success, error, subscriptionId)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_stopMonitoringRegions',
+		[regions || null, subscriptionId || 0]
+	);
+
+	return true;
+};
+
+/**
+ * Replace the regions of a subscription made with
+ * {@link estimote.beacons.startMonitoringRegions}. Available on Android.
+ * Only the difference is applied: removed regions are stopped first, new
+ * regions are started with options, and regions in both sets keep their
+ * state, so no enter events are repeated for them. Events keep going to
+ * the success callback the subscription was started with.
+ *
+ * @param {number} subscriptionId Id of the subscription (mandatory).
+ * @param {BeaconRegion[]} regions The new set of regions (mandatory).
+ * @param {Object} [options] Options for the new regions, see
+ * {@link estimote.beacons.startMonitoringForRegion} (optional).
+ * @param {function} [success] Function called with { added, removed, kept }
+ * region counts (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.replaceMonitoredRegions = function(
+	subscriptionId, regions, options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_replaceMonitoredRegions',
+		[regions, options || {}, subscriptionId]
+	);
+
+	return true;
+};
+
+/**
+ * Monitor more regions than can be scanned for at once. Available on Android.
+ * At most maxActiveRegions monitored regions are started on the scanner
+ * at a time, the rest are rotated in every sliceMillis. Regions the user
+ * is inside always stay active so exits are reported. Other regions are
+ * ranked by their priority option, recent enter/exit activity, and time
+ * waited, one priority point being worth one slice of waiting. Each
+ * enter and exit is reported once, even when a region is rotated back in.
+ *
+ * Call without options or with maxActiveRegions 0 to monitor all regions.
+ *
+ * @param {Object} [options] Schedule options (optional).
+ * @param {number} [options.maxActiveRegions] Maximum regions scanned for
+ * at a time.
+ * @param {number} [options.sliceMillis=30000] Time slice length, minimum 1000.
+ * @param {number} [options.recentMillis=60000] How long an enter or exit
+ * event raises the rank of a region.
+ * @param {SuccessCallbackNoParams} [success] Function called when the
+ * schedule is set (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.setMonitoringSchedule = function(options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_setMonitoringSchedule',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Get monitoring schedule statistics. Available on Android.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { maxActiveRegions, sliceMillis, regions, active, inside,
+ * rotations } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error, or if there
+ * is no schedule (optional).
+ */
+estimote.beacons.monitoringScheduleStats = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_monitoringScheduleStats',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Get ranging watchdog statistics. Available on Android.
+ * The plugin watches the callbacks of each ranged region. When a region
+ * has had none for ten of its scan periods, its ranging is restarted,
+ * first right away and then with a backoff of 5 seconds, doubled up to
+ * 5 minutes, while it stays stalled. If all ranged regions stall at
+ * once, monitored regions are restarted too.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { stalls, recoveries, restarts, scannerStalls,
+ * meanRecoveryMillis, lastStallAt, lastRecoveryAt, sdkErrors,
+ * lastErrorId, regions: [ { key, periodMillis, silentMillis, stallMillis,
+ * stalled, restarts } ] } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.watchdogStats = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_watchdogStats',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Start keeping RSSI history of ranged beacons in the plugin. Available
+ * on Android. Beacons are recorded while they are ranged for any purpose,
+ * in compressed form, and can be queried with
+ * {@link estimote.beacons.queryRssiHistory} instead of keeping every
+ * ranging result in JavaScript. Replaces any existing history.
+ *
+ * @param {Object} [options] History options (optional).
+ * @param {number} [options.windowMillis=300000] How long samples are kept.
+ * @param {number} [options.maxBeacons=256] Maximum number of beacons with
+ * a history, the beacon seen least recently is dropped first.
+ * @param {SuccessCallbackNoParams} [success] Function called when the
+ * history is started (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.startRssiHistory = function(options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'history_start',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Stop keeping RSSI history and free it. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called when the
+ * history is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopRssiHistory = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'history_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Query RSSI history of a beacon or a region. Available on Android.
+ * Samples are down-sampled into equal time buckets, buckets without
+ * samples are left out.
+ *
+ * @param {BeaconRegion} region Region to query, give uuid, major and
+ * minor for a single beacon (mandatory).
+ * @param {number} [from] Start time in milliseconds since epoch,
+ * defaults to one minute before to (optional).
+ * @param {number} [to] End time in milliseconds since epoch, defaults
+ * to now (optional).
+ * @param {number} [maxPoints=60] Maximum number of buckets (optional).
+ * @param {function} success Function called with the result, format:
+ * { from, to, bucketMillis, beacons: [ { proximityUUID, major, minor,
+ * t: [bucket start times], mean: [], min: [], max: [], count: [] } ] }
+ * (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example Example that prints the last five minutes of one beacon:
+ *   estimote.beacons.queryRssiHistory(
+ *     { uuid: 'B9407F30-F5F8-466E-AFF9-25556B57FE6D', major: 1, minor: 2 },
+ *     Date.now() - 300000, Date.now(), 100,
+ *     function(result) {
+ *       estimote.printObject(result) })
+ */
+estimote.beacons.queryRssiHistory = function(
+	region, from, to, maxPoints, success, error)
+{
+	if (!checkExecParamsRegion(region)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'history_query',
+		[region, from || 0, to || 0, maxPoints || 0]
+	);
+
+	return true;
+};
+
+/**
+ * Get RSSI history memory use. Available on Android.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { windowMillis, beacons, samples, bytes } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error, or if the
+ * history is not started (optional).
+ */
+estimote.beacons.rssiHistoryStats = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'history_stats',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Start writing ranged beacons into compressed segment files in the
+ * plugin, for uploading in bulk instead of one request per ranging
+ * result. Available on Android. Beacons are recorded while they are
+ * ranged for any purpose.
+ *
+ * Segments are gzip files. Decompressed, a segment holds the magic
+ * "ESL1" and its start time, then records of unsigned varints, each
+ * starting with a tag byte: 0 defines a region (index, key length, UTF-8
+ * key), 1 defines a UUID (index, 16 bytes), and 2 is a ranging cycle
+ * (milliseconds since the previous cycle or the start, region index,
+ * count), followed by count beacons of uuid index, major, minor, zigzag
+ * encoded rssi, and distance in centimeters plus one, zero if unknown.
+ *
+ * @param {Object} [options] Export options (optional).
+ * @param {number} [options.maxSegmentBytes=1048576] Encoded size at which
+ * a segment is finished, before compression.
+ * @param {number} [options.maxSegmentMillis=900000] Age at which a
+ * segment is finished.
+ * @param {number} [options.maxSegments=64] Maximum number of finished
+ * segments kept, the oldest are deleted first.
+ * @param {SuccessCallbackNoParams} [success] Function called when the
+ * export is started (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.startExport = function(options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'export_start',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Stop writing ranged beacons to segment files, finishing the current
+ * segment. Available on Android.
+ *
+ * @param {SuccessCallbackNoParams} [success] Function called when the
+ * export is stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopExport = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'export_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Get the finished export segments, for example when on Wi-Fi or while
+ * charging. Available on Android. Segments stay until they are passed
+ * back in options.delete, typically once uploaded.
+ *
+ * @param {Object} [options] Drain options (optional).
+ * @param {boolean} [options.finish=true] Finish the current segment
+ * first, so that it is included.
+ * @param {string[]} [options.delete] Paths of segments to delete first.
+ * @param {function} success Function called with { segments, sightings,
+ * droppedSegments }, the segment file paths oldest first, the number of
+ * beacons recorded, and the number of segments deleted by the
+ * maxSegments limit (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example Example that uploads and then deletes segments:
+ *   estimote.beacons.drainExport({}, function(result) {
+ *     upload(result.segments, function() {
+ *       estimote.beacons.drainExport(
+ *         { finish: false, delete: result.segments },
+ *         function() {}) }) })
+ */
+estimote.beacons.drainExport = function(options, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'export_drain',
+		[options || {}]
+	);
+
+	return true;
+};
+
+/**
+ * Start evaluating proximity trigger rules natively on every scan cycle.
+ * Only events of rules that fire are passed to JavaScript. Available on
+ * Android.
+ *
+ * A rule fires once its conditions have held for durationMillis, and
+ * fires again only after the conditions have been broken and have held
+ * again, no sooner than cooldownMillis after the last firing.
+ *
+ * @param {Array} rules Array of rule objects (mandatory), format:
+ * {
+ *   id: string, reported in events,
+ *   type: 'beacon' (default) or 'nearable',
+ *   uuid, major, minor: beacons to match, left out to match any,
+ *   identifier, nearableType, color: nearables to match,
+ *   proximities: array of estimote.beacons.Proximity* values,
+ *   maxDistance: metres, minRssi, maxRssi,
+ *   moving: boolean, nearable motion,
+ *   durationMillis: how long conditions must hold, default 0,
+ *   cooldownMillis: minimum time between firings, default 0,
+ *   graceMillis: how long a beacon may be missing from scans, default 3000
+ * }
+ * @param {BeaconRegion[]} [regions] Regions to range for beacon rules,
+ * in addition to regions already ranged (optional).
+ * @param {function} success Function called for every fired rule,
+ * format: { ruleId, firedAt, heldMillis, beacon or nearable } (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ *
+ * @example
+ *   estimote.beacons.startTriggers(
+ *     [{ id: 'door', uuid: 'B9407F30-F5F8-466E-AFF9-25556B57FE6D',
+ *        major: 1, proximities: [1], durationMillis: 2000 }],
+ *     [{ uuid: 'B9407F30-F5F8-466E-AFF9-25556B57FE6D' }],
+ *     function(event) { console.log('Fired: ' + event.ruleId) })
+ */
+estimote.beacons.startTriggers = function(rules, regions, success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'triggers_start',
+		[rules || [], regions || []]
+	);
+
+	return true;
+};
+
+/**
+ * Stop evaluating trigger rules. Available on Android.
+ *
+ * @param {function} [success] Function called when triggers are
+ * stopped (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.stopTriggers = function(success, error)
+{
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'triggers_stop',
+		[]
+	);
+
+	return true;
+};
+
+/**
+ * Start monitoring secure beacons. Available on iOS.
+ * This function has the same parameters/behaviour as
+ * estimote.beacons.startMonitoringForRegion.
+ * To use secure beacons set the App ID and App Token using
+ * {@link estimote.beacons.setupAppIDAndAppToken}.
+ * @see {@link estimote.beacons.startMonitoringForRegion}
+ */
+estimote.beacons.startSecureMonitoringForRegion = function(
+	region, success, error, notifyEntryStateOnDisplay)
+{
+	if (!checkExecParamsRegionSuccessError(region, success, error)) {
+		return false;
+	}
+
+	exec(success,
+		error,
+		'EstimoteBeacons',
+		'beacons_startSecureMonitoringForRegion',
+		[region, !!notifyEntryStateOnDisplay]
+	);
+
+	return true;
+};
+
+
 /**
  * Stop monitoring secure beacons. Available on iOS.
  * This function has the same parameters/behaviour as
@@ -858,6 +2067,9 @@ estimote.beacons.stopSecureMonitoringForRegion = function (region, success, erro
 /**
  * Connect to Estimote Beacon. Available on Android.
  *
+ * Open connections are reused, the beacon info passed to success then
+ * has reused set to true. See {@link estimote.beacons.configureConnections}.
+ *
  * @param {Beacon} beacon Beacon to connect to.
  * @param {ErrorCallbackNoParams} [success] Function called when monitoring
  * is stopped (optional).
@@ -891,19 +2103,74 @@ estimote.beacons.connectToBeacon = function (beacon, success, error)
 /**
  * Disconnect from connected Estimote Beacon. Available on Android.
  *
+ * The connection is kept open until its idle timeout, so that connecting
+ * to the same beacon again is fast. Pass { close: true } to close it now.
+ *
  * @param {ErrorCallbackNoParams} [success] Function called when beacon
  * disconnection request has been init'ed.
  * @param {ErrorCallback} [error] Function called on error (optional).
+ * @param {Object} [options] Options object, format: { close: boolean }
+ * (optional).
  *
  * @example Example that disconnects from beacon:
  *   estimote.beacons.disconnectConnectedBeacon();
  */
-estimote.beacons.disconnectConnectedBeacon = function (success, error)
+estimote.beacons.disconnectConnectedBeacon = function (success, error, options)
 {
   exec(success,
     error,
     'EstimoteBeacons',
     'beacons_disconnectConnectedBeacon',
+    [options || {}]
+  );
+
+  return true;
+};
+
+/**
+ * Configure the beacon connection pool. Available on Android.
+ *
+ * @param {Object} options Pool options (mandatory), format:
+ * {
+ *   idleTimeoutMillis: how long unused connections are kept open,
+ *   default 30000,
+ *   maxConnections: maximum number of open connections, default 2,
+ *   maxRetries: connect retries after a failure, default 3,
+ *   retryBaseMillis: first retry delay, doubled on every retry,
+ *   default 500
+ * }
+ * @param {ErrorCallbackNoParams} [success] Function called when the pool
+ * is configured (optional).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.configureConnections = function (options, success, error)
+{
+  exec(success,
+    error,
+    'EstimoteBeacons',
+    'beacons_configureConnections',
+    [options || {}]
+  );
+
+  return true;
+};
+
+/**
+ * Get beacon connection pool statistics. Available on Android.
+ *
+ * @param {function} success Function called with the statistics object,
+ * format: { idleTimeoutMillis, maxConnections, connects, reuses, retries,
+ * failures, meanAuthMillis, meanConnectMillis, sessions: [ { macAddress,
+ * authorized, attempts, authMillis, connectMillis, idleMillis } ] }
+ * (mandatory).
+ * @param {ErrorCallback} [error] Function called on error (optional).
+ */
+estimote.beacons.connectionStats = function (success, error)
+{
+  exec(success,
+    error,
+    'EstimoteBeacons',
+    'beacons_connectionStats',
     []
   );
 
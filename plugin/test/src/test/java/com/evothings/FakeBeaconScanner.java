@@ -0,0 +1,173 @@
+package com.evothings;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BeaconScanner with regions as plain keys. Connects asynchronously on
+ * its own service thread, like the SDK, and counts calls that the SDK
+ * would get wrong: starts while disconnected, starts of regions already
+ * started and stops of regions not started.
+ */
+class FakeBeaconScanner implements BeaconScanner<String>
+{
+	private final ExecutorService mService = Executors.newSingleThreadExecutor();
+
+	// Guarded by this.
+	private boolean mConnected = false;
+	private boolean mConnecting = false;
+	private int mGeneration = 0;
+	private final List<Runnable> mPending = new ArrayList<Runnable>();
+	private final HashSet<String> mRanging = new HashSet<String>();
+
+	// Set to make startRanging throw, as the SDK does when its
+	// service fails.
+	volatile boolean failStarts = false;
+
+	final AtomicLong connects = new AtomicLong();
+	final AtomicLong starts = new AtomicLong();
+	final AtomicLong stops = new AtomicLong();
+	final AtomicLong violations = new AtomicLong();
+
+	@Override
+	public void connect(Runnable onReady)
+	{
+		final int generation;
+		synchronized (this) {
+			if (mConnected) {
+				generation = -1;
+			}
+			else {
+				mPending.add(onReady);
+				if (mConnecting) {
+					return;
+				}
+				mConnecting = true;
+				generation = mGeneration;
+				connects.incrementAndGet();
+			}
+		}
+
+		if (generation < 0) {
+			onReady.run();
+			return;
+		}
+
+		mService.execute(new Runnable() {
+			@Override
+			public void run() {
+				ready(generation);
+			}
+		});
+	}
+
+	private void ready(int generation)
+	{
+		List<Runnable> ready;
+		synchronized (this) {
+			if (generation != mGeneration) {
+				return;
+			}
+			mConnected = true;
+			mConnecting = false;
+			ready = new ArrayList<Runnable>(mPending);
+			mPending.clear();
+		}
+		for (Runnable onReady : ready) {
+			onReady.run();
+		}
+	}
+
+	@Override
+	public synchronized boolean isConnected()
+	{
+		return mConnected;
+	}
+
+	@Override
+	public synchronized void disconnect()
+	{
+		mConnected = false;
+		mConnecting = false;
+		++mGeneration;
+		mPending.clear();
+		mRanging.clear();
+	}
+
+	@Override
+	public synchronized void startRanging(String region)
+	{
+		starts.incrementAndGet();
+		if (failStarts) {
+			throw new IllegalStateException("service failed");
+		}
+		if (!mConnected || !mRanging.add(region)) {
+			violations.incrementAndGet();
+		}
+	}
+
+	@Override
+	public synchronized void stopRanging(String region)
+	{
+		stops.incrementAndGet();
+		if (!mConnected || !mRanging.remove(region)) {
+			violations.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void startMonitoring(String region)
+	{
+	}
+
+	@Override
+	public void stopMonitoring(String region)
+	{
+	}
+
+	@Override
+	public void startNearableDiscovery()
+	{
+	}
+
+	@Override
+	public void startTelemetryDiscovery()
+	{
+	}
+
+	@Override
+	public void stopTelemetryDiscovery()
+	{
+	}
+
+	/**
+	 * Regions ranged on the fake SDK.
+	 */
+	synchronized HashSet<String> ranging()
+	{
+		return new HashSet<String>(mRanging);
+	}
+
+	/**
+	 * Wait until the service thread has run all ready callbacks
+	 * posted so far.
+	 */
+	void drain() throws Exception
+	{
+		mService.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get(10, TimeUnit.SECONDS);
+	}
+
+	void shutdown()
+	{
+		mService.shutdownNow();
+	}
+}
@@ -0,0 +1,63 @@
+package com.evothings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ResultCallback that records results, and counts results sent after
+ * the callback was ended by clear or error, which JavaScript would
+ * never see.
+ */
+class FakeResultCallback implements ResultCallback
+{
+	// Guarded by this.
+	private final List<String> mResults = new ArrayList<String>();
+	private final List<String> mErrors = new ArrayList<String>();
+	private boolean mEnded = false;
+	private int mLate = 0;
+
+	@Override
+	public synchronized void sendJson(String json)
+	{
+		if (mEnded) {
+			++mLate;
+		}
+		mResults.add(json);
+	}
+
+	@Override
+	public synchronized void error(String message)
+	{
+		mEnded = true;
+		mErrors.add(message);
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		mEnded = true;
+	}
+
+	synchronized List<String> results()
+	{
+		return new ArrayList<String>(mResults);
+	}
+
+	synchronized List<String> errors()
+	{
+		return new ArrayList<String>(mErrors);
+	}
+
+	synchronized boolean isEnded()
+	{
+		return mEnded;
+	}
+
+	/**
+	 * Number of results sent after the callback ended.
+	 */
+	synchronized int late()
+	{
+		return mLate;
+	}
+}
@@ -0,0 +1,62 @@
+package com.evothings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Native uses of regions by a number of owners, standing in for the
+ * plugin's positioning, presence and other region maps.
+ */
+class FakeUses implements RegionRanging.Uses
+{
+	private final List<Set<String>> mOwners = new ArrayList<Set<String>>();
+
+	FakeUses(int owners)
+	{
+		for (int i = 0; i < owners; ++i) {
+			mOwners.add(Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+		}
+	}
+
+	void add(int owner, String key)
+	{
+		mOwners.get(owner).add(key);
+	}
+
+	boolean remove(int owner, String key)
+	{
+		return mOwners.get(owner).remove(key);
+	}
+
+	@Override
+	public boolean inUse(String key)
+	{
+		for (Set<String> keys : mOwners) {
+			if (keys.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void clear()
+	{
+		for (Set<String> keys : mOwners) {
+			keys.clear();
+		}
+	}
+
+	Set<String> keys()
+	{
+		Set<String> all = new HashSet<String>();
+		for (Set<String> keys : mOwners) {
+			all.addAll(keys);
+		}
+		return all;
+	}
+}
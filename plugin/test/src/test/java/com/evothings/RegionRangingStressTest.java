@@ -0,0 +1,256 @@
+package com.evothings;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers RegionRanging from the threads the plugin runs on: bridge
+ * threads subscribing and unsubscribing, native features using and
+ * releasing regions, a main thread pausing, resuming and resetting, and
+ * SDK threads delivering ranging results. Once everything has settled
+ * the regions ranged on the fake SDK must match the regions in use, and
+ * no call along the way may have started a region twice, stopped one
+ * that was not started or sent a result to an ended callback.
+ *
+ * Runs for stress.millis, 2 seconds by default, and prints throughput.
+ */
+public class RegionRangingStressTest
+{
+	private static final int KEYS = 8;
+	private static final int BRIDGE_THREADS = 4;
+	private static final int NATIVE_THREADS = 2;
+	private static final int SDK_THREADS = 2;
+
+	private final FakeBeaconScanner mScanner = new FakeBeaconScanner();
+	private final RegionSubscriptions mSubscriptions = new RegionSubscriptions();
+	private final FakeUses mUses = new FakeUses(NATIVE_THREADS);
+	private final RegionRanging<String> mRanging =
+			new RegionRanging<String>(mScanner, mSubscriptions, mUses);
+
+	private final AtomicBoolean mRunning = new AtomicBoolean(true);
+	private final AtomicInteger mNextId = new AtomicInteger(1);
+	private final AtomicLong mActions = new AtomicLong();
+	private final AtomicLong mEvents = new AtomicLong();
+	private final AtomicLong mResets = new AtomicLong();
+	private final ConcurrentLinkedQueue<FakeResultCallback> mCallbacks =
+			new ConcurrentLinkedQueue<FakeResultCallback>();
+	private final ConcurrentLinkedQueue<Throwable> mFailures =
+			new ConcurrentLinkedQueue<Throwable>();
+
+	private static String key(Random random)
+	{
+		return "region" + random.nextInt(KEYS);
+	}
+
+	@Test
+	public void startStopResetAndDiscoveryConcurrently() throws Exception
+	{
+		long millis = Long.getLong("stress.millis", 2000);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < BRIDGE_THREADS; ++i) {
+			threads.add(worker(i, new Step() {
+				@Override
+				public void run(Random random) {
+					bridgeStep(random);
+				}
+			}));
+		}
+		for (int i = 0; i < NATIVE_THREADS; ++i) {
+			final int owner = i;
+			threads.add(worker(100 + i, new Step() {
+				@Override
+				public void run(Random random) {
+					nativeStep(owner, random);
+				}
+			}));
+		}
+		for (int i = 0; i < SDK_THREADS; ++i) {
+			threads.add(worker(200 + i, new Step() {
+				@Override
+				public void run(Random random) throws JSONException {
+					sdkStep(random);
+				}
+			}));
+		}
+		threads.add(worker(300, new Step() {
+			@Override
+			public void run(Random random) throws InterruptedException {
+				mainStep(random);
+			}
+		}));
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(millis);
+		mRunning.set(false);
+		for (Thread thread : threads) {
+			thread.join(10000);
+			assertTrue("worker did not stop", !thread.isAlive());
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// Settle: scanning resumed and all connects done.
+		mRanging.resume();
+		mScanner.drain();
+
+		for (Throwable failure : mFailures) {
+			throw new AssertionError(failure);
+		}
+		assertEquals("scanner misuse", 0, mScanner.violations.get());
+		int late = 0;
+		for (FakeResultCallback callback : mCallbacks) {
+			late += callback.late();
+		}
+		assertEquals("results after clear", 0, late);
+
+		Set<String> inUse = new HashSet<String>(mSubscriptions.keySet());
+		inUse.addAll(mUses.keys());
+		assertEquals("wanted regions", inUse, mRanging.keys());
+		assertEquals("started regions", inUse, mRanging.startedKeys());
+		assertEquals("SDK regions", inUse, mScanner.ranging());
+
+		System.out.println(String.format(
+				"RegionRanging stress: %.1fs, %.0f actions/s, %.0f events/s,"
+						+ " %d resets, %d connects, %d SDK starts, %d SDK stops",
+				seconds,
+				mActions.get() / seconds,
+				mEvents.get() / seconds,
+				mResets.get(),
+				mScanner.connects.get(),
+				mScanner.starts.get(),
+				mScanner.stops.get()));
+	}
+
+	/**
+	 * Subscribe, unsubscribe or grant credits, as the ranging actions do.
+	 */
+	private void bridgeStep(Random random)
+	{
+		String key = key(random);
+		int op = random.nextInt(10);
+		if (op < 5) {
+			FakeResultCallback callback = new FakeResultCallback();
+			mCallbacks.add(callback);
+			int credits = random.nextBoolean()
+					? RegionSubscriptions.Subscription.UNLIMITED
+					: random.nextInt(3);
+			mRanging.subscribe(key, key, new RegionSubscriptions.Subscription(
+					mNextId.getAndIncrement(), callback, null, credits, false));
+			mRanging.start(callback);
+		}
+		else if (op < 9) {
+			List<RegionSubscriptions.Subscription> subscriptions = mSubscriptions.get(key);
+			int id = subscriptions.isEmpty() || random.nextInt(4) == 0
+					? 0
+					: subscriptions.get(random.nextInt(subscriptions.size())).id;
+			List<RegionSubscriptions.Subscription> removed =
+					new ArrayList<RegionSubscriptions.Subscription>();
+			mRanging.unsubscribe(key, id, removed);
+			for (RegionSubscriptions.Subscription subscription : removed) {
+				subscription.callback.clear();
+			}
+		}
+		else {
+			for (RegionSubscriptions.Subscription subscription : mSubscriptions.get(key)) {
+				subscription.grant(1);
+			}
+		}
+		mActions.incrementAndGet();
+	}
+
+	/**
+	 * Use or release a region natively, as positioning and presence do.
+	 */
+	private void nativeStep(int owner, Random random)
+	{
+		String key = key(random);
+		if (random.nextBoolean()) {
+			mUses.add(owner, key);
+			mRanging.range(key, key);
+			mRanging.start(null);
+		}
+		else if (mUses.remove(owner, key)) {
+			mRanging.release(key);
+		}
+		mActions.incrementAndGet();
+	}
+
+	/**
+	 * Deliver a ranging result, as the SDK ranging listener does, for a
+	 * region ranged on the SDK or one just stopped.
+	 */
+	private void sdkStep(Random random) throws JSONException
+	{
+		final String key = key(random);
+		mRanging.deliver(key, new RegionRanging.Serializer() {
+			@Override
+			public String json(BeaconFilter filter) {
+				return "{\"key\":\"" + key + "\"}";
+			}
+		});
+		mEvents.incrementAndGet();
+	}
+
+	/**
+	 * Toggle Bluetooth, restart a stalled region, or reset the plugin,
+	 * as the main thread does. Resets are far more frequent than in
+	 * the app, to race them against everything else.
+	 */
+	private void mainStep(Random random)
+	{
+		int op = random.nextInt(100);
+		if (op < 10) {
+			mRanging.pause();
+			mRanging.resume();
+		}
+		else if (op < 20) {
+			mRanging.restart(key(random));
+		}
+		else if (op < 30) {
+			mRanging.reset();
+			mResets.incrementAndGet();
+		}
+		mActions.incrementAndGet();
+	}
+
+	private interface Step
+	{
+		void run(Random random) throws Exception;
+	}
+
+	private Thread worker(final long seed, final Step step)
+	{
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random(seed);
+				try {
+					while (mRunning.get()) {
+						step.run(random);
+
+						// Monitors are not fair, let the main thread in.
+						Thread.yield();
+					}
+				}
+				catch (Throwable e) {
+					mFailures.add(e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,247 @@
+package com.evothings;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegionRangingTest
+{
+	private FakeBeaconScanner mScanner;
+	private RegionSubscriptions mSubscriptions;
+	private FakeUses mUses;
+	private RegionRanging<String> mRanging;
+
+	@Before
+	public void setUp()
+	{
+		mScanner = new FakeBeaconScanner();
+		mSubscriptions = new RegionSubscriptions();
+		mUses = new FakeUses(1);
+		mRanging = new RegionRanging<String>(mScanner, mSubscriptions, mUses);
+	}
+
+	@After
+	public void tearDown()
+	{
+		assertEquals(0, mScanner.violations.get());
+		mScanner.shutdown();
+	}
+
+	private RegionSubscriptions.Subscription subscribe(String key, int id, ResultCallback callback)
+	{
+		RegionSubscriptions.Subscription subscription =
+				new RegionSubscriptions.Subscription(id, callback, null);
+		mRanging.subscribe(key, key, subscription);
+		mRanging.start(callback);
+		return subscription;
+	}
+
+	private static HashSet<String> set(String... keys)
+	{
+		return new HashSet<String>(Arrays.asList(keys));
+	}
+
+	@Test
+	public void startsRegionOnceConnected() throws Exception
+	{
+		subscribe("a", 1, new FakeResultCallback());
+		subscribe("b", 2, new FakeResultCallback());
+		mScanner.drain();
+
+		assertEquals(set("a", "b"), mScanner.ranging());
+		assertEquals(set("a", "b"), mRanging.startedKeys());
+		assertEquals(1, mScanner.connects.get());
+	}
+
+	@Test
+	public void stopsRegionWhenLastSubscriptionLeaves() throws Exception
+	{
+		subscribe("a", 1, new FakeResultCallback());
+		subscribe("a", 2, new FakeResultCallback());
+		mScanner.drain();
+		assertEquals(1, mScanner.starts.get());
+
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		assertFalse(mRanging.unsubscribe("a", 1, removed));
+		assertEquals(set("a"), mScanner.ranging());
+
+		assertTrue(mRanging.unsubscribe("a", 2, removed));
+		assertEquals(2, removed.size());
+		assertEquals(set(), mScanner.ranging());
+		assertEquals(set(), mRanging.keys());
+	}
+
+	@Test
+	public void nativeUseKeepsRegionRanged() throws Exception
+	{
+		assertFalse(mRanging.range("a", "a"));
+
+		mUses.add(0, "a");
+		assertTrue(mRanging.range("a", "a"));
+		mRanging.start(null);
+		subscribe("a", 1, new FakeResultCallback());
+		mScanner.drain();
+
+		List<RegionSubscriptions.Subscription> removed =
+				new ArrayList<RegionSubscriptions.Subscription>();
+		assertFalse(mRanging.unsubscribe("a", 0, removed));
+		assertEquals(set("a"), mScanner.ranging());
+
+		mUses.remove(0, "a");
+		assertTrue(mRanging.release("a"));
+		assertEquals(set(), mScanner.ranging());
+	}
+
+	@Test
+	public void pauseStopsAndResumeStartsAgain() throws Exception
+	{
+		subscribe("a", 1, new FakeResultCallback());
+		mScanner.drain();
+
+		mRanging.pause();
+		assertEquals(set(), mScanner.ranging());
+		subscribe("b", 2, new FakeResultCallback());
+		mScanner.drain();
+		assertEquals(set(), mScanner.ranging());
+
+		mRanging.resume();
+		mScanner.drain();
+		assertEquals(set("a", "b"), mScanner.ranging());
+	}
+
+	@Test
+	public void resetStopsEverythingAndDisconnects() throws Exception
+	{
+		FakeResultCallback callback = new FakeResultCallback();
+		subscribe("a", 1, callback);
+		mUses.add(0, "b");
+		mRanging.range("b", "b");
+		mRanging.start(null);
+		mScanner.drain();
+
+		mRanging.reset();
+		assertFalse(mScanner.isConnected());
+		assertEquals(set(), mRanging.keys());
+		assertEquals(set(), mUses.keys());
+		assertFalse(mRanging.deliver("a", new Json()));
+		assertEquals(0, callback.results().size());
+
+		// Ranging connects again for the next subscription.
+		subscribe("c", 2, new FakeResultCallback());
+		mScanner.drain();
+		assertEquals(set("c"), mScanner.ranging());
+	}
+
+	@Test
+	public void startFailureGoesToCallback() throws Exception
+	{
+		mScanner.failStarts = true;
+		FakeResultCallback callback = new FakeResultCallback();
+		subscribe("a", 1, callback);
+		mScanner.drain();
+		assertEquals(Collections.singletonList("Start ranging RemoteException"), callback.errors());
+		assertEquals(set(), mRanging.startedKeys());
+
+		// The watchdog restart gets it going once the service recovers.
+		mScanner.failStarts = false;
+		mRanging.restart("a");
+		assertEquals(set("a"), mScanner.ranging());
+	}
+
+	@Test
+	public void deliverSerializesOncePerFilter() throws Exception
+	{
+		FakeResultCallback first = new FakeResultCallback();
+		FakeResultCallback second = new FakeResultCallback();
+		FakeResultCallback stream = new FakeResultCallback();
+		mRanging.subscribe("a", "a", new RegionSubscriptions.Subscription(1, first, null));
+		mRanging.subscribe("a", "a", new RegionSubscriptions.Subscription(2, second, null));
+		mRanging.subscribe("a", "a", new RegionSubscriptions.Subscription(
+				3, stream, null, RegionSubscriptions.Subscription.UNLIMITED, true));
+
+		Json json = new Json();
+		assertTrue(mRanging.deliver("a", json));
+		assertEquals(1, json.calls.get());
+		assertEquals(1, first.results().size());
+		assertEquals(1, second.results().size());
+		assertEquals(0, stream.results().size());
+	}
+
+	@Test
+	public void creditsKeepLatestResult()
+	{
+		FakeResultCallback callback = new FakeResultCallback();
+		RegionSubscriptions.Subscription subscription =
+				new RegionSubscriptions.Subscription(1, callback, null, 1, false);
+
+		assertTrue(subscription.send("a"));
+		assertFalse(subscription.send("b"));
+		assertFalse(subscription.send("c"));
+		assertEquals(1, subscription.coalesced());
+
+		subscription.grant(2);
+		assertEquals(Arrays.asList("a", "c"), callback.results());
+		assertEquals(1, subscription.credits());
+	}
+
+	@Test
+	public void cachedResultOnlyBeforeLiveOne() throws Exception
+	{
+		FakeResultCallback callback = new FakeResultCallback();
+		RegionSubscriptions.Subscription subscription =
+				new RegionSubscriptions.Subscription(1, callback, null);
+		mRanging.subscribe("a", "a", subscription);
+
+		assertTrue(subscription.sendCached("cached"));
+		assertFalse(subscription.isLive());
+		mRanging.deliver("a", new Json());
+		assertTrue(subscription.isLive());
+		assertFalse(subscription.sendCached("late"));
+		assertEquals(Arrays.asList("cached", "{\"n\":1}"), callback.results());
+	}
+
+	@Test
+	public void removedSubscriptionSendsNothing()
+	{
+		FakeResultCallback callback = new FakeResultCallback();
+		RegionSubscriptions.Subscription subscription =
+				new RegionSubscriptions.Subscription(1, callback, null, 0, false);
+		mSubscriptions.add("a", subscription);
+		subscription.send("a");
+
+		mSubscriptions.remove("a", 1);
+		callback.clear();
+		assertTrue(subscription.isClosed());
+		assertFalse(subscription.send("b"));
+		subscription.grant(1);
+		assertEquals(0, callback.results().size());
+		assertEquals(0, callback.late());
+	}
+
+	/**
+	 * Serializer counting its calls.
+	 */
+	static class Json implements RegionRanging.Serializer
+	{
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public String json(BeaconFilter filter) throws JSONException
+		{
+			return "{\"n\":" + calls.incrementAndGet() + "}";
+		}
+	}
+}